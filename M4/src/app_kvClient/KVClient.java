@@ -13,6 +13,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.UnknownHostException;
+import java.util.Map;
 
 import static java.lang.Integer.parseInt;
 
@@ -130,6 +131,30 @@ public class KVClient implements IKVClient  {
                 printError("Command did not have the correct arguments!");
             }
 
+        } else if(tokens[0].equals("scan")) {
+            if(tokens.length >= 2 && tokens.length <= 4) {
+                if(serverComms.isConnected()) {
+                    try {
+                        String endKey = tokens.length >= 3 ? tokens[2] : null;
+                        int limit = tokens.length == 4 ? parseInt(tokens[3]) : 0;
+                        for (Map.Entry<String, String> pair : serverComms.scan(tokens[1], endKey, limit)) {
+                            System.out.println(PROMPT + pair.getKey() + " : " + pair.getValue());
+                        }
+                    } catch(NumberFormatException nfe) {
+                        printError("Limit must be a number!");
+                    } catch(Exception e) {
+                        printError("Could not scan, will disconnect from server. Please reconnect");
+                        logger.info("Could not scan, will disconnect from server. Please reconnect",e);
+                        disconnect();
+                    }
+                }else{
+                    printError("Client is not connected to the server!");
+                    logger.info("Client is not connected to the server!");
+                }
+            } else{
+                printError("Command did not have the correct arguments!");
+            }
+
         } else if(tokens[0].equals("put")){
             if(tokens.length==3||tokens.length==2){
 
@@ -222,6 +247,9 @@ public class KVClient implements IKVClient  {
         sb.append(PROMPT).append("get <key>");
         sb.append("\t\t Retrieves the value for the given key from the server \n");
 
+        sb.append(PROMPT).append("scan <from> [<to> [<limit>]]");
+        sb.append("\t Lists the key-value pairs from <from> up to, not including, <to> in key order \n");
+
         sb.append(PROMPT).append("logLevel <level>");
         sb.append("\t\t changes the logLevel \n");
         sb.append(PROMPT).append("\t\t\t\t ");
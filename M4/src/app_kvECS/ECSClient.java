@@ -11,6 +11,7 @@ import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import app_kvServer.KVServer;
 import ecs.ECSNode;
 import ecs.ECSServerWatcher;
 import ecs.IECSNode;
@@ -66,12 +67,20 @@ public class ECSClient implements IECSClient,Runnable {
         String[] tokens = cmdLine.split("\\s+");
 
         if (tokens[0].equals("addNodes")){
-            if(tokens.length == 4) {
+            if(tokens.length >= 4 && tokens.length <= 6) {
                 int numNodes=parseInt(tokens[1]);
                 String replacementStrat=tokens[2];
                 int cacheSize=parseInt(tokens[3]);
+                long cacheBytes=tokens.length > 4 ? KVServer.parseBytes(tokens[4]) : 0;
+                int maxCacheEntryBytes;
+                try {
+                    maxCacheEntryBytes=tokens.length > 5 ? KVServer.parseIntBytes(tokens[5]) : 0;
+                } catch (NumberFormatException e) {
+                    printError(e.getMessage());
+                    return;
+                }
 
-                Collection<IECSNode> nodes=addNodes(numNodes,replacementStrat,cacheSize);
+                Collection<IECSNode> nodes=addNodes(numNodes,replacementStrat,cacheSize,cacheBytes,maxCacheEntryBytes);
                 logger.info("added nodes:");
                 for(IECSNode node:nodes){
                     logger.info(node.getNodeMetaData().toString());
@@ -147,8 +156,8 @@ public class ECSClient implements IECSClient,Runnable {
         sb.append(PROMPT);
         sb.append("::::::::::::::::::::::::::::::::");
         sb.append("::::::::::::::::::::::::::::::::\n");
-        sb.append(PROMPT).append("addNodes <numNodes> <replacementStrategy> <cacheSize>");
-        sb.append("\t adds n nodes\n");
+        sb.append(PROMPT).append("addNodes <numNodes> <replacementStrategy> <cacheSize> [<cacheBytes> [<maxCacheEntryBytes>]]");
+        sb.append("\t adds n nodes, with a cache budget in bytes instead of entries if given\n");
 
         sb.append(PROMPT).append("start");
         sb.append("\t\t\t starts storage service\n");
@@ -278,8 +287,19 @@ public class ECSClient implements IECSClient,Runnable {
 
     @Override
     public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize) {
-        // TODO
-        Collection<IECSNode> nodes=setupNodes(count,cacheStrategy,cacheSize);
+        return addNodes(count, cacheStrategy, cacheSize, 0, 0);
+    }
+
+    /**
+     * Adds nodes whose caches are limited by the estimated heap bytes of
+     * their pairs, see KVServer.
+     * @param cacheBytes heap bytes a node's cache may take, 0 to limit it to
+     *                   cacheSize entries instead
+     * @param maxCacheEntryBytes larger pairs are not cached, 0 for no limit
+     */
+    public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize, long cacheBytes,
+                                         int maxCacheEntryBytes) {
+        Collection<IECSNode> nodes=setupNodes(count,cacheStrategy,cacheSize,cacheBytes,maxCacheEntryBytes);
         for(IECSNode node:nodes){
             try{
                 logger.info("Started a server:"+node.getNodeName());
@@ -294,7 +314,11 @@ public class ECSClient implements IECSClient,Runnable {
 
     @Override
     public Collection<IECSNode> setupNodes(int count, String cacheStrategy, int cacheSize) {
-        // TODO
+        return setupNodes(count, cacheStrategy, cacheSize, 0, 0);
+    }
+
+    public Collection<IECSNode> setupNodes(int count, String cacheStrategy, int cacheSize, long cacheBytes,
+                                           int maxCacheEntryBytes) {
         Clock timer= Clock.systemUTC();
 
         Collection<IECSNode> nodes=new ArrayList<>();
@@ -306,7 +330,7 @@ public class ECSClient implements IECSClient,Runnable {
                 Iterator<ECSNode> iter = inactiveServerNodes.iterator();
                 ECSNode node = iter.next();
                 try {
-                    ((ECSNode) node).sshServerStart(cacheStrategy,cacheSize);
+                    ((ECSNode) node).sshServerStart(cacheStrategy,cacheSize,cacheBytes,maxCacheEntryBytes);
                     TimeUnit.MILLISECONDS.sleep(2000);
                     ((ECSNode) node).connectToServer();
                 } catch (Exception e) {
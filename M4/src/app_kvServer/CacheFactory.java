@@ -1,22 +1,68 @@
 package app_kvServer;
 
+import cache_impl.ArcCache;
+import cache_impl.ClockProCache;
 import cache_impl.FifoCache;
 import cache_impl.LfuCache;
 import cache_impl.LruCache;
+import cache_impl.SlabCache;
+import cache_impl.StripedCache;
+import cache_impl.TinyLfuCache;
 
 public class CacheFactory {
 
+    /**
+     * Caches large enough are striped into segments with a lock each, see
+     * StripedCache, so client threads do not serialize on one cache lock.
+     * Small caches are a single segment and keep the exact replacement order.
+     */
     public static CacheManager GetCache(int cacheSize, IKVServer.CacheStrategy cacheStrategy) {
         assert(cacheSize > 0);
         assert(cacheStrategy != IKVServer.CacheStrategy.None);
 
+        return GetCache(cacheSize, cacheStrategy, 0, 0);
+    }
+
+    /**
+     * Cache limited by the estimated heap bytes of its entries rather than
+     * their number, see CacheManager.weigh().
+     * @param byteBudget heap bytes the entries may take, 0 to limit the number
+     *                   of entries to cacheSize instead
+     * @param maxEntryBytes entries weighing more are not cached, 0 for no
+     *                   limit besides the budget
+     */
+    public static CacheManager GetCache(int cacheSize, IKVServer.CacheStrategy cacheStrategy,
+                                        long byteBudget, int maxEntryBytes) {
+        int segments = byteBudget > 0 ? StripedCache.segmentsFor(byteBudget, maxEntryBytes)
+                : StripedCache.segmentsFor(cacheSize);
+        if (cacheStrategy != IKVServer.CacheStrategy.None && segments > 1) {
+            return new StripedCache(cacheSize, cacheStrategy, byteBudget, maxEntryBytes, segments);
+        }
+        return GetSegment(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
+    }
+
+    // A single lock cache of the strategy.
+    public static CacheManager GetSegment(int cacheSize, IKVServer.CacheStrategy cacheStrategy) {
+        return GetSegment(cacheSize, cacheStrategy, 0, 0);
+    }
+
+    public static CacheManager GetSegment(int cacheSize, IKVServer.CacheStrategy cacheStrategy,
+                                          long byteBudget, int maxEntryBytes) {
         switch (cacheStrategy) {
             case FIFO:
-                return new FifoCache(cacheSize, cacheStrategy);
+                return new FifoCache(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
             case LRU:
-                return new LruCache(cacheSize, cacheStrategy);
+                return new LruCache(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
             case LFU:
-                return new LfuCache(cacheSize, cacheStrategy);
+                return new LfuCache(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
+            case TinyLFU:
+                return new TinyLfuCache(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
+            case ARC:
+                return new ArcCache(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
+            case ClockPro:
+                return new ClockProCache(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
+            case Slab:
+                return new SlabCache(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
             default:
                 return null;
         }
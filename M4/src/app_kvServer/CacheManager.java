@@ -2,17 +2,47 @@ package app_kvServer;
 
 import app_kvServer.IKVServer.CacheStrategy;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Base of the caches. A cache either holds up to cacheSize entries, or, when
+ * it has a byte budget, as many entries as fit into the budget by weigh().
+ * Caches evict by weight() against capacity(), which covers both.
+ */
 public abstract class CacheManager {
 
+    // Estimated heap bytes of a cached entry besides the characters: two
+    // String objects with their char arrays and a map entry.
+    public static final int ENTRY_OVERHEAD = 96;
+
     protected int cacheSize;
     private CacheStrategy cacheStrategy;
+    // Heap bytes the entries may take, 0 when cacheSize limits the entries.
+    protected long byteBudget;
+    // Entries weighing more are not cached, 0 for no limit besides the budget.
+    protected int maxEntryBytes;
+    // Sum of weight() over the cached entries.
+    protected long usedWeight = 0;
 
     public CacheManager(int cacheSize, CacheStrategy cacheStrategy) {
+        this(cacheSize, cacheStrategy, 0, 0);
+    }
+
+    /**
+     * @param byteBudget heap bytes the entries may take, 0 to limit the number
+     *                   of entries to cacheSize instead
+     * @param maxEntryBytes entries weighing more are not admitted, 0 for no
+     *                   limit besides the budget
+     */
+    public CacheManager(int cacheSize, CacheStrategy cacheStrategy, long byteBudget, int maxEntryBytes) {
         this.cacheSize = cacheSize;
         this.cacheStrategy = cacheStrategy;
+        this.byteBudget = byteBudget;
+        this.maxEntryBytes = maxEntryBytes;
     }
 
     public int getCacheSize(){
@@ -23,6 +53,72 @@ public abstract class CacheManager {
         return this.cacheStrategy;
     }
 
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    public int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    public boolean isWeighted() {
+        return byteBudget > 0;
+    }
+
+    // Estimated heap bytes of the cached pair, Java strings take two bytes a char.
+    public static long weigh(String key, String value) {
+        return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+    }
+
+    // Weight of the pair against capacity(): its bytes when weighted, else 1.
+    protected long weight(String key, String value) {
+        return isWeighted() ? weigh(key, value) : 1;
+    }
+
+    // Total weight the entries may have.
+    protected long capacity() {
+        return isWeighted() ? byteBudget : cacheSize;
+    }
+
+    // Whether the pair may be cached at all. A put of a pair that is not
+    // admitted drops the cached value of the key.
+    protected boolean admits(String key, String value) {
+        if (!isWeighted()) return true;
+        long weight = weigh(key, value);
+        return weight <= byteBudget && (maxEntryBytes == 0 || weight <= maxEntryBytes);
+    }
+
+    // Estimated heap bytes of the cached entries, 0 unless weighted.
+    public long getUsedBytes() {
+        return isWeighted() ? usedWeight : 0;
+    }
+
+    // Keys of an ordered collection, oldest first, turned newest first.
+    protected static List<String> newestFirst(Collection<String> keys, int limit) {
+        List<String> ordered = new ArrayList<String>(keys);
+        List<String> newest = new ArrayList<String>(Math.min(limit, ordered.size()));
+        for (int i = ordered.size() - 1; i >= 0 && newest.size() < limit; i--) {
+            newest.add(ordered.get(i));
+        }
+        return newest;
+    }
+
+    // Takes from the hottest keys of each part in turn, for caches split
+    // into parts that have no common order.
+    protected static List<String> interleave(List<List<String>> parts, int limit) {
+        List<String> keys = new ArrayList<String>();
+        for (int rank = 0; keys.size() < limit; rank++) {
+            boolean more = false;
+            for (List<String> part : parts) {
+                if (rank >= part.size()) continue;
+                more = true;
+                if (keys.size() < limit) keys.add(part.get(rank));
+            }
+            if (!more) break;
+        }
+        return keys;
+    }
+
     // Override these methods.
     public abstract void putKV(String key, String value) throws Exception;
     public abstract String getKV(String key) throws Exception;
@@ -30,4 +126,12 @@ public abstract class CacheManager {
     public abstract void delete(String key) throws Exception;
     public abstract void clearCache() throws Exception;
 
+    /**
+     * Keys of the cached entries the strategy would keep longest, hottest
+     * first, without their values. Used to warm the cache after a restart,
+     * see CacheWarmer.
+     * @param limit maximum number of keys
+     */
+    public abstract List<String> getHotKeys(int limit) throws Exception;
+
 }
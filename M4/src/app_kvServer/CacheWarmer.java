@@ -0,0 +1,204 @@
+package app_kvServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the cache warm across restarts. Every persist interval the keys the
+ * cache holds hottest, see CacheManager.getHotKeys(), are written into a
+ * manifest file, without their values. On start the keys of the manifest
+ * are loaded back into the cache from the storage, at most prefetchRate keys
+ * a second so the disk reads do not crowd out live requests. Prefetching
+ * stops early on cancelPrefetch() or stop().
+ *
+ * The manifest is the magic, the number of keys and the keys in modified
+ * UTF-8, hottest first. It is replaced atomically, a crash while it is
+ * written leaves the previous one.
+ */
+public class CacheWarmer implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public interface KeyLoader {
+        // Loads the stored value of the key into the cache unless it is
+        // cached already. Returns true if it was loaded.
+        public boolean load(String key) throws Exception;
+    }
+
+    public static final long DEFAULT_PERSIST_INTERVAL_MS = 60000;
+    public static final int DEFAULT_PREFETCH_RATE = 500;
+    public static final int MAX_MANIFEST_KEYS = 10000;
+    private static final int MAGIC = 0x484b4d31;
+    // Keys longer in modified UTF-8 do not fit writeUTF.
+    private static final int MAX_KEY_BYTES = 65535;
+
+    private volatile CacheManager cache;
+    private final KeyLoader loader;
+    private final File manifest;
+    private final int manifestKeys;
+    private final long persistIntervalMillis;
+    private final int prefetchRate;
+    private volatile boolean running = false;
+    private volatile boolean prefetchCancelled = false;
+    private volatile int prefetched = 0;
+    private Thread thread;
+
+    public CacheWarmer(CacheManager cache, KeyLoader loader, File manifest, int manifestKeys) {
+        this(cache, loader, manifest, manifestKeys, DEFAULT_PERSIST_INTERVAL_MS, DEFAULT_PREFETCH_RATE);
+    }
+
+    /**
+     * @param manifestKeys number of hottest keys kept in the manifest
+     * @param prefetchRate keys loaded a second at most while prefetching
+     */
+    public CacheWarmer(CacheManager cache, KeyLoader loader, File manifest, int manifestKeys,
+                       long persistIntervalMillis, int prefetchRate) {
+        this.cache = cache;
+        this.loader = loader;
+        this.manifest = manifest;
+        this.manifestKeys = Math.min(manifestKeys, MAX_MANIFEST_KEYS);
+        this.persistIntervalMillis = persistIntervalMillis;
+        this.prefetchRate = prefetchRate;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "cache-warmer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stops persisting and cancels a running prefetch.
+    public void stop() {
+        running = false;
+        prefetchCancelled = true;
+        if (thread != null) thread.interrupt();
+    }
+
+    public void cancelPrefetch() {
+        prefetchCancelled = true;
+    }
+
+    // Follows the live cache when its strategy is switched.
+    public void setCache(CacheManager cache) {
+        this.cache = cache;
+    }
+
+    // Number of keys loaded by the prefetch so far.
+    public int getPrefetched() {
+        return prefetched;
+    }
+
+    /**
+     * Loads the keys of the manifest into the cache, hottest first, paced to
+     * the prefetch rate.
+     * @return the number of keys loaded
+     */
+    public int prefetch() throws InterruptedException {
+        List<String> keys;
+        try {
+            keys = readManifest(manifest);
+        } catch (IOException e) {
+            logger.error("Could not read hot key manifest " + manifest, e);
+            return 0;
+        }
+        long start = System.nanoTime();
+        long nanosPerKey = 1000000000L / Math.max(1, prefetchRate);
+        for (int i = 0; i < keys.size() && !prefetchCancelled; i++) {
+            long wait = start + i * nanosPerKey - System.nanoTime();
+            if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            try {
+                if (loader.load(keys.get(i))) prefetched++;
+            } catch (Exception e) {
+                logger.error("Could not prefetch key " + keys.get(i), e);
+            }
+        }
+        if (!keys.isEmpty()) {
+            logger.info("Prefetched " + prefetched + " of " + keys.size() + " hot keys"
+                    + (prefetchCancelled ? ", cancelled" : ""));
+        }
+        return prefetched;
+    }
+
+    /**
+     * Writes the hottest cached keys into the manifest. An empty cache, e.g.
+     * after the keys were handed off on SERVER_KILL, keeps the manifest.
+     * @return the number of keys written
+     */
+    public int persist() throws Exception {
+        List<String> keys = cache.getHotKeys(manifestKeys);
+        if (keys.isEmpty()) return 0;
+        writeManifest(manifest, keys);
+        return keys.size();
+    }
+
+    public static void writeManifest(File file, List<String> keys) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(tmpFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+        try {
+            List<String> written = new ArrayList<String>(keys.size());
+            for (String key : keys) {
+                if (key.length() * 3 <= MAX_KEY_BYTES) written.add(key);
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(written.size());
+            for (String key : written) {
+                out.writeUTF(key);
+            }
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Keys of the manifest, none if there is no manifest yet.
+    public static List<String> readManifest(File file) throws IOException {
+        if (!file.exists()) return Collections.emptyList();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a hot key manifest: " + file);
+            int count = in.readInt();
+            List<String> keys = new ArrayList<String>(Math.min(count, MAX_MANIFEST_KEYS));
+            for (int i = 0; i < count; i++) {
+                keys.add(in.readUTF());
+            }
+            return keys;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            prefetch();
+            while (running) {
+                Thread.sleep(persistIntervalMillis);
+                try {
+                    persist();
+                } catch (Exception e) {
+                    logger.error("Could not write hot key manifest " + manifest, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+    }
+}
@@ -3,11 +3,15 @@ package app_kvServer;
 import org.apache.log4j.Logger;
 import shared.messages.KVMessage;
 import shared.messages.ProtoKVMessage;
+import shared.messages.ScanMessages;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
 import server_exceptions.NotInHashRangeException;
 import server_exceptions.ServerNotActiveException;
 import server_exceptions.ServerDataLockedException;
@@ -78,7 +82,8 @@ public class ClientConnection implements Runnable {
                 ProtoKVMessage returnMsg;
                 switch (receiveMsg.getStatus()) {
                     case PUT:
-                        KVMessage.StatusType putStatus = server.putKVThread(receiveMsg.getKey(), receiveMsg.getValue(), /*isReplicationPut=*/false);
+                        KVMessage.StatusType putStatus = server.putKVThread(receiveMsg.getKey(), receiveMsg.getValue(),
+                                receiveMsg.getTtlMillis(), /*isReplicationPut=*/false);
                         KVMessage.StatusType replicationStatus = server.sendToReplicas(receiveMsg.getKey(), receiveMsg.getValue());
                         KVMessage.StatusType stat = KVMessage.StatusType.PUT_ERROR;
 
@@ -87,6 +92,8 @@ public class ClientConnection implements Runnable {
                         }
 
                         returnMsg =new ProtoKVMessage(receiveMsg.getKey(),receiveMsg.getValue(),stat);
+                        // Hold the reply until the write is durable (group commit).
+                        server.awaitDurable();
 
                         try {
                             returnMsg.writeMessage(output);
@@ -112,9 +119,11 @@ public class ClientConnection implements Runnable {
 
                     case REPLICATE:
                         logger.info("handling replicate request, storing a coordinators kv pair");
-                        KVMessage.StatusType status = server.putKVThread(receiveMsg.getKey(), receiveMsg.getValue(), /*isReplicationPut=*/true);
+                        KVMessage.StatusType status = server.putKVThread(receiveMsg.getKey(), receiveMsg.getValue(),
+                                receiveMsg.getTtlMillis(), /*isReplicationPut=*/true);
                         logger.info("finished replicate request handling");
                         returnMsg =new ProtoKVMessage(receiveMsg.getKey(),receiveMsg.getValue(),status);
+                        server.awaitDurable();
                         try {
                             returnMsg.writeMessage(output);
                             logger.info("finish writemessage replicate client connection");
@@ -125,6 +134,37 @@ public class ClientConnection implements Runnable {
                         }
                         break;
 
+                    case SCAN:
+                        // Stream the pages, each read under the data lock on its own.
+                        String scanRequest = receiveMsg.getValue();
+                        String endKey = ScanMessages.parseEndKey(scanRequest);
+                        int remaining = ScanMessages.parseLimit(scanRequest);
+                        String cursor = receiveMsg.getKey().isEmpty() ? null : receiveMsg.getKey();
+                        while (true) {
+                            int pageLimit = remaining > 0 ? Math.min(remaining, KVServer.SCAN_PAGE_SIZE) : KVServer.SCAN_PAGE_SIZE;
+                            List<Map.Entry<String, String>> page = server.scan(cursor, endKey, pageLimit);
+                            if (page.isEmpty()) break;
+                            returnMsg = new ProtoKVMessage("", ScanMessages.encodePage(page), KVMessage.StatusType.SCAN_PAGE);
+                            returnMsg.writeMessage(output);
+                            if (remaining > 0) {
+                                remaining -= page.size();
+                                if (remaining == 0) break;
+                            }
+                            // The smallest key after the last one of the page.
+                            cursor = page.get(page.size() - 1).getKey() + '\0';
+                        }
+                        returnMsg = new ProtoKVMessage("", "", KVMessage.StatusType.SCAN_SUCCESS);
+                        returnMsg.writeMessage(output);
+                        break;
+
+                    case SNAPSHOT_CHUNK:
+                        byte[] chunk = Base64.getDecoder().decode(receiveMsg.getValue());
+                        server.restoreSnapshotChunk(SnapshotStream.decodeChunk(chunk));
+                        server.awaitDurable();
+                        returnMsg = new ProtoKVMessage("", "", KVMessage.StatusType.SNAPSHOT_SUCCESS);
+                        returnMsg.writeMessage(output);
+                        break;
+
                     case SETUP_ACK:
                         returnMsg = new ProtoKVMessage(receiveMsg.getKey(), receiveMsg.getValue(), KVMessage.StatusType.SETUP_ACK);
                         returnMsg.writeMessage(output);
@@ -210,6 +250,16 @@ public class ClientConnection implements Runnable {
                             returnMsg = new ProtoKVMessage("", "", KVMessage.StatusType.PUT_ERROR);
                             returnMsg.writeMessage(output);
                             break;
+                        case SCAN:
+                            logger.error("Error scanning from key:" + receiveMsg.getKey(), e);
+                            returnMsg = new ProtoKVMessage("", "", KVMessage.StatusType.SCAN_ERROR);
+                            returnMsg.writeMessage(output);
+                            break;
+                        case SNAPSHOT_CHUNK:
+                            logger.error("Error storing snapshot chunk", e);
+                            returnMsg = new ProtoKVMessage("", "", KVMessage.StatusType.SNAPSHOT_ERROR);
+                            returnMsg.writeMessage(output);
+                            break;
                         case REPLICATE:
                             System.out.println("Error replicating key:" + receiveMsg.getKey() + " , " + receiveMsg.getValue());
                             logger.error("Error replicating key:" + receiveMsg.getKey() + " , " + receiveMsg.getValue(), e);
@@ -1,5 +1,7 @@
 package app_kvServer;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Semaphore;
 import server_exceptions.ServerToServerErrorException;
@@ -8,16 +10,31 @@ import ecs.ECSHashRing;
 import org.apache.log4j.Logger;
 
 import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.IKVServer.DurabilityMode;
+import app_kvServer.IKVServer.StorageType;
+import storage_impl.PartitionedStorage;
 
 public class DataManager {
 
     private static Logger logger = Logger.getRootLogger();
 
     private String nodeName;
-    private FileManager fileManager;
-    private CacheManager cacheManager;
+    private StorageEngine storage;
+    // Replaced when the strategy is switched at runtime, see switchCacheStrategy().
+    private volatile CacheManager cacheManager;
+    // The cache being copied into cacheManager during a switch, else null.
+    private volatile CacheManager migratingCache;
+    // Projects the hit ratios of the other strategies, see ShadowCacheMonitor.
+    // Only runs while reports or switches are wanted, else null.
+    private volatile ShadowCacheMonitor shadowMonitor;
+    private boolean shadowReports = false;
+    private boolean cacheSwitching = false;
+    // Keys found absent, cleared when the hash ring changes.
+    private NegativeCache negativeCache = new NegativeCache();
+    // Persists the hot keys and prefetches them on start, null without a node name.
+    private CacheWarmer cacheWarmer;
     private int cacheSize;
-    private CacheStrategy strategy;
+    private volatile CacheStrategy strategy;
 
     // HashRing.
     public ECSHashRing hashRing;
@@ -33,6 +50,17 @@ public class DataManager {
     // is acquired.
     private Semaphore purgeLock = new Semaphore(1);
 
+    // Deletes keys once their time to live passed. Writes and expiries of
+    // a key are serialized by its stripe of keyLocks, so an expiry never
+    // deletes a value written after it came due.
+    private TimingWheel expiryWheel = new TimingWheel(new TimingWheel.ExpiryListener() {
+        public void expired(String key, long expiresAt) {
+            expire(key);
+        }
+    });
+    private static final int KEY_LOCK_STRIPES = 64;
+    private final Object[] keyLocks = new Object[KEY_LOCK_STRIPES];
+
     /**
      * Instantiate a DataManager object
      *
@@ -44,27 +72,116 @@ public class DataManager {
      *                  currently not contained in the cache. Options are "FIFO", "LRU",
      *                  and "LFU".
      */
-    public DataManager(int cacheSize, CacheStrategy strategy, String nodeName, String serverAdress) {
+    public DataManager(int cacheSize, CacheStrategy strategy, String nodeName, String serverAdress) throws Exception {
+        this(cacheSize, strategy, nodeName, serverAdress, DurabilityMode.NONE);
+    }
+
+    public DataManager(int cacheSize, CacheStrategy strategy, String nodeName, String serverAdress,
+                       DurabilityMode durabilityMode) throws Exception {
+        this(cacheSize, strategy, nodeName, serverAdress, durabilityMode, StorageType.LOG);
+    }
+
+    public DataManager(int cacheSize, CacheStrategy strategy, String nodeName, String serverAdress,
+                       DurabilityMode durabilityMode, StorageType storageType) throws Exception {
+        this(cacheSize, strategy, nodeName, serverAdress, durabilityMode, storageType,
+                Collections.singletonList(FileManager.DEFAULT_DATA_DIR));
+    }
+
+    /**
+     * @param dataDirs directories the storage files are spread over, see
+     *                 StorageFactory
+     */
+    public DataManager(int cacheSize, CacheStrategy strategy, String nodeName, String serverAdress,
+                       DurabilityMode durabilityMode, StorageType storageType,
+                       List<String> dataDirs) throws Exception {
+        this(cacheSize, strategy, nodeName, serverAdress, durabilityMode, storageType, dataDirs, 0, 0);
+    }
+
+    /**
+     * @param cacheBytes heap bytes the cache may take, 0 to limit the cache to
+     *                   cacheSize entries instead, see CacheFactory
+     * @param maxCacheEntryBytes larger pairs are not cached, 0 for no limit
+     */
+    public DataManager(int cacheSize, CacheStrategy strategy, String nodeName, String serverAdress,
+                       DurabilityMode durabilityMode, StorageType storageType,
+                       List<String> dataDirs, long cacheBytes, int maxCacheEntryBytes) throws Exception {
         this.cacheSize = cacheSize;
         this.strategy = strategy;
         this.nodeName = nodeName;
-        this.fileManager = new FileManager(nodeName);
-        this.cacheManager = CacheFactory.GetCache(cacheSize, strategy);
+        this.storage = StorageFactory.GetStorage(storageType, nodeName, durabilityMode, dataDirs);
+        this.cacheManager = CacheFactory.GetCache(cacheSize, strategy, cacheBytes, maxCacheEntryBytes);
         this.currentFullAddress = serverAdress;
         this.hashRing = new ECSHashRing();
+        startExpiryWheel();
+        this.cacheWarmer = new CacheWarmer(cacheManager, new CacheWarmer.KeyLoader() {
+            public boolean load(String key) throws Exception {
+                return warm(key);
+            }
+        }, new File(dataDirs.get(0), nodeName + ".hotkeys"), cacheSize);
+        cacheWarmer.start();
     }
 
     public DataManager(int cacheSize, CacheStrategy strategy, String serverAdress) {
         this.cacheSize = cacheSize;
         this.strategy = strategy;
         this.nodeName = null;
-        this.fileManager = new FileManager();
+        FileManager fileManager = new FileManager();
+        fileManager.startCompactor();
+        this.storage = fileManager;
         this.cacheManager = CacheFactory.GetCache(cacheSize, strategy);
         this.currentFullAddress = serverAdress;
+        startExpiryWheel();
+    }
+
+    // Starts the wheel with the expiries of the stored keys, so keys written
+    // with a time to live before a restart still expire, drop out of the
+    // cache and keep their time to live when handed to other servers.
+    private void startExpiryWheel() {
+        for (int i = 0; i < keyLocks.length; i++) {
+            keyLocks[i] = new Object();
+        }
+        try {
+            Map<String, Long> expiries = storage.getExpiries();
+            for (Map.Entry<String, Long> expiry : expiries.entrySet()) {
+                expiryWheel.schedule(expiry.getKey(), expiry.getValue());
+            }
+            if (!expiries.isEmpty()) logger.info("Scheduled " + expiries.size() + " stored expiries");
+        } catch (IOException e) {
+            logger.error("Could not read the expiries of the stored keys", e);
+        }
+        expiryWheel.start();
+    }
+
+    /**
+     * Starts the shadow monitor if reports or switches are wanted and the
+     * cache is large enough to project, and stops it otherwise.
+     */
+    private synchronized void updateShadowMonitor() {
+        boolean wanted = (shadowReports || cacheSwitching) && strategy != CacheStrategy.None
+                && cacheSize >= ShadowCacheMonitor.MIN_GHOST_SIZE;
+        if (!wanted) {
+            if (shadowMonitor != null) shadowMonitor.stop();
+            shadowMonitor = null;
+            return;
+        }
+        if (shadowMonitor == null) {
+            ShadowCacheMonitor monitor = new ShadowCacheMonitor(cacheSize, strategy);
+            monitor.start();
+            shadowMonitor = monitor;
+        }
+        shadowMonitor.setSwitcher(!cacheSwitching ? null : new ShadowCacheMonitor.StrategySwitcher() {
+            public void switchTo(CacheStrategy next) throws Exception {
+                switchCacheStrategy(next);
+            }
+        });
+    }
+
+    private Object keyLock(String key) {
+        return keyLocks[(key.hashCode() & 0x7fffffff) % keyLocks.length];
     }
 
     public boolean inStorage(String key) throws Exception {
-        return fileManager.inStorage(key);
+        return storage.inStorage(key);
     }
 
     public boolean inCache(String key) throws Exception {
@@ -89,49 +206,347 @@ public class DataManager {
     }
 
     public String getKV(String key) throws Exception {
+        // Keys the storage rules out are not in the cache either, every cached
+        // key was stored first.
+        if (!storage.mightContain(key)) return null;
+        // The cache does not know about expiries, an expired key the wheel
+        // did not delete yet must not be served from it.
+        if (expiryWheel.isExpired(key, System.currentTimeMillis())) return null;
+
         // First try: find in Cache.
         String value = cacheManager.getKV(key);
+        ShadowCacheMonitor monitor = shadowMonitor;
+        if (monitor != null) monitor.recordGet(key, value != null);
         if (value != null) {
             System.out.println("DataManager:getKV: CacheManager returned not NULL");
             return value;
         }
         System.out.println("DataManager:getKV: CacheManager returned NULL");
+        if (negativeCache.contains(key)) return null;
 
         // Second try: find in storage, and update cache.
-        value = fileManager.getKV(key);
-        if (value != null)
+        long stamp = negativeCache.stamp(key);
+        value = storage.getKV(key);
+        if (value != null) {
             cacheManager.putKV(key, value);
+        } else {
+            negativeCache.add(key, stamp);
+        }
         return value;
     }
 
     public void putKV(String key, String value) throws Exception {
-        fileManager.putKV(key, value);
-        cacheManager.putKV(key, value);
+        putKV(key, value, 0);
+    }
+
+    /**
+     * Puts the pair, deleted again once the time to live passed.
+     * @param ttlMillis time to live in milliseconds, 0 for none
+     */
+    public void putKV(String key, String value, long ttlMillis) throws Exception {
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        synchronized (keyLock(key)) {
+            storage.putKV(key, value, expiresAt);
+            cacheManager.putKV(key, value);
+            dropMigrating(key);
+            ShadowCacheMonitor monitor = shadowMonitor;
+            if (monitor != null) monitor.recordPut(key);
+            negativeCache.invalidate(key);
+            if (expiresAt != 0) {
+                expiryWheel.schedule(key, expiresAt);
+            } else {
+                expiryWheel.cancel(key);
+            }
+        }
     }
 
     public void delete(String key) throws Exception {
-        fileManager.delete(key);
+        synchronized (keyLock(key)) {
+            storage.delete(key);
+            forgetDeleted(key);
+        }
+    }
+
+    // Drops a key the storage no longer holds from the cache, the shadow
+    // caches, the negative cache and the expiry wheel. Caller holds the key lock.
+    private void forgetDeleted(String key) throws Exception {
         cacheManager.delete(key);
+        dropMigrating(key);
+        ShadowCacheMonitor monitor = shadowMonitor;
+        if (monitor != null) monitor.recordDelete(key);
+        negativeCache.invalidate(key);
+        expiryWheel.cancel(key);
+    }
+
+    // Deletes a key whose time to live passed, unless it was written again
+    // without an expiry or with a later one since.
+    private void expire(String key) {
+        synchronized (keyLock(key)) {
+            try {
+                if (expiryWheel.getExpiry(key) != 0 || storage.getKV(key) != null) return;
+                storage.delete(key);
+                cacheManager.delete(key);
+                dropMigrating(key);
+                ShadowCacheMonitor monitor = shadowMonitor;
+                if (monitor != null) monitor.recordDelete(key);
+                logger.info("Expired key " + key);
+            } catch (Exception e) {
+                logger.error("Could not delete expired key " + key, e);
+            }
+        }
+    }
+
+    // Loads a stored key into the cache for the warmer. Holds the key lock,
+    // so a value replaced by a concurrent write is not cached after it.
+    private boolean warm(String key) throws Exception {
+        synchronized (keyLock(key)) {
+            if (expiryWheel.isExpired(key, System.currentTimeMillis()) || cacheManager.inCache(key)) return false;
+            String value = storage.getKV(key);
+            if (value == null) return false;
+            cacheManager.putKV(key, value);
+            return true;
+        }
+    }
+
+    // A write during a switch makes the copy of the key in the old cache
+    // stale, it must not be carried over. Called under the key lock.
+    private void dropMigrating(String key) throws Exception {
+        CacheManager migrating = migratingCache;
+        if (migrating != null) migrating.delete(key);
+    }
+
+    /**
+     * Replaces the cache with one of the given strategy and the same limits,
+     * keeping its contents. The new cache takes over at once, the pairs are
+     * then copied over coldest first, each under its key lock. A key written
+     * or loaded in the meantime is not overwritten.
+     */
+    public synchronized void switchCacheStrategy(CacheStrategy next) throws Exception {
+        CacheManager previous = cacheManager;
+        if (next == strategy) return;
+        CacheManager replacement = CacheFactory.GetCache(cacheSize, next,
+                previous.getByteBudget(), previous.getMaxEntryBytes());
+        migratingCache = previous;
+        cacheManager = replacement;
+        List<String> keys = previous.getHotKeys(Integer.MAX_VALUE);
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            String key = keys.get(i);
+            synchronized (keyLock(key)) {
+                String value = previous.getKV(key);
+                if (value != null && !replacement.inCache(key)) replacement.putKV(key, value);
+            }
+        }
+        migratingCache = null;
+        logger.info("Switched cache from " + strategy + " to " + next + ", " + keys.size() + " keys carried over");
+        strategy = next;
+        ShadowCacheMonitor monitor = shadowMonitor;
+        if (monitor != null) monitor.setLiveStrategy(next);
+        if (cacheWarmer != null) cacheWarmer.setCache(replacement);
+    }
+
+    /**
+     * Lets the shadow caches switch the cache to the strategy they project
+     * the best hit ratio for, see ShadowCacheMonitor. Runs the shadow
+     * monitor while enabled, unless the cache is too small to project.
+     */
+    public synchronized void setCacheSwitching(boolean enabled) {
+        cacheSwitching = enabled;
+        updateShadowMonitor();
+    }
+
+    // Runs the shadow monitor to log the projected hit ratios, without
+    // switching unless setCacheSwitching() enabled it.
+    public synchronized void setShadowReports(boolean enabled) {
+        shadowReports = enabled;
+        updateShadowMonitor();
+    }
+
+    public CacheStrategy getCacheStrategy() {
+        return strategy;
+    }
+
+    // Projected hit ratios of the strategies on the sampled traffic, none
+    // while the shadow monitor does not run.
+    public Map<CacheStrategy, Double> getShadowHitRatios() {
+        ShadowCacheMonitor monitor = shadowMonitor;
+        if (monitor == null) return Collections.<CacheStrategy, Double>emptyMap();
+        return monitor.getHitRatios();
+    }
+
+    // Time to live left for the key in milliseconds, 0 if it has none.
+    public long remainingTtl(String key) {
+        long expiresAt = expiryWheel.getExpiry(key);
+        if (expiresAt == 0) return 0;
+        return Math.max(1, expiresAt - System.currentTimeMillis());
+    }
+
+    /**
+     * Streams the key-value pairs with startKey <= key < endKey that this
+     * server coordinates, in key order, from the ordered index of the storage.
+     * Replicated keys of other coordinators are left out.
+     * @param startKey first key, null for no lower bound
+     * @param endKey key after the range, null for no upper bound
+     * @param limit maximum number of pairs, 0 for no limit
+     */
+    public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey, int limit) {
+        return selected(storage.scan(startKey, endKey, coordinatedKeys()), null, limit);
+    }
+
+    // Selects the keys this server coordinates before the storage reads
+    // their values, null when it coordinates every key.
+    private StorageEngine.KeyFilter coordinatedKeys() {
+        if (hashRing == null || isUnityRing()) return null;
+        return new StorageEngine.KeyFilter() {
+            public boolean accept(String key) {
+                return currentFullAddress.equals(hashRing.getNodeByKey(key));
+            }
+        };
+    }
+
+    // Leaves out the pairs the filter rejects, if any, and those after limit.
+    private static Iterator<Map.Entry<String, String>> selected(final Iterator<Map.Entry<String, String>> pairs,
+                                                                final StorageEngine.KeyFilter filter,
+                                                                final int limit) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private int returned = 0;
+            private Map.Entry<String, String> next = advance();
+
+            private Map.Entry<String, String> advance() {
+                if (limit > 0 && returned >= limit) return null;
+                while (pairs.hasNext()) {
+                    Map.Entry<String, String> pair = pairs.next();
+                    if (filter == null || filter.accept(pair.getKey())) return pair;
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Map.Entry<String, String> next() {
+                if (next == null) throw new NoSuchElementException();
+                Map.Entry<String, String> pair = next;
+                returned++;
+                next = advance();
+                return pair;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Hands out the pairs of keys with an expiry as ExpiringPair, so the
+    // snapshot keeps their expiry.
+    private Iterator<Map.Entry<String, String>> withExpiries(final Iterator<Map.Entry<String, String>> pairs) {
+        return new Iterator<Map.Entry<String, String>>() {
+            public boolean hasNext() {
+                return pairs.hasNext();
+            }
+
+            public Map.Entry<String, String> next() {
+                Map.Entry<String, String> pair = pairs.next();
+                long expiresAt = expiryWheel.getExpiry(pair.getKey());
+                if (expiresAt == 0) return pair;
+                return new SnapshotStream.ExpiringPair(pair.getKey(), pair.getValue(), expiresAt);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Backs the storage up into a snapshot file, see SnapshotStream. Writes
+     * continue while the file is written.
+     * @return the number of pairs written
+     */
+    public long writeSnapshot(File file) throws IOException {
+        StorageSnapshot snapshot = storage.snapshot();
+        try {
+            return SnapshotStream.writeFile(withExpiries(snapshot.iterator()), file);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Streams the pairs this server coordinates, as of one point in time, to
+     * another server in chunks of many pairs each.
+     * @return the number of pairs sent
+     */
+    public long sendSnapshot(String address) throws Exception {
+        StorageSnapshot snapshot = storage.snapshot();
+        ServerConnection connection = new ServerConnection(address);
+        long pairs = 0;
+        try {
+            Iterator<Map.Entry<String, String>> coordinatedPairs = withExpiries(selected(snapshot.iterator(), coordinatedKeys(), 0));
+            byte[] chunk;
+            while ((chunk = SnapshotStream.encodeChunk(coordinatedPairs)) != null) {
+                if (!connection.sendSnapshotChunk(chunk)) {
+                    throw new ServerToServerErrorException("Snapshot chunk not stored by " + address);
+                }
+                pairs += SnapshotStream.chunkPairs(chunk);
+            }
+        } finally {
+            connection.disconnect();
+            snapshot.close();
+        }
+        logger.info("Sent snapshot of " + pairs + " pairs to " + address);
+        return pairs;
+    }
+
+    // Blocks until the calling thread's last write is durable, see StorageEngine.awaitDurable().
+    public void awaitDurable() throws InterruptedException {
+        storage.awaitDurable();
     }
 
     public void update(String key, String value) throws Exception {
+        update(key, value, 0);
+    }
+
+    public void update(String key, String value, long ttlMillis) throws Exception {
         delete(key);
-        putKV(key, value);
+        putKV(key, value, ttlMillis);
     }
 
     public void clearCache() throws Exception {
         cacheManager.clearCache();
+        negativeCache.clear();
     }
 
     public void clearStorage() throws Exception {
-        fileManager.clearStorage();
+        storage.clearStorage();
         clearCache();
     }
 
+    // Estimated heap bytes of the cached pairs, 0 unless the cache has a byte budget.
+    public long getCacheBytes() {
+        return cacheManager.getUsedBytes();
+    }
+
+    // Number of GETs of absent keys answered without the storage.
+    public long getNegativeCacheHits() {
+        return negativeCache.getHits();
+    }
+
+    public long getReclaimedStorageBytes() {
+        return storage.getReclaimedBytes();
+    }
+
+    public double getStorageFilterFalsePositiveRate() {
+        return storage.getFilterFalsePositiveRate();
+    }
+
     public void initialize(String rootDataString, String fullAddress){
         this.hashRing = new ECSHashRing(rootDataString);
         this.currentFullAddress = fullAddress;
         this.currentNodeHash = ECSHashRing.getHash(currentFullAddress);
+        // Keys of ranges this server takes over may be absent here so far.
+        negativeCache.clear();
     }
 
 	public void purge(boolean purgeAll) throws Exception{
@@ -139,7 +554,22 @@ public class DataManager {
         // Find the fullAddress of other servers and all the keys that now belongs to the servers in hash range.
 		Map<String,Vector<String>> addressToKeysMap = new HashMap<String,Vector<String>>();
         Map<String,Vector<String>> addressToKeysMapReplicas = new HashMap<String,Vector<String>>();
-		Vector<String> keys = fileManager.getKeys();
+        if (!purgeAll && storage instanceof PartitionedStorage) {
+            purgeBuckets((PartitionedStorage) storage, addressToKeysMap, addressToKeysMapReplicas);
+        } else {
+            sortKeys(storage.getKeys(), purgeAll, addressToKeysMap, addressToKeysMapReplicas);
+        }
+
+		// Make a connection to the corresponding server and hand off data.
+        serverToServer(addressToKeysMap, /*toReplicate=*/false, /*deleteKeys=*/true);
+        if (!addressToKeysMapReplicas.isEmpty())
+            serverToServer(addressToKeysMapReplicas, /*toReplicate=*/false, /*deleteKeys=*/false);
+        purgeLock.release();
+    }
+
+    // Sorts the keys by the server they are handed off to, keys that stay are skipped.
+    private void sortKeys(Iterable<String> keys, boolean purgeAll, Map<String,Vector<String>> addressToKeysMap,
+                          Map<String,Vector<String>> addressToKeysMapReplicas) throws Exception {
 		for (String key : keys) {
             String fullAddress = hashRing.getNodeByKey(key);
             if (!purgeAll) 
@@ -156,45 +586,87 @@ public class DataManager {
 		        addressToKeysMap.put(fullAddress, new Vector<String>());
             addressToKeysMap.get(fullAddress).add(key);
 		}
+    }
 
-		// Make a connection to the corresponding server and hand off data.
-        serverToServer(addressToKeysMap, /*toReplicate=*/false, /*deleteKeys=*/true);
-        if (!addressToKeysMapReplicas.isEmpty())
-            serverToServer(addressToKeysMapReplicas, /*toReplicate=*/false, /*deleteKeys=*/false);
-        purgeLock.release();
+    // Purges bucket by bucket. A bucket whose whole hash range stays here is
+    // not read at all, and one whose whole range moved to a server this one
+    // is no replica for is shipped and then dropped as a whole. Only buckets
+    // split by a ring position are sorted key by key.
+    private void purgeBuckets(PartitionedStorage partitioned, Map<String,Vector<String>> addressToKeysMap,
+                              Map<String,Vector<String>> addressToKeysMapReplicas) throws Exception {
+        if (isUnityRing()) return;
+        HashSet<String> coordinators = hashRing.getCoordinators(currentFullAddress);
+        for (int bucket = 0; bucket < partitioned.getBucketCount(); bucket++) {
+            String owner = hashRing.getRangeOwner(partitioned.getBucketStart(bucket), partitioned.getBucketEnd(bucket));
+            if (owner == null || (coordinators != null && coordinators.contains(owner))) {
+                sortKeys(partitioned.getKeys(bucket), false, addressToKeysMap, addressToKeysMapReplicas);
+                continue;
+            }
+            if (owner.equals(currentFullAddress)) continue;
+
+            Vector<String> keys = new Vector<String>();
+            for (String key : partitioned.getKeys(bucket)) {
+                keys.add(key);
+            }
+            if (keys.isEmpty()) continue;
+            Map<String,Vector<String>> bucketMap = new HashMap<String,Vector<String>>();
+            bucketMap.put(owner, keys);
+            // Only dropped once the owner acknowledged every key, else the
+            // keys stay and are handed off one by one.
+            if (!serverToServer(bucketMap, /*toReplicate=*/false, /*deleteKeys=*/false)) {
+                sortKeys(keys, false, addressToKeysMap, addressToKeysMapReplicas);
+                continue;
+            }
+            partitioned.dropBucket(bucket);
+            for (String key : keys) {
+                synchronized (keyLock(key)) {
+                    forgetDeleted(key);
+                }
+            }
+        }
     }
 
-    public void serverToServer(Map<String,Vector<String>> addressToKeysMap, boolean toReplicate, boolean deleteKeys) throws Exception{
+    /**
+     * Sends the keys to their servers. A key that can not be stored throws.
+     * @return false if a server could not be reached, its keys were not sent
+     */
+    public boolean serverToServer(Map<String,Vector<String>> addressToKeysMap, boolean toReplicate, boolean deleteKeys) throws Exception{
+        boolean allSent = true;
         for (Map.Entry<String, Vector<String>> addressToKeys : addressToKeysMap.entrySet()) {
             try {
                 serverConnection = new ServerConnection(addressToKeys.getKey());
             } catch (Exception e) {
                 logger.error("Server was not successful on making a connection to another server for data off-loading", e);
+                allSent = false;
                 continue;
             }
             boolean success;
             for (String kvKey : addressToKeys.getValue()) {
                 // Get value from the file manager and call put.
                 try {
-                    String value = fileManager.getKV(kvKey);
+                    String value = storage.getKV(kvKey);
+                    // Expired while waiting to be sent.
+                    if (value == null) continue;
                     if(toReplicate)
                         logger.info("Try to replicate key:"+kvKey+", value:"+value);
                     else
                         logger.info("Try to purge key:"+kvKey+", value:"+value);
 
-                    success = serverConnection.put(kvKey, value, toReplicate);
+                    success = serverConnection.put(kvKey, value, remainingTtl(kvKey), toReplicate);
                     if (!success) throw new ServerToServerErrorException("Server data is locked");
 
                     if (deleteKeys) delete(kvKey);
                 } catch (Exception e) {
                     logger.error("Server found error finding and sending key and value to another server. Replicate = " + Boolean.toString(toReplicate), e);
-                    String value = fileManager.getKV(kvKey);
+                    String value = storage.getKV(kvKey);
+                    if (value == null) continue;
                     success = reconnectAndPut(kvKey, value, toReplicate, addressToKeys.getKey());
                     if (!success) throw new ServerToServerErrorException("Server data is locked");
                 }
             }
             serverConnection.disconnect();
         }
+        return allSent;
 	}
 
     public boolean reconnectAndPut(String key, String value, boolean toReplicate, String address){
@@ -202,7 +674,7 @@ public class DataManager {
         for (int i=0; i<5; i++) {
             try {
                 serverConnection = new ServerConnection(address);
-                success = serverConnection.put(key, value, toReplicate);
+                success = serverConnection.put(key, value, remainingTtl(key), toReplicate);
                 if (success) break;
             } catch (Exception e) {
                 logger.info("serverToServer trying to reconnect and put");
@@ -230,19 +702,32 @@ public class DataManager {
         List<String> currentReplicas = hashRing.GetReplicasByKey(currentFullAddress);
         if (currentReplicas == null) return;
         logger.info("current replicas"+currentReplicas.toString()+",current address"+currentFullAddress);
-        // Send off all keys on this server to the newly added replicas - with a non replicating put message.
-        Map<String,Vector<String>> replicaKeyMap = new HashMap<String,Vector<String>>();
-        Vector<String> keys = fileManager.getKeys();
-        // Keys that dont belong to other coordinators.
-        Vector<String> inRangeKeys = new Vector<String>();
-        for (String key : keys) {
-            if (inHashRange(key)) inRangeKeys.add(key);
-        }
-        logger.info("DataManager server to newrep:"+inRangeKeys.toString());
+        // The keys this server coordinates go out as a snapshot in chunks,
+        // not one replicate request per key. A replica that fails does not
+        // keep the others from getting theirs.
         for (String replica : currentReplicas) {
-            replicaKeyMap.put(replica, inRangeKeys);
+            try {
+                sendSnapshot(replica);
+            } catch (Exception e) {
+                logger.error("Could not send snapshot to replica " + replica, e);
+            }
         }
-        serverToServer(replicaKeyMap, /*toReplicate=*/true, /*deleteKeys=*/false);
+    }
+
+    // Stops the background storage work, called when the server is killed.
+    public void close() {
+        expiryWheel.stop();
+        ShadowCacheMonitor monitor = shadowMonitor;
+        if (monitor != null) monitor.stop();
+        if (cacheWarmer != null) {
+            cacheWarmer.stop();
+            try {
+                cacheWarmer.persist();
+            } catch (Exception e) {
+                logger.error("Could not write hot key manifest", e);
+            }
+        }
+        storage.close();
     }
 
     public boolean isActive(){
@@ -0,0 +1,85 @@
+package app_kvServer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import app_kvServer.IKVServer.DurabilityMode;
+
+// Write sequence bookkeeping of a StorageEngine. Every put and delete gets a
+// sequence number once it reached the OS. Under GROUP_COMMIT a GroupCommitter
+// has the storage force batches of writes to disk, which advances the durable
+// sequence, and writers wait for their own sequence number.
+public class DurabilityTracker {
+
+    private DurabilityMode durabilityMode;
+    private GroupCommitter groupCommitter;
+    private AtomicLong writeSequence = new AtomicLong(0);
+    private volatile long durableSequence = 0;
+    private final Object durableMonitor = new Object();
+    private ThreadLocal<Long> lastWriteSequence = new ThreadLocal<Long>();
+
+    public DurabilityTracker(StorageEngine storage, DurabilityMode durabilityMode) {
+        this.durabilityMode = durabilityMode;
+        if (durabilityMode == DurabilityMode.GROUP_COMMIT) {
+            groupCommitter = new GroupCommitter(storage);
+        }
+    }
+
+    // Starts the group committer, once the storage is fully constructed.
+    public void start() {
+        if (groupCommitter != null) groupCommitter.start();
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    // Called by the storage once a write reached the OS. SYNC writes are
+    // forced by the storage itself and not tracked.
+    public void writeCompleted() {
+        long sequence = writeSequence.incrementAndGet();
+        if (durabilityMode == DurabilityMode.GROUP_COMMIT) {
+            lastWriteSequence.set(sequence);
+            groupCommitter.writeCompleted(sequence - durableSequence);
+        }
+    }
+
+    /**
+     * Blocks until the last write of the calling thread is on disk. Returns
+     * immediately unless the durability mode is GROUP_COMMIT, SYNC writes are
+     * durable when they return and NONE makes no promise.
+     */
+    public void awaitDurable() throws InterruptedException {
+        if (durabilityMode != DurabilityMode.GROUP_COMMIT) return;
+        Long sequence = lastWriteSequence.get();
+        if (sequence == null) return;
+        synchronized (durableMonitor) {
+            while (durableSequence < sequence) {
+                durableMonitor.wait();
+            }
+        }
+    }
+
+    // Number of writes which reached the OS but are not forced to disk yet.
+    public long getPendingWrites() {
+        return writeSequence.get() - durableSequence;
+    }
+
+    // Called before the storage forces its files. Returns the sequence number
+    // the sync covers, or -1 if every write is durable already.
+    public long startSync() {
+        long sequence = writeSequence.get();
+        return sequence == durableSequence ? -1 : sequence;
+    }
+
+    // Called once the files are forced, wakes up the writers of the sync.
+    public void syncCompleted(long sequence) {
+        synchronized (durableMonitor) {
+            durableSequence = sequence;
+            durableMonitor.notifyAll();
+        }
+    }
+
+    public void stop() {
+        if (groupCommitter != null) groupCommitter.stop();
+    }
+}
@@ -1,31 +1,149 @@
 package app_kvServer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.concurrent.Semaphore;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 
-public class FileManager {
+import app_kvServer.IKVServer.AllocationMode;
+import app_kvServer.IKVServer.DurabilityMode;
+import storage_impl.BloomFilter;
+import storage_impl.PackedKeyIndex;
+import storage_impl.Records;
+
+public class FileManager implements StorageEngine {
 
     private static Logger logger = Logger.getRootLogger();
-    private static String dirPath = "/tmp/ECEdataSS/";
-    private static String filePath = "/tmp/ECEdataSS/storage.txt";
-    private static String valueSizeMapPath = "/tmp/ECEdataSS/vsmap.ser";
-    private static String valueLocationMapPath = "/tmp/ECEdataSS/vlmap.ser";
-    private Semaphore masterLock = new Semaphore(1);
-    private Map<String, Integer> valueSizeMap = new HashMap<String, Integer>();
-    private Map<String, Long> valueLocationMap = new HashMap<String, Long>();
+    public static final String DEFAULT_DATA_DIR = "/tmp/ECEdataSS/";
+
+    private String dirPath = DEFAULT_DATA_DIR;
+    private String filePath = "/tmp/ECEdataSS/storage.txt";
+    private String legacySizeMapPath = "/tmp/ECEdataSS/vsmap.ser";
+    private String legacyLocationMapPath = "/tmp/ECEdataSS/vlmap.ser";
+    private String legacyJournalPath = "/tmp/ECEdataSS/vjournal.log";
+    private String checkpointPath = "/tmp/ECEdataSS/index.ckpt";
+
+    // The storage file is a log of self-describing records, see Records. A
+    // delete appends a tombstone record. The index can always be rebuilt by
+    // scanning the file from the start. Every record carries a sequence
+    // number, the latest record of a key is the one with the highest.
+    //
+    // In the REUSE allocation mode the slots of overwritten and deleted
+    // records are turned into free blocks in place and kept in a free list
+    // by size. A write that fits a free slot goes there instead of the end
+    // of the file, the rest of the slot becomes a smaller free block. Deletes
+    // only free the slot of the key, no tombstone is written. As records are
+    // no longer in write order, startup always scans the whole file and no
+    // checkpoint is kept.
+    //
+    // A record with an expiry stays in the index until it is deleted, reads
+    // skip it once it expired. Recovery and compaction drop expired records.
+
+    private static final int CHECKPOINT_MAGIC = 0x4b56434c;
+    // Number of records after which the index is checkpointed, startup only
+    // scans the records appended after the last checkpoint.
+    private static final int CHECKPOINT_INTERVAL = 10000;
+
+    // The key filter is sized for twice the keys it starts with and rebuilt
+    // once that many keys were added, and after every compaction, which also
+    // clears out deleted keys.
+    private static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final int MIN_FILTER_KEYS = 64 * 1024;
+
+    // Read buffers are pooled up to this capacity, larger ones are dropped.
+    private static final int POOLED_BUFFER_SIZE = 128 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    // Reads of a REUSE mode record that failed while the index kept pointing
+    // at it, before the record is taken for corrupt.
+    private static final int REUSED_SLOT_RETRIES = 8;
+
+    // Record sizes are packed into the low bits of an index entry, the file
+    // offset of the record into the remaining high bits.
+    private static final int SIZE_BITS = 24;
+    private static final long SIZE_MASK = (1L << SIZE_BITS) - 1;
+
+    // Maps each key to the location of its latest record. Readers only look
+    // up the index, writers serialize on appendLock which guards the tail of
+    // the storage file.
+    private volatile PackedKeyIndex index = new PackedKeyIndex();
+    private ReentrantLock appendLock = new ReentrantLock();
+    // The stored keys in key order, for scans. Point lookups only use the
+    // index, writers update both under appendLock.
+    private ConcurrentSkipListSet<String> orderedKeys = new ConcurrentSkipListSet<String>();
+    private int recordsSinceCheckpoint = 0;
+    private long recoveredRecords = 0;
+
+    // Bloom filter over the stored keys, lookups of absent keys mostly end
+    // here without touching the index.
+    private volatile BloomFilter keyFilter = new BloomFilter(MIN_FILTER_KEYS, FILTER_FALSE_POSITIVE_RATE);
+    private int filterCapacity = MIN_FILTER_KEYS;
+    private int filterKeys = 0;
+    private LongAdder filterNegatives = new LongAdder();
+    private LongAdder filterFalsePositives = new LongAdder();
+
+    private DurabilityMode durabilityMode = DurabilityMode.NONE;
+    private DurabilityTracker durability;
+
+    // Next record sequence number, assigned under appendLock.
+    private long nextSequence = 0;
+
+    // Free slots of the REUSE mode by slot size, guarded by appendLock.
+    private AllocationMode allocationMode = AllocationMode.APPEND;
+    private TreeMap<Integer, ArrayDeque<Long>> freeSlots = new TreeMap<Integer, ArrayDeque<Long>>();
+    private long freeBytes = 0;
+    private int freeSlotCount = 0;
+    private long reusedWrites = 0;
+    // While snapshots are open no slot is rewritten, freed slots wait here.
+    private int openSnapshots = 0;
+    private List<Long> deferredFrees = new ArrayList<Long>();
+
+    // Sum of the sizes of all records still referenced by the index. Everything
+    // else in the storage file is garbage left behind by updates and deletes.
+    private long liveBytes = 0;
+    private long reclaimedBytes = 0;
+    private StorageCompactor compactor;
+    private volatile int compressionThreshold = Records.COMPRESSION_THRESHOLD;
+
+    // The storage file stays open, values are read with positional reads so
+    // concurrent gets share the channel. Gets hold the read lock for the index
+    // lookup and the read, the write lock is taken while the file is swapped
+    // or cleared.
+    private RandomAccessFile storageFile;
+    private FileChannel storageChannel;
+    private volatile long storageLength = 0;
+    private ReentrantReadWriteLock channelLock = new ReentrantReadWriteLock();
+    private ConcurrentLinkedQueue<ByteBuffer> readBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
 
     /**
      * Instantiate a DataManager object
@@ -38,123 +156,1004 @@ public class FileManager {
      *           and "LFU".
      */
     public FileManager(String nodeName) {
+        this(nodeName, DurabilityMode.NONE);
+    }
+
+    /**
+     * @param nodeName name of the server, used to name the storage files
+     * @param durabilityMode when writes are forced to disk, NONE leaves it to
+     *           the OS, SYNC forces every write before it returns and
+     *           GROUP_COMMIT forces batches of writes, see awaitDurable()
+     */
+    public FileManager(String nodeName, DurabilityMode durabilityMode) {
+        this(nodeName, durabilityMode, AllocationMode.APPEND);
+    }
+
+    /**
+     * @param allocationMode APPEND writes every record at the end of the
+     *           storage file, REUSE rewrites the slots of overwritten and
+     *           deleted records where they fit
+     */
+    public FileManager(String nodeName, DurabilityMode durabilityMode, AllocationMode allocationMode) {
+        this(DEFAULT_DATA_DIR, nodeName, durabilityMode, allocationMode);
+    }
+
+    /**
+     * @param dataDir directory the storage files are kept in, created if missing
+     */
+    public FileManager(String dataDir, String nodeName, DurabilityMode durabilityMode,
+                       AllocationMode allocationMode) {
+        this.durabilityMode = durabilityMode;
+        this.allocationMode = allocationMode;
+        this.dirPath = dataDir.endsWith(File.separator) ? dataDir : dataDir + File.separator;
         try {
             filePath = dirPath + "storage_" + nodeName + ".txt";
-            valueSizeMapPath = dirPath + "vsmap_" + nodeName + ".ser";
-            valueLocationMapPath = dirPath + "vlmap_" + nodeName + ".ser";
-            readMaps();
-            createStorage();
+            legacySizeMapPath = dirPath + "vsmap_" + nodeName + ".ser";
+            legacyLocationMapPath = dirPath + "vlmap_" + nodeName + ".ser";
+            legacyJournalPath = dirPath + "vjournal_" + nodeName + ".log";
+            checkpointPath = dirPath + "index_" + nodeName + ".ckpt";
+            loadStorage();
         } catch (Exception e) {
             logger.error("Error! Could not construct File Manager!", e);
         }
+        durability = new DurabilityTracker(this, durabilityMode);
+        durability.start();
     }
 
     public FileManager() {
         try {
-            readMaps();
-            createStorage();
+            loadStorage();
         } catch (Exception e) {
             logger.error("Error! Could not construct File Manager!", e);
         }
+        durability = new DurabilityTracker(this, durabilityMode);
+        durability.start();
     }
 
+    // A key whose record expired is not in storage, like for getKV().
     public boolean inStorage(String key) throws Exception {
-        masterLock.acquire();
-        boolean result = valueLocationMap.containsKey(key);
-        masterLock.release();
-        return result;
+        if (!mightContain(key)) return false;
+        channelLock.readLock().lock();
+        ByteBuffer buffer = null;
+        try {
+            buffer = readLiveRecord(key);
+            return buffer != null && !Records.isExpired(buffer.array(), 0, System.currentTimeMillis());
+        } finally {
+            channelLock.readLock().unlock();
+            if (buffer != null) returnReadBuffer(buffer);
+        }
+    }
+
+    public boolean mightContain(String key) {
+        if (keyFilter.mightContain(key)) return true;
+        filterNegatives.increment();
+        return false;
     }
 
     public String getKV(String key) throws Exception {
-        masterLock.acquire();
-        if (!valueLocationMap.containsKey(key)) {
-            masterLock.release();
-            return null;
-        }
+        if (!mightContain(key)) return null;
+        channelLock.readLock().lock();
+        ByteBuffer buffer = null;
         try {
-            long location = valueLocationMap.get(key);
-            RandomAccessFile raf = new RandomAccessFile(filePath, "r");
-            raf.seek(location);
-            byte[] result = new byte[valueSizeMap.get(key)];
-            raf.read(result);
-            raf.close();
-            return new String(result);
+            buffer = readLiveRecord(key);
+            if (buffer == null) return null;
+            byte[] record = buffer.array();
+            if (Records.isExpired(record, 0, System.currentTimeMillis())) return null;
+            return decodeValue(record, buffer.limit());
         } catch (Exception e) {
             return null;
         } finally {
-            masterLock.release();
+            channelLock.readLock().unlock();
+            if (buffer != null) returnReadBuffer(buffer);
         }
     }
 
+    private static String decodeValue(byte[] record, int size) throws IOException {
+        if (Records.isDeflated(record, 0)) {
+            return new String(Records.value(record, 0));
+        }
+        int valueOffset = Records.valueOffset(record, 0);
+        return new String(record, valueOffset, size - valueOffset);
+    }
+
+    /**
+     * Reads the record the index holds for the key into a pooled buffer,
+     * whose limit is the record size. Null if the index has none or the
+     * record is unreadable. Caller holds the read lock of channelLock.
+     */
+    private ByteBuffer readLiveRecord(String key) throws IOException {
+        long entry = index.get(key);
+        int retries = 0;
+        while (true) {
+            if (entry == PackedKeyIndex.NOT_FOUND) {
+                filterFalsePositives.increment();
+                return null;
+            }
+            ByteBuffer buffer = readRecord(entry);
+            if (buffer != null) {
+                byte[] record = buffer.array();
+                if (!Records.isFree(record, 0) && Records.checksumMatches(record, 0, sizeOf(entry))
+                        && Records.key(record, 0).equals(key)) {
+                    return buffer;
+                }
+                returnReadBuffer(buffer);
+            }
+            // In the REUSE mode the slot may have been freed and taken by
+            // another record since the index was read, even by the key again
+            // after a delete, which leaves the same index entry. An entry
+            // pointing at the slot again is published once its record is
+            // written, so the slot is read again.
+            long current = index.get(key);
+            if (current == entry
+                    && (allocationMode != AllocationMode.REUSE || ++retries > REUSED_SLOT_RETRIES)) {
+                logger.error("Checksum mismatch in record of " + key + " at " + offsetOf(entry));
+                return null;
+            }
+            entry = current;
+        }
+    }
+
+    // Reads the record of an index entry into a pooled buffer, null if the
+    // file ends before it.
+    private ByteBuffer readRecord(long entry) throws IOException {
+        long location = offsetOf(entry);
+        ByteBuffer buffer = takeReadBuffer(sizeOf(entry));
+        while (buffer.hasRemaining()) {
+            int read = storageChannel.read(buffer, location + buffer.position());
+            if (read < 0) {
+                returnReadBuffer(buffer);
+                return null;
+            }
+        }
+        return buffer;
+    }
+
     public void putKV(String key, String value) throws Exception {
-        masterLock.acquire();
-        try {
-            RandomAccessFile raf = new RandomAccessFile(filePath, "rw");
-            raf.seek(raf.length());
-            valueLocationMap.put(key, raf.length());
-            raf.write(value.getBytes());
-            raf.close();
-            valueSizeMap.put(key, value.getBytes().length);
-            writeMaps();
+        putKV(key, value, 0);
+    }
+
+    public void putKV(String key, String value, long expiresAt) throws Exception {
+        // Sequence number is assigned once the write order is known.
+        ByteBuffer record = Records.encodePut(key, value.getBytes(), compressionThreshold, 0, expiresAt);
+        int size = record.remaining();
+        if (size > SIZE_MASK) {
+            throw new IllegalArgumentException("Value of " + value.length() + " characters is too large");
+        }
+        appendLock.lock();
+        try {
+            Records.setSequence(record, nextSequence++);
+            long location = allocationMode == AllocationMode.REUSE ? takeFreeSlot(size) : -1;
+            if (location >= 0) {
+                writeFully(record, location);
+                reusedWrites++;
+            } else {
+                location = appendRecord(record);
+            }
+            // The filter learns the key before the index, a lookup never
+            // finds a key in the index that the filter rules out.
+            keyFilter.add(key);
+            long oldEntry = index.put(key, pack(location, size));
+            if (oldEntry != PackedKeyIndex.NOT_FOUND) {
+                liveBytes -= sizeOf(oldEntry);
+                if (allocationMode == AllocationMode.REUSE) freeSlot(oldEntry);
+            } else {
+                orderedKeys.add(key);
+                if (++filterKeys > filterCapacity) rebuildKeyFilter(index);
+            }
+            liveBytes += size;
+            completeWrite();
         } finally {
-            masterLock.release();
+            appendLock.unlock();
         }
     }
 
     public void delete(String key) throws Exception {
-        masterLock.acquire();
-        valueSizeMap.remove(key);
-        valueLocationMap.remove(key);
-        writeMaps();
-        masterLock.release();
+        ByteBuffer record = Records.encodeTombstone(key, 0);
+        appendLock.lock();
+        try {
+            if (!index.containsKey(key)) return;
+            if (allocationMode != AllocationMode.REUSE) {
+                Records.setSequence(record, nextSequence++);
+                appendRecord(record);
+            }
+            long oldEntry = index.remove(key);
+            if (oldEntry != PackedKeyIndex.NOT_FOUND) {
+                liveBytes -= sizeOf(oldEntry);
+                if (allocationMode == AllocationMode.REUSE) freeSlot(oldEntry);
+            }
+            orderedKeys.remove(key);
+            completeWrite();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the index under appendLock and reads the records through a
+     * handle of its own, which keeps the file as it was also after a
+     * compaction swapped in a new one. Records below the end of the file do
+     * not change in the APPEND mode. In the REUSE mode no slot is rewritten
+     * while a snapshot is open, the slots freed meanwhile are released once
+     * the last snapshot is closed.
+     */
+    public StorageSnapshot snapshot() throws IOException {
+        appendLock.lock();
+        try {
+            final PackedKeyIndex entries = index.copy();
+            final RandomAccessFile file = new RandomAccessFile(filePath, "r");
+            openSnapshots++;
+            return new StorageSnapshot() {
+                private boolean closed = false;
+
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    final PackedKeyIndex.Cursor cursor = entries.cursor();
+                    final long now = System.currentTimeMillis();
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private Map.Entry<String, String> next = advance();
+
+                        private Map.Entry<String, String> advance() {
+                            while (cursor.next()) {
+                                Map.Entry<String, String> pair = readPair();
+                                if (pair != null) return pair;
+                            }
+                            return null;
+                        }
+
+                        // The pair at the cursor, null if it expired.
+                        private Map.Entry<String, String> readPair() {
+                            try {
+                                int size = sizeOf(cursor.entry());
+                                ByteBuffer buffer = ByteBuffer.allocate(size);
+                                while (buffer.hasRemaining()) {
+                                    long position = offsetOf(cursor.entry()) + buffer.position();
+                                    if (file.getChannel().read(buffer, position) < 0) {
+                                        throw new IOException("Snapshot record of " + cursor.key() + " is cut off");
+                                    }
+                                }
+                                byte[] record = buffer.array();
+                                if (!Records.checksumMatches(record, 0, size)) {
+                                    throw new IOException("Checksum mismatch in snapshot record of " + cursor.key());
+                                }
+                                if (Records.isExpired(record, 0, now)) return null;
+                                return new AbstractMap.SimpleImmutableEntry<String, String>(
+                                        cursor.key(), decodeValue(record, size));
+                            } catch (IOException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+
+                        public boolean hasNext() {
+                            return next != null;
+                        }
+
+                        public Map.Entry<String, String> next() {
+                            if (next == null) throw new NoSuchElementException();
+                            Map.Entry<String, String> pair = next;
+                            next = advance();
+                            return pair;
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                public void close() {
+                    appendLock.lock();
+                    try {
+                        if (closed) return;
+                        closed = true;
+                        file.close();
+                        closeSnapshot();
+                    } catch (IOException e) {
+                        logger.error("Could not close snapshot of " + filePath, e);
+                    } finally {
+                        appendLock.unlock();
+                    }
+                }
+            };
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Releases the slots freed while snapshots were open. Caller holds appendLock.
+    private void closeSnapshot() throws IOException {
+        if (--openSnapshots > 0) return;
+        List<Long> frees = deferredFrees;
+        deferredFrees = new ArrayList<Long>();
+        for (long entry : frees) {
+            freeSlot(entry);
+        }
     }
 
     public void clearStorage() throws Exception {
-        masterLock.acquire();
+        appendLock.lock();
+        channelLock.writeLock().lock();
         try {
-            File storageFolder = new File(dirPath);
-            try{
-                FileUtils.cleanDirectory(storageFolder);
-            }catch(Exception e){
-                storageFolder.mkdirs();
+            closeStorage();
+            // Only the files of this storage, other storages may share the directory.
+            String[] paths = {filePath, filePath + ".compact", compactMarkerPath(),
+                    checkpointPath, checkpointPath + ".compact", checkpointPath + ".tmp"};
+            for (String path : paths) {
+                Files.deleteIfExists(new File(path).toPath());
             }
             createStorage();
-            valueSizeMap.clear();
-            valueLocationMap.clear();
-            writeMaps();
+            openStorage();
+            index.clear();
+            orderedKeys.clear();
+            clearFreeSlots();
+            liveBytes = 0;
+            rebuildKeyFilter(index);
+            checkpoint();
         } finally {
-            masterLock.release();
+            channelLock.writeLock().unlock();
+            appendLock.unlock();
         }
     }
 
-    private void readMaps() throws Exception{
-        File vsFile = new File (valueSizeMapPath);
-        File vlFile = new File (valueLocationMapPath);
-        if (vsFile.exists() && vlFile.exists()){
-            FileInputStream vsStream = new FileInputStream(valueSizeMapPath);
-            FileInputStream vlStream = new FileInputStream(valueLocationMapPath);
-            ObjectInputStream vsOStream = new ObjectInputStream(vsStream);
-            ObjectInputStream vlOStream = new ObjectInputStream(vlStream);
-            this.valueSizeMap = (HashMap<String, Integer>) vsOStream.readObject();
-            this.valueLocationMap = (HashMap<String, Long>) vlOStream.readObject();
-            vsOStream.close();
-            vlOStream.close();
-            vsStream.close();
-            vlStream.close();
+    // Appends a record at the end of the storage file, caller holds appendLock.
+    // Returns the offset of the record.
+    private long appendRecord(ByteBuffer record) throws Exception {
+        long location = storageLength;
+        int size = record.remaining();
+        writeFully(record, location);
+        storageLength = location + size;
+
+        recordsSinceCheckpoint++;
+        if (recordsSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+            checkpoint();
         }
+        return location;
+    }
+
+    private void writeFully(ByteBuffer buffer, long location) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            storageChannel.write(buffer, location + buffer.position() - start);
+        }
+    }
+
+    // Takes a free slot for a record of the given size and returns its
+    // offset, or -1 if none fits. A larger slot is split, its rest becomes a
+    // free block before the record is written, so a crash in between leaves
+    // the whole slot free. Caller holds appendLock.
+    private long takeFreeSlot(int size) throws IOException {
+        if (openSnapshots > 0) return -1;
+        Map.Entry<Integer, ArrayDeque<Long>> slots = freeSlots.ceilingEntry(size);
+        // The rest of a split slot must hold at least a free block header.
+        if (slots != null && slots.getKey() != size && slots.getKey() - size < Records.HEADER_SIZE) {
+            slots = freeSlots.ceilingEntry(size + Records.HEADER_SIZE);
+        }
+        if (slots == null) return -1;
+        int slotSize = slots.getKey();
+        long location = slots.getValue().poll();
+        if (slots.getValue().isEmpty()) freeSlots.remove(slotSize);
+        freeBytes -= slotSize;
+        freeSlotCount--;
+        if (slotSize > size) {
+            writeFully(Records.encodeFreeHeader(slotSize - size), location + size);
+            addFreeSlot(location + size, slotSize - size);
+        }
+        return location;
+    }
+
+    // Turns the record of an index entry into a free block and remembers the
+    // slot. Caller holds appendLock.
+    private void freeSlot(long entry) throws IOException {
+        if (openSnapshots > 0) {
+            deferredFrees.add(entry);
+            return;
+        }
+        markFree(offsetOf(entry));
+        addFreeSlot(offsetOf(entry), sizeOf(entry));
+    }
+
+    // Sets FLAG_FREE in the header of the block at the location, a single
+    // byte write that keeps the lengths of the block.
+    private void markFree(long location) throws IOException {
+        ByteBuffer flags = ByteBuffer.allocate(1);
+        storageChannel.read(flags, location + Records.FLAGS_OFFSET);
+        flags.put(0, (byte) (flags.get(0) | Records.FLAG_FREE));
+        flags.clear();
+        writeFully(flags, location + Records.FLAGS_OFFSET);
+    }
+
+    private void addFreeSlot(long location, int size) {
+        ArrayDeque<Long> slots = freeSlots.get(size);
+        if (slots == null) {
+            slots = new ArrayDeque<Long>();
+            freeSlots.put(size, slots);
+        }
+        slots.add(location);
+        freeBytes += size;
+        freeSlotCount++;
+    }
+
+    private void clearFreeSlots() {
+        freeSlots.clear();
+        freeBytes = 0;
+        freeSlotCount = 0;
+        deferredFrees.clear();
+    }
+
+    public AllocationMode getAllocationMode() {
+        return allocationMode;
+    }
+
+    // Bytes of the storage file in free slots, REUSE mode only.
+    public long getFreeBytes() {
+        return freeBytes;
+    }
+
+    public int getFreeSlotCount() {
+        return freeSlotCount;
+    }
+
+    // Share of the storage file in free slots.
+    public double getFragmentation() {
+        long fileLength = getStorageLength();
+        return fileLength == 0 ? 0 : (double) freeBytes / fileLength;
     }
 
-    private void writeMaps() throws Exception{
-        FileOutputStream vsStream = new FileOutputStream(valueSizeMapPath);
-        FileOutputStream vlStream = new FileOutputStream(valueLocationMapPath);
-        ObjectOutputStream vsOStream = new ObjectOutputStream(vsStream);
-        ObjectOutputStream vlOStream = new ObjectOutputStream(vlStream);
-        vsOStream.writeObject(this.valueSizeMap);
-        vlOStream.writeObject(this.valueLocationMap);
-        vsOStream.close();
-        vlOStream.close();
-        vsStream.close();
-        vlStream.close();
+    // Average size of a free slot, small slots fit few records.
+    public long getAverageFreeSlotBytes() {
+        return freeSlotCount == 0 ? 0 : freeBytes / freeSlotCount;
+    }
+
+    // Number of writes that went into a free slot instead of the file end.
+    public long getReusedWrites() {
+        return reusedWrites;
+    }
+
+    // Called under appendLock once a write reached the OS.
+    private void completeWrite() throws IOException {
+        if (durabilityMode == DurabilityMode.SYNC) {
+            storageChannel.force(false);
+            return;
+        }
+        durability.writeCompleted();
+    }
+
+    /**
+     * Blocks until the last write of the calling thread is on disk. Returns
+     * immediately unless the durability mode is GROUP_COMMIT, SYNC writes are
+     * durable when they return and NONE makes no promise.
+     */
+    public void awaitDurable() throws InterruptedException {
+        durability.awaitDurable();
+    }
+
+    // Number of writes which reached the OS but are not forced to disk yet.
+    public long getPendingWrites() {
+        return durability.getPendingWrites();
+    }
+
+    /**
+     * Forces the storage file to disk and wakes up the writers
+     * waiting in awaitDurable() for any write completed before the call.
+     */
+    public void sync() throws IOException {
+        long sequence = durability.startSync();
+        if (sequence < 0) return;
+        channelLock.readLock().lock();
+        try {
+            storageChannel.force(false);
+        } finally {
+            channelLock.readLock().unlock();
+        }
+        durability.syncCompleted(sequence);
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    /**
+     * @param compressionThreshold values of at least this many bytes are
+     *           stored deflated when that pays off, 0 disables compression.
+     *           Records already written keep their encoding.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    // Compacts the storage file in the background once it holds too much garbage.
+    public void startCompactor() {
+        compactor = new StorageCompactor(this);
+        compactor.start();
+    }
+
+    public StorageCompactor getCompactor() {
+        return compactor;
+    }
+
+    // Stops the background threads, the group committer after a final sync,
+    // and checkpoints the index so that the next start does not have to scan
+    // the storage file.
+    public void close() {
+        if (compactor != null) compactor.stop();
+        durability.stop();
+        appendLock.lock();
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            logger.error("Could not checkpoint storage on close", e);
+        } finally {
+            appendLock.unlock();
+        }
+        try {
+            sync();
+        } catch (IOException e) {
+            logger.error("Could not sync storage on close", e);
+        }
+    }
+
+    private static long pack(long location, int size) {
+        return (location << SIZE_BITS) | size;
+    }
+
+    private static long offsetOf(long entry) {
+        return entry >>> SIZE_BITS;
+    }
+
+    private static int sizeOf(long entry) {
+        return (int) (entry & SIZE_MASK);
+    }
+
+    private void loadStorage() throws Exception {
+        createStorage();
+        retireLegacyStorage();
+        recoverCompaction();
+        openStorage();
+        long start = System.currentTimeMillis();
+        if (allocationMode == AllocationMode.REUSE) {
+            recoverSlots();
+        } else {
+            long scanFrom = readCheckpoint();
+            recoverLog(scanFrom);
+        }
+        computeLiveBytes();
+        rebuildKeyFilter(index);
+        orderedKeys.clear();
+        for (String key : index) {
+            orderedKeys.add(key);
+        }
+        logger.info("Recovered " + index.size() + " keys from " + filePath + ", scanned "
+                + recoveredRecords + " records in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // Loads the last checkpoint of the index and returns the storage offset
+    // it is valid up to. A missing, torn or corrupt checkpoint, or one that
+    // is ahead of the storage file, is ignored and the whole file is scanned.
+    private long readCheckpoint() {
+        index.clear();
+        File checkpointFile = new File(checkpointPath);
+        if (!checkpointFile.exists()) return 0;
+        try {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(checkpointFile)), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            try {
+                if (in.readInt() != CHECKPOINT_MAGIC) throw new IOException("Bad checkpoint magic");
+                long logEnd = in.readLong();
+                long sequence = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    byte[] keyBytes = new byte[in.readUnsignedShort()];
+                    in.readFully(keyBytes);
+                    index.put(new String(keyBytes, StandardCharsets.UTF_8), in.readLong());
+                }
+                long crc = checked.getChecksum().getValue();
+                if (in.readLong() != crc) throw new IOException("Checkpoint checksum mismatch");
+                if (logEnd > storageLength) throw new IOException("Checkpoint is ahead of the storage file");
+                nextSequence = sequence;
+                return logEnd;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Ignoring checkpoint " + checkpointPath + ", rebuilding the index from the log", e);
+            index.clear();
+            return 0;
+        }
+    }
+
+    // Checkpoints the index together with the storage offset it reflects. It
+    // is written to a temporary file and moved into place, the trailing
+    // checksum catches a checkpoint that was torn anyway.
+    private void writeCheckpoint(PackedKeyIndex entries, long logEnd, String path) throws Exception{
+        File tmpFile = new File(path + ".tmp");
+        CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        try {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(logEnd);
+            out.writeLong(nextSequence);
+            out.writeInt(entries.size());
+            PackedKeyIndex.Cursor cursor = entries.cursor();
+            while (cursor.next()) {
+                byte[] keyBytes = cursor.key().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(keyBytes.length);
+                out.write(keyBytes);
+                out.writeLong(cursor.entry());
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), new File(path).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Applies the records from the given offset to the end of the storage file
+    // on top of the index. The first torn or corrupt record ends the scan and
+    // the file is cut off there, new records are appended after the last
+    // intact one. An expired record deletes its key like a tombstone.
+    private void recoverLog(long from) throws Exception {
+        long now = System.currentTimeMillis();
+        long validLength = from;
+        recoveredRecords = 0;
+        Records.Scanner scanner = new Records.Scanner(new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(storageChannel.position(from)), 64 * 1024)), SIZE_MASK);
+        while (scanner.next()) {
+            if (scanner.isFree()) {
+                // Left behind by the REUSE mode, holds no record.
+                validLength += scanner.size();
+                continue;
+            }
+            nextSequence = Math.max(nextSequence, scanner.sequence() + 1);
+            if (scanner.isTombstone() || scanner.isExpired(now)) {
+                index.remove(scanner.key());
+            } else {
+                index.put(scanner.key(), pack(validLength, scanner.size()));
+            }
+            validLength += scanner.size();
+            recoveredRecords++;
+        }
+        recordsSinceCheckpoint = (int) Math.min(recoveredRecords, CHECKPOINT_INTERVAL);
+
+        if (validLength < storageLength) {
+            logger.warn("Truncating torn or corrupt storage tail of " + filePath + " at " + validLength
+                    + ", " + (storageLength - validLength) + " bytes dropped");
+            storageChannel.truncate(validLength);
+            storageLength = validLength;
+        }
+    }
+
+    // Rebuilds the index and the free list of the REUSE mode from a scan of
+    // the whole storage file. Of several records of a key the one with the
+    // highest sequence wins, the others, tombstones and expired records become
+    // free slots. A corrupt block inside the file is freed, a torn one at its
+    // end is cut off.
+    private void recoverSlots() throws Exception {
+        long now = System.currentTimeMillis();
+        index.clear();
+        clearFreeSlots();
+        // Any checkpoint is stale once slots were rewritten in place.
+        new File(checkpointPath).delete();
+        nextSequence = 0;
+        recoveredRecords = 0;
+        long location = 0;
+        Records.Scanner scanner = new Records.Scanner(new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(storageChannel.position(0)), 64 * 1024)), SIZE_MASK);
+        while (scanner.nextBlock()) {
+            int size = scanner.size();
+            if (location + size > storageLength) break;
+            if (scanner.isFree()) {
+                addFreeSlot(location, size);
+            } else if (!scanner.isValid()) {
+                logger.warn("Freeing corrupt record of " + filePath + " at " + location);
+                markFree(location);
+                addFreeSlot(location, size);
+            } else {
+                nextSequence = Math.max(nextSequence, scanner.sequence() + 1);
+                recoveredRecords++;
+                applyRecoveredRecord(scanner.key(), scanner.isTombstone() || scanner.isExpired(now),
+                        scanner.sequence(), location, size);
+            }
+            location += size;
+        }
+        if (location < storageLength) {
+            logger.warn("Truncating torn storage tail of " + filePath + " at " + location + ", "
+                    + (storageLength - location) + " bytes dropped");
+            storageChannel.truncate(location);
+            storageLength = location;
+        }
+    }
+
+    private void applyRecoveredRecord(String key, boolean tombstone, long sequence,
+                                      long location, int size) throws IOException {
+        long entry = index.get(key);
+        if (entry != PackedKeyIndex.NOT_FOUND) {
+            ByteBuffer header = ByteBuffer.allocate(Records.HEADER_SIZE + Records.SEQUENCE_SIZE);
+            storageChannel.read(header, offsetOf(entry));
+            if (Records.sequence(header.array(), 0) > sequence) {
+                markFree(location);
+                addFreeSlot(location, size);
+                return;
+            }
+            freeSlot(entry);
+            index.remove(key);
+        }
+        if (tombstone) {
+            markFree(location);
+            addFreeSlot(location, size);
+        } else {
+            index.put(key, pack(location, size));
+        }
+    }
+
+    // Storage files of the old format hold raw values without record headers
+    // and cannot be scanned. They are moved aside instead of being cut off as
+    // a corrupt tail.
+    private void retireLegacyStorage() throws Exception {
+        File legacySizeMap = new File(legacySizeMapPath);
+        File legacyJournal = new File(legacyJournalPath);
+        if (!legacySizeMap.exists() && !legacyJournal.exists()) return;
+        logger.warn("Moving storage of the old format aside to " + filePath + ".legacy");
+        Files.move(new File(filePath).toPath(), new File(filePath + ".legacy").toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        legacySizeMap.delete();
+        new File(legacyLocationMapPath).delete();
+        legacyJournal.delete();
+        new File(checkpointPath).delete();
+        createStorage();
+    }
+
+    private void openStorage() throws Exception {
+        storageFile = new RandomAccessFile(filePath, "rw");
+        storageChannel = storageFile.getChannel();
+        storageLength = storageChannel.size();
+    }
+
+    private void closeStorage() {
+        try {
+            storageFile.close();
+        } catch (IOException e) {
+            logger.error("Could not close storage file", e);
+        }
+    }
+
+    private ByteBuffer takeReadBuffer(int size) {
+        ByteBuffer buffer = readBuffers.poll();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, 4096));
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    private void returnReadBuffer(ByteBuffer buffer) {
+        if (buffer.capacity() <= POOLED_BUFFER_SIZE && readBuffers.size() < MAX_POOLED_BUFFERS) {
+            readBuffers.offer(buffer);
+        }
+    }
+
+    // Persists the index up to the current end of the storage file. The file
+    // is forced first so a checkpoint never refers to records lost in a crash.
+    // Caller holds appendLock.
+    private void checkpoint() throws Exception {
+        recordsSinceCheckpoint = 0;
+        if (allocationMode == AllocationMode.REUSE) return;
+        storageChannel.force(false);
+        writeCheckpoint(index, storageLength, checkpointPath);
+        recordsSinceCheckpoint = 0;
+    }
+
+    // Builds a key filter for the keys of the index with room for as many
+    // again. Caller holds appendLock or has the index to itself.
+    private void rebuildKeyFilter(PackedKeyIndex keys) {
+        int capacity = Math.max(MIN_FILTER_KEYS, keys.size() * 2);
+        BloomFilter filter = new BloomFilter(capacity, FILTER_FALSE_POSITIVE_RATE);
+        PackedKeyIndex.Cursor cursor = keys.cursor();
+        while (cursor.next()) {
+            filter.add(cursor.key());
+        }
+        keyFilter = filter;
+        filterCapacity = capacity;
+        filterKeys = keys.size();
+    }
+
+    public double getFilterFalsePositiveRate() {
+        long falsePositives = filterFalsePositives.sum();
+        long probes = falsePositives + filterNegatives.sum();
+        return probes == 0 ? 0 : (double) falsePositives / probes;
+    }
+
+    // Number of records scanned by the last recovery, i.e. written after the
+    // last checkpoint.
+    public long getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    // Fraction of the storage file that is no longer referenced by the index.
+    public double getGarbageRatio() {
+        long fileLength = getStorageLength();
+        if (fileLength == 0) return 0;
+        return (double) (fileLength - liveBytes) / fileLength;
+    }
+
+    public String getStoragePath() {
+        return filePath;
+    }
+
+    public long getStorageLength() {
+        return storageLength;
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    /**
+     * Rewrites the live records into a new storage file and swaps it in,
+     * records that expired by the time they are copied are left out.
+     * The bulk copy runs without holding appendLock, only the copy of values
+     * appended meanwhile and the swap itself do, so gets and puts continue
+     * while the compaction is running. In the REUSE mode records below the
+     * end of the file change in place, so writes wait for the whole compaction.
+     * @return the number of bytes reclaimed
+     */
+    public long compact() throws Exception {
+        if (allocationMode != AllocationMode.REUSE) return compactFile();
+        appendLock.lock();
+        try {
+            long reclaimed = compactFile();
+            clearFreeSlots();
+            new File(checkpointPath).delete();
+            return reclaimed;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private long compactFile() throws Exception {
+        String compactFilePath = filePath + ".compact";
+        PackedKeyIndex snapshot;
+        long snapshotEnd;
+
+        appendLock.lock();
+        try {
+            snapshot = index.copy();
+            snapshotEnd = getStorageLength();
+        } finally {
+            appendLock.unlock();
+        }
+
+        // Everything below snapshotEnd is immutable, the storage file is append only
+        // or, in the REUSE mode, appendLock is held.
+        PackedKeyIndex compactedEntries = new PackedKeyIndex();
+        long now = System.currentTimeMillis();
+        RandomAccessFile source = new RandomAccessFile(filePath, "r");
+        RandomAccessFile target = new RandomAccessFile(compactFilePath, "rw");
+        try {
+            target.setLength(0);
+            PackedKeyIndex.Cursor cursor = snapshot.cursor();
+            while (cursor.next()) {
+                int size = sizeOf(cursor.entry());
+                byte[] value = new byte[size];
+                source.seek(offsetOf(cursor.entry()));
+                source.readFully(value);
+                if (Records.isExpired(value, 0, now)) continue;
+                compactedEntries.put(cursor.key(), pack(target.getFilePointer(), size));
+                target.write(value);
+            }
+        } finally {
+            source.close();
+        }
+        snapshot = null;
+
+        appendLock.lock();
+        try {
+            long oldLength = getStorageLength();
+            long tailStart = target.getFilePointer();
+
+            // Copy the records appended while the bulk copy was running.
+            source = new RandomAccessFile(filePath, "r");
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                source.seek(snapshotEnd);
+                int read;
+                while ((read = source.read(buffer)) > 0) {
+                    target.write(buffer, 0, read);
+                }
+            } finally {
+                source.close();
+            }
+            target.getChannel().force(true);
+            target.close();
+
+            PackedKeyIndex newIndex = new PackedKeyIndex();
+            PackedKeyIndex.Cursor cursor = index.cursor();
+            List<String> expiredKeys = new ArrayList<String>();
+            while (cursor.next()) {
+                long location = offsetOf(cursor.entry());
+                if (location >= snapshotEnd) {
+                    long newLocation = tailStart + (location - snapshotEnd);
+                    newIndex.put(cursor.key(), pack(newLocation, sizeOf(cursor.entry())));
+                } else {
+                    long entry = compactedEntries.get(cursor.key());
+                    if (entry == PackedKeyIndex.NOT_FOUND) {
+                        expiredKeys.add(cursor.key());
+                        liveBytes -= sizeOf(cursor.entry());
+                        continue;
+                    }
+                    newIndex.put(cursor.key(), entry);
+                }
+            }
+
+            // The index of the compacted file is written next to it, the marker
+            // file is the commit point, recoverCompaction() rolls forward from it.
+            writeCheckpoint(newIndex, tailStart + (oldLength - snapshotEnd), checkpointPath + ".compact");
+            new File(compactMarkerPath()).createNewFile();
+            channelLock.writeLock().lock();
+            try {
+                closeStorage();
+                finishCompaction();
+                openStorage();
+                rebuildKeyFilter(newIndex);
+                index = newIndex;
+            } finally {
+                channelLock.writeLock().unlock();
+            }
+            orderedKeys.removeAll(expiredKeys);
+
+            recordsSinceCheckpoint = 0;
+            long reclaimed = oldLength - getStorageLength();
+            reclaimedBytes += reclaimed;
+            logger.info("Compacted " + filePath + ", reclaimed " + reclaimed + " bytes");
+            return reclaimed;
+        } finally {
+            target.close();
+            if (!new File(compactMarkerPath()).exists()) {
+                new File(compactFilePath).delete();
+            }
+            appendLock.unlock();
+        }
+    }
+
+    private String compactMarkerPath() {
+        return filePath + ".compact.done";
+    }
+
+    // Moves a committed compaction and the checkpoint of its index into place.
+    private void finishCompaction() throws Exception {
+        String[][] moves = {
+                {filePath + ".compact", filePath},
+                {checkpointPath + ".compact", checkpointPath}};
+        for (String[] move : moves) {
+            File from = new File(move[0]);
+            if (from.exists()) {
+                Files.move(from.toPath(), new File(move[1]).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        new File(compactMarkerPath()).delete();
+    }
+
+    // Completes a compaction that was committed before a crash, or throws away
+    // the leftovers of one that was not.
+    private void recoverCompaction() throws Exception {
+        if (new File(compactMarkerPath()).exists()) {
+            logger.info("Completing interrupted compaction of " + filePath);
+            finishCompaction();
+            return;
+        }
+        new File(filePath + ".compact").delete();
+        new File(checkpointPath + ".compact").delete();
+    }
+
+    private void computeLiveBytes() {
+        liveBytes = 0;
+        PackedKeyIndex.Cursor cursor = index.cursor();
+        while (cursor.next()) {
+            liveBytes += sizeOf(cursor.entry());
+        }
     }
 
     private void createStorage() throws Exception{
@@ -166,11 +1165,88 @@ public class FileManager {
         newStorage.createNewFile();
     }
 
-    public Vector<String> getKeys() {
-        Vector<String> keys = new Vector<String>();
-        for (Map.Entry<String, Integer> entry : valueSizeMap.entrySet()) {
-            keys.add(entry.getKey());
+    // Iterates a copy of the index, its cursor is not safe under concurrent
+    // puts. The copy takes the packed arrays, not a String per key.
+    public Iterable<String> getKeys() {
+        return index.copy();
+    }
+
+    /**
+     * Iterates the key-value pairs with startKey <= key < endKey in key order
+     * from the ordered key set, values are read like getKV() and only for
+     * the keys the filter accepts. Weakly consistent, keys deleted while the
+     * scan runs are skipped.
+     */
+    public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey, final KeyFilter filter) {
+        NavigableSet<String> range = orderedKeys;
+        if (startKey != null) range = range.tailSet(startKey, true);
+        if (endKey != null) range = range.headSet(endKey, false);
+        final Iterator<String> keys = range.iterator();
+        return new Iterator<Map.Entry<String, String>>() {
+            private Map.Entry<String, String> next = advance();
+
+            private Map.Entry<String, String> advance() {
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    if (filter != null && !filter.accept(key)) continue;
+                    try {
+                        String value = getKV(key);
+                        if (value != null) return new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Map.Entry<String, String> next() {
+                if (next == null) throw new NoSuchElementException();
+                Map.Entry<String, String> entry = next;
+                next = advance();
+                return entry;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Scans the storage file for the records of the index that carry an
+     * expiry. A record rewritten in place while it is read is skipped.
+     */
+    public Map<String, Long> getExpiries() throws IOException {
+        Map<String, Long> expiries = new HashMap<String, Long>();
+        long end = storageLength;
+        long location = 0;
+        Records.Scanner scanner = new Records.Scanner(new DataInputStream(new BufferedInputStream(
+                new FileInputStream(filePath), 64 * 1024)), SIZE_MASK);
+        try {
+            while (location < end && scanner.nextBlock()) {
+                int size = scanner.size();
+                if (scanner.isValid() && !scanner.isFree() && !scanner.isTombstone() && scanner.expiresAt() != 0
+                        && index.get(scanner.key()) == pack(location, size)) {
+                    expiries.put(scanner.key(), scanner.expiresAt());
+                }
+                location += size;
+            }
+        } finally {
+            scanner.close();
         }
-        return keys;
-    } 
+        return expiries;
+    }
+
+    public int getKeyCount() {
+        return index.size();
+    }
+
+    // Heap or off-heap bytes used by the index.
+    public long getIndexMemoryBytes() {
+        return index.memoryBytes();
+    }
 }
@@ -0,0 +1,85 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+// Background thread of the GROUP_COMMIT durability mode. It forces a
+// StorageEngine to disk as soon as a write is pending, and thereby
+// acknowledges every writer waiting for that batch. Writes arriving while a
+// sync is running form the next batch. A commit interval makes the committer
+// linger for up to that many ms, or until the batch size is reached, before
+// syncing, which trades latency for larger batches on slow disks.
+public class GroupCommitter implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final long COMMIT_INTERVAL_MS = 0;
+    public static final int COMMIT_BATCH_SIZE = 64;
+
+    private StorageEngine storage;
+    private long commitIntervalMs;
+    private int commitBatchSize;
+    private volatile boolean running = false;
+    private final Object commitMonitor = new Object();
+    private Thread thread;
+
+    public GroupCommitter(StorageEngine storage) {
+        this(storage, COMMIT_INTERVAL_MS, COMMIT_BATCH_SIZE);
+    }
+
+    public GroupCommitter(StorageEngine storage, long commitIntervalMs, int commitBatchSize) {
+        this.storage = storage;
+        this.commitIntervalMs = commitIntervalMs;
+        this.commitBatchSize = commitBatchSize;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "group-committer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+    }
+
+    /**
+     * Called by the storage after every write. Wakes the committer for the
+     * first write of a batch and once a full batch is pending.
+     * @param pending writes pending up to and including this one. Taken from
+     *           the write's own sequence number, so of concurrent writers
+     *           exactly the first one after an idle committer sees 1.
+     */
+    public void writeCompleted(long pending) {
+        if (pending == 1 || pending >= commitBatchSize) {
+            synchronized (commitMonitor) {
+                commitMonitor.notify();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                synchronized (commitMonitor) {
+                    while (storage.getPendingWrites() == 0) {
+                        commitMonitor.wait();
+                    }
+                    long deadline = System.currentTimeMillis() + commitIntervalMs;
+                    long remaining = commitIntervalMs;
+                    while (remaining > 0 && storage.getPendingWrites() < commitBatchSize) {
+                        commitMonitor.wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                }
+                storage.sync();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error("Group commit failed", e);
+            }
+        }
+    }
+}
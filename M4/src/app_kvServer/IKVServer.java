@@ -5,7 +5,29 @@ public interface IKVServer {
         None,
         LRU,
         LFU,
-        FIFO
+        FIFO,
+        TinyLFU,
+        ARC,
+        ClockPro,
+        Slab
+    };
+
+    public enum DurabilityMode {
+        NONE,           /* writes are left to the OS to flush */
+        GROUP_COMMIT,   /* writes are forced to disk in batches, replies wait for their batch */
+        SYNC            /* every write is forced to disk before it returns */
+    };
+
+    public enum StorageType {
+        LOG,            /* append-only value log with an in-memory hash index */
+        LSM,            /* log-structured merge tree of sorted segment files */
+        PARTITIONED,    /* value logs split into buckets of the hash ring space */
+        LOG_REUSE       /* value log that rewrites freed slots in place */
+    };
+
+    public enum AllocationMode {
+        APPEND,         /* every record is appended, compaction reclaims old ones */
+        REUSE           /* records go into freed slots of the same size or larger */
     };
 
     /**
@@ -1,6 +1,7 @@
 package app_kvServer;
 
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -22,6 +23,8 @@ import shared.messages.ProtoKVMessage;
 
 import app_kvServer.DataManager;
 import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.IKVServer.DurabilityMode;
+import app_kvServer.IKVServer.StorageType;
 import app_kvServer.ZkInteraction;
 
 import server_exceptions.NotInHashRangeException;
@@ -33,6 +36,9 @@ public class KVServer implements IKVServer, Runnable {
 
 	private static final int MAX_KEY_SIZE =20;
 	private static final int MAX_VALUE_SIZE =120*1024;
+	// Scan pages are cut once their keys and values reach this many chars.
+	public static final int SCAN_PAGE_CHARS = 256*1024;
+	public static final int SCAN_PAGE_SIZE = 1000;
 
 	private static Logger logger = Logger.getRootLogger();
 
@@ -55,6 +61,8 @@ public class KVServer implements IKVServer, Runnable {
 	private static int cacheSize;
 	private static String strategy;
 	private static CacheStrategy strategyEnum;
+	private DurabilityMode durabilityMode = DurabilityMode.NONE;
+	private StorageType storageType = StorageType.LOG;
 	private static DataManager dataManager;
 	private static ZkInteraction zkInteraction;
 	private String localHost="127.0.0.1";
@@ -66,9 +74,58 @@ public class KVServer implements IKVServer, Runnable {
 	 * @param strategy specifies the cache replacement strategy in case the cache
 	 *           is full and there is a GET- or PUT-request on a key that is
 	 *           currently not contained in the cache. Options are "FIFO", "LRU",
-	 *           and "LFU".
+	 *           "LFU", "TinyLFU", "ARC", "ClockPro" and "Slab", which keeps the
+	 *           values off the heap. "Auto" starts with "LRU" and switches to
+	 *           the strategy projected to hit most at runtime.
 	 */
 	public KVServer(int port, int cacheSize, String strategy, String zkAdress, String zkRoot, String zNodeName) {
+		this(port, cacheSize, strategy, zkAdress, zkRoot, zNodeName, "none");
+	}
+
+	/**
+	 * Start KV Server at given port
+	 * @param durability specifies when writes are forced to disk. Options are
+	 *           "none", "group-commit" (batches of writes are forced together,
+	 *           PUT replies wait for their batch) and "sync" (every write).
+	 */
+	public KVServer(int port, int cacheSize, String strategy, String zkAdress, String zkRoot, String zNodeName,
+					String durability) {
+		this(port, cacheSize, strategy, zkAdress, zkRoot, zNodeName, durability, "log");
+	}
+
+	/**
+	 * Start KV Server at given port
+	 * @param storage specifies the storage engine. Options are "log" (append-only
+	 *           value log with an in-memory index) and "lsm" (log-structured
+	 *           merge tree, suited to write-heavy workloads).
+	 */
+	public KVServer(int port, int cacheSize, String strategy, String zkAdress, String zkRoot, String zNodeName,
+					String durability, String storage) {
+		this(port, cacheSize, strategy, zkAdress, zkRoot, zNodeName, durability, storage, FileManager.DEFAULT_DATA_DIR);
+	}
+
+	/**
+	 * Start KV Server at given port
+	 * @param dataDirs comma separated directories the storage files are kept
+	 *           in. The first one gets the most I/O, e.g. a tmpfs or NVMe
+	 *           mount, the storage engine spreads its other files over the
+	 *           rest. Several servers can share the same directories.
+	 */
+	public KVServer(int port, int cacheSize, String strategy, String zkAdress, String zkRoot, String zNodeName,
+					String durability, String storage, String dataDirs) {
+		this(port, cacheSize, strategy, zkAdress, zkRoot, zNodeName, durability, storage, dataDirs, 0, 0);
+	}
+
+	/**
+	 * Start KV Server at given port
+	 * @param cacheBytes heap bytes the cache may take. When it is above 0 the
+	 *           cache is limited by the estimated size of its pairs instead
+	 *           of cacheSize entries.
+	 * @param maxCacheEntryBytes pairs estimated larger are not cached, 0 for
+	 *           no limit besides cacheBytes
+	 */
+	public KVServer(int port, int cacheSize, String strategy, String zkAdress, String zkRoot, String zNodeName,
+					String durability, String storage, String dataDirs, long cacheBytes, int maxCacheEntryBytes) {
 		logger.setLevel(Level.ALL);
 		assert(cacheSize > 0);
 		assert(strategy != "None");
@@ -78,6 +135,12 @@ public class KVServer implements IKVServer, Runnable {
 		strategyMap.put("LRU", CacheStrategy.LRU);
 		strategyMap.put("LFU", CacheStrategy.LFU);
 		strategyMap.put("FIFO", CacheStrategy.FIFO);
+		strategyMap.put("TinyLFU", CacheStrategy.TinyLFU);
+		strategyMap.put("ARC", CacheStrategy.ARC);
+		strategyMap.put("ClockPro", CacheStrategy.ClockPro);
+		strategyMap.put("Slab", CacheStrategy.Slab);
+		// Starts out as LRU and follows the shadow caches, see ShadowCacheMonitor.
+		strategyMap.put("Auto", CacheStrategy.LRU);
 
 		this.port = port;
 		this.zkAdress = zkAdress;
@@ -86,8 +149,39 @@ public class KVServer implements IKVServer, Runnable {
 		this.cacheSize = cacheSize;
 		this.strategy = strategy;
 		this.strategyEnum = strategyMap.get(strategy);
+
+		Map<String, DurabilityMode> durabilityMap = new HashMap<String, DurabilityMode>();
+		durabilityMap.put("none", DurabilityMode.NONE);
+		durabilityMap.put("group-commit", DurabilityMode.GROUP_COMMIT);
+		durabilityMap.put("sync", DurabilityMode.SYNC);
+		if (durabilityMap.containsKey(durability)) {
+			this.durabilityMode = durabilityMap.get(durability);
+		} else {
+			logger.error("Unknown durability mode " + durability + ", using none");
+		}
+
+		Map<String, StorageType> storageMap = new HashMap<String, StorageType>();
+		storageMap.put("log", StorageType.LOG);
+		storageMap.put("lsm", StorageType.LSM);
+		storageMap.put("partitioned", StorageType.PARTITIONED);
+		storageMap.put("log-reuse", StorageType.LOG_REUSE);
+		if (storageMap.containsKey(storage)) {
+			this.storageType = storageMap.get(storage);
+		} else {
+			logger.error("Unknown storage engine " + storage + ", using log");
+		}
+		List<String> dataDirList = new ArrayList<String>();
+		for (String dataDir : dataDirs.split(",")) {
+			if (!dataDir.trim().isEmpty()) dataDirList.add(dataDir.trim());
+		}
+		if (dataDirList.isEmpty()) {
+			logger.error("No data directory given, using " + FileManager.DEFAULT_DATA_DIR);
+			dataDirList.add(FileManager.DEFAULT_DATA_DIR);
+		}
 		try {
-			this.dataManager = new DataManager (cacheSize, strategyEnum, zNodeName, localHost+":"+port);
+			this.dataManager = new DataManager (cacheSize, strategyEnum, zNodeName, localHost+":"+port,
+					durabilityMode, storageType, dataDirList, cacheBytes, maxCacheEntryBytes);
+			dataManager.setCacheSwitching(strategy.equals("Auto"));
 			this.zkInteraction = new ZkInteraction(zkAdress, zkRoot, zNodeName, dataManager,localHost+":"+port);
 		} catch (Exception e) {
 			logger.error("Error! Could not initialize zookeeper and data manager. \n", e);
@@ -104,12 +198,19 @@ public class KVServer implements IKVServer, Runnable {
 		strategyMap.put("LRU", CacheStrategy.LRU);
 		strategyMap.put("LFU", CacheStrategy.LFU);
 		strategyMap.put("FIFO", CacheStrategy.FIFO);
+		strategyMap.put("TinyLFU", CacheStrategy.TinyLFU);
+		strategyMap.put("ARC", CacheStrategy.ARC);
+		strategyMap.put("ClockPro", CacheStrategy.ClockPro);
+		strategyMap.put("Slab", CacheStrategy.Slab);
+		// Starts out as LRU and follows the shadow caches, see ShadowCacheMonitor.
+		strategyMap.put("Auto", CacheStrategy.LRU);
 
 		this.port = port;
 		this.cacheSize = cacheSize;
 		this.strategy = strategy;
 		this.strategyEnum = strategyMap.get(strategy);
 		this.dataManager = new DataManager(cacheSize, strategyEnum, localHost+":"+port);
+		dataManager.setCacheSwitching(strategy.equals("Auto"));
 		this.noZK = true;
 	}
 
@@ -125,7 +226,8 @@ public class KVServer implements IKVServer, Runnable {
 
 	@Override
 	public CacheStrategy getCacheStrategy(){
-		return this.strategyEnum;
+		// The live strategy, it changes at runtime with "Auto".
+		return dataManager != null ? dataManager.getCacheStrategy() : this.strategyEnum;
 	}
 
 	@Override
@@ -179,6 +281,20 @@ public class KVServer implements IKVServer, Runnable {
 		}
 	}
 
+	public DurabilityMode getDurabilityMode() {
+		return durabilityMode;
+	}
+
+	public StorageType getStorageType() {
+		return storageType;
+	}
+
+	// Waits until the calling client thread's last write is durable, the
+	// reply to a PUT must not be sent before.
+	public void awaitDurable() throws InterruptedException {
+		dataManager.awaitDurable();
+	}
+
 	public Boolean inHashRange(String key) throws Exception {
 		if (noZK) {
 			return true;
@@ -253,6 +369,37 @@ public class KVServer implements IKVServer, Runnable {
 
 	}
 
+	/**
+	 * Reads one page of a scan, see DataManager.scan(). The page ends after
+	 * limit pairs or once its keys and values reach SCAN_PAGE_CHARS, the
+	 * next page starts right after the last key of this one.
+	 * @param limit maximum number of pairs, 0 for no limit
+	 * @return the pairs of the page, empty once the range is exhausted
+	 */
+	public List<Map.Entry<String, String>> scan(String startKey, String endKey, int limit) throws Exception{
+		if (!lockData()) {
+			throw new ServerDataLockedException("Server data is locked");
+		}
+		if (!isActive()) {
+			boolean unlocked = unlockData();
+			throw new ServerNotActiveException("Server not in root metadata");
+		}
+
+		List<Map.Entry<String, String>> page = new ArrayList<Map.Entry<String, String>>();
+		try {
+			Iterator<Map.Entry<String, String>> pairs = dataManager.scan(startKey, endKey, limit);
+			int chars = 0;
+			while (chars < SCAN_PAGE_CHARS && pairs.hasNext()) {
+				Map.Entry<String, String> pair = pairs.next();
+				page.add(pair);
+				chars += pair.getKey().length() + pair.getValue().length();
+			}
+			return page;
+		} finally {
+			boolean unlocked = unlockData();
+		}
+	}
+
 	@Override
 	public void putKV(String key, String value) throws Exception{
 		if (!lockData()) {
@@ -328,6 +475,14 @@ public class KVServer implements IKVServer, Runnable {
 	}
 
 	public KVMessage.StatusType putKVThread(String key, String value, boolean isReplicationPut) throws Exception{
+		return putKVThread(key, value, 0, isReplicationPut);
+	}
+
+	/**
+	 * Puts the pair with a time to live, after which the key is deleted.
+	 * @param ttlMillis time to live in milliseconds, 0 for none
+	 */
+	public KVMessage.StatusType putKVThread(String key, String value, long ttlMillis, boolean isReplicationPut) throws Exception{
 		logger.info("putKVThread kvserver lockdata");
 		if (!lockData()) {
             throw new ServerDataLockedException("Server data is locked");
@@ -353,7 +508,7 @@ public class KVServer implements IKVServer, Runnable {
 
 		logger.info("putKVThread kvserver checkKeyValueFormat");
 		KVMessage.StatusType status = KVMessage.StatusType.PUT_ERROR;
-		if(!checkKeyValueFormat(key,value)){
+		if(!checkKeyValueFormat(key,value) || ttlMillis < 0){
 			boolean unlocked = unlockData();
 			return status;
 		}
@@ -368,11 +523,11 @@ public class KVServer implements IKVServer, Runnable {
 				logger.info("putKVThread kvserver search for value,");
 				if (dataManager.inStorage(key)) {
 					logger.info("putKVThread kvserver update,");
-					dataManager.update(key, value);
+					dataManager.update(key, value, ttlMillis);
 					status = KVMessage.StatusType.PUT_UPDATE;
 				} else {
 					logger.info("putKVThread kvserver putKV,");
-					dataManager.putKV(key, value);
+					dataManager.putKV(key, value, ttlMillis);
 					status = KVMessage.StatusType.PUT_SUCCESS;
 				}
 			}
@@ -460,6 +615,64 @@ public class KVServer implements IKVServer, Runnable {
 		logger.info("Server stopped.");
 	}
 
+	/**
+	 * Stores the pairs of a snapshot chunk sent by another server. Pairs of
+	 * keys this server is neither coordinator nor replica for are skipped.
+	 * @return the number of pairs stored
+	 */
+	public int restoreSnapshotChunk(List<Map.Entry<String, String>> pairs) throws Exception {
+		if (!lockData()) {
+			throw new ServerDataLockedException("Server data is locked");
+		}
+		if (!isActive()) {
+			boolean unlocked = unlockData();
+			throw new ServerNotActiveException("Server not in root metadata");
+		}
+		int stored = 0;
+		try {
+			for (Map.Entry<String, String> pair : pairs) {
+				if (!inHashRange(pair.getKey()) && !inReplicationRange(pair.getKey())) continue;
+				// A pair with an expiry keeps the TTL it has left, one that
+				// expired since the snapshot was taken is dropped.
+				long expiresAt = SnapshotStream.expiresAt(pair);
+				long ttl = expiresAt != 0 ? expiresAt - System.currentTimeMillis() : 0;
+				if (expiresAt != 0 && ttl <= 0) continue;
+				dataManager.putKV(pair.getKey(), pair.getValue(), ttl);
+				stored++;
+			}
+		} finally {
+			boolean unlocked = unlockData();
+		}
+		return stored;
+	}
+
+	/**
+	 * Backs the storage up into a snapshot file while requests continue.
+	 * @return the number of pairs written
+	 */
+	public long writeSnapshot(String path) throws IOException {
+		return dataManager.writeSnapshot(new File(path));
+	}
+
+	/**
+	 * Loads the pairs of a snapshot file, e.g. to bootstrap a server from a
+	 * backup. Like restoreSnapshotChunk() only pairs in range are stored.
+	 * @return the number of pairs stored
+	 */
+	public long restoreSnapshot(String path) throws Exception {
+		SnapshotStream.Reader reader = new SnapshotStream.Reader(new File(path));
+		long stored = 0;
+		try {
+			List<Map.Entry<String, String>> pairs;
+			while ((pairs = reader.nextChunk()) != null) {
+				stored += restoreSnapshotChunk(pairs);
+			}
+		} finally {
+			reader.close();
+		}
+		return stored;
+	}
+
 	public void offloadStorage(){
 		try {
 			dataManager.purge(/*purgeAll=*/true);
@@ -496,6 +709,9 @@ public class KVServer implements IKVServer, Runnable {
 			logger.info("Couldn't close the zookeeper connection, killing anyways");
 		}
 		stopServer();
+		if (dataManager != null) {
+			dataManager.close();
+		}
 		zkInteraction=null;
 		dataManager=null;
 		serverSocket=null;
@@ -612,11 +828,38 @@ public class KVServer implements IKVServer, Runnable {
 		}
 	}
 
+	// Parses a byte count like 65536, 64k, 512m or 2g.
+	public static long parseBytes(String bytes) {
+		String number = bytes.trim().toLowerCase();
+		long unit = 1;
+		if (number.endsWith("k")) unit = 1L << 10;
+		else if (number.endsWith("m")) unit = 1L << 20;
+		else if (number.endsWith("g")) unit = 1L << 30;
+		if (unit != 1) number = number.substring(0, number.length() - 1);
+		return Long.parseLong(number) * unit;
+	}
+
+	// Like parseBytes(), for a byte count that has to fit into an int.
+	public static int parseIntBytes(String bytes) {
+		long value = parseBytes(bytes);
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Byte count " + bytes + " is out of range, at most "
+					+ Integer.MAX_VALUE + " bytes");
+		}
+		return (int) value;
+	}
+
 	/**
 	 * Main entry point for the KVServer application.
 	 * @param args contains the port number at args[0]
-	 * cache size at args[1], replacement policy at args[2]
-	 * and log level at args[3]
+	 * cache size at args[1], replacement policy at args[2],
+	 * log level at args[3], zookeeper address, root and node name
+	 * at args[4] to args[6] and optionally the durability mode
+	 * (none, group-commit or sync) at args[7], the storage engine
+	 * (log, log-reuse, lsm or partitioned) at args[8], comma separated
+	 * data directories at args[9], the cache budget in bytes at args[10]
+	 * and the largest cached pair in bytes at args[11], both with an
+	 * optional k, m or g suffix
 	 */
 	public static void main(String[] args) {
 		Map<String, Level> logLevels = new HashMap<String, Level>();
@@ -628,9 +871,9 @@ public class KVServer implements IKVServer, Runnable {
 		logLevels.put("FATAL", Level.FATAL);
 		logLevels.put("OFF", Level.OFF);
 		try {
-			if(args.length != 7) {
+			if(args.length < 7 || args.length > 12) {
 				System.out.println("Error! Invalid number of arguments!");
-				System.out.println("Usage: Server <port>!");
+				System.out.println("Usage: Server <port> <cacheSize> <strategy> <logLevel> <zkAddress> <zkRoot> <nodeName> [<durability> [<storage> [<dataDirs> [<cacheBytes> [<maxCacheEntryBytes>]]]]]!");
 			} else {
 				int port = Integer.parseInt(args[0]);
 				int cacheSize = Integer.parseInt(args[1]);
@@ -639,10 +882,16 @@ public class KVServer implements IKVServer, Runnable {
 				String zookeeperAdress = args[4];
 				String zookeeperRoot = args[5];
 				String zookeeperNodeName = args[6];
+				String durability = args.length > 7 ? args[7] : "none";
+				String storage = args.length > 8 ? args[8] : "log";
+				String dataDirs = args.length > 9 ? args[9] : FileManager.DEFAULT_DATA_DIR;
+				long cacheBytes = args.length > 10 ? parseBytes(args[10]) : 0;
+				int maxCacheEntryBytes = args.length > 11 ? parseIntBytes(args[11]) : 0;
 				if (logLevels.containsKey(logLevelString)) {
 					new LogSetup("logs/server.log", logLevels.get(logLevelString));
 				} // else need to throw exception
-				new Thread(new KVServer(port, cacheSize, strategy, zookeeperAdress, zookeeperRoot, zookeeperNodeName)).start();
+				new Thread(new KVServer(port, cacheSize, strategy, zookeeperAdress, zookeeperRoot, zookeeperNodeName, durability, storage, dataDirs,
+						cacheBytes, maxCacheEntryBytes)).start();
 			}
 		} catch (IOException e) {
 			System.out.println("Error! Unable to initialize logger!");
@@ -650,6 +899,7 @@ public class KVServer implements IKVServer, Runnable {
 			System.exit(1);
 		} catch (NumberFormatException nfe) {
 			System.out.println("Error! Invalid arguments <port>! or <cacheSize>! Not a number!");
+			System.out.println(nfe.getMessage());
 			System.out.println("Usage: Server <port>! <cacheSize>!");
 			System.exit(1);
 		}
@@ -0,0 +1,95 @@
+package app_kvServer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded set of keys the storage was found not to hold, so that repeated
+ * GETs of absent keys, e.g. clients polling for a key that is written later,
+ * skip the storage lookup. The least recently asked key is forgotten first.
+ *
+ * A lookup that found nothing only adds its key if no write to the key's
+ * stripe invalidated it since the lookup started, see stamp(). A write
+ * stores the pair first and then invalidates the key, so a miss that raced
+ * with the write can not be remembered after it.
+ */
+public class NegativeCache {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    private static final int STRIPES = 64;
+
+    // Access ordered, forgets the least recently asked key beyond capacity.
+    private static class KeyMap extends LinkedHashMap<String, Boolean> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        KeyMap(int capacity) {
+            super(16, 0.75f, /*accessOrder=*/true);
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    // Guarded by this.
+    private final KeyMap keys;
+    private final long[] stamps = new long[STRIPES];
+    private long hits = 0;
+
+    public NegativeCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public NegativeCache(int capacity) {
+        this.keys = new KeyMap(capacity);
+    }
+
+    // True if the key is known to be absent.
+    public synchronized boolean contains(String key) {
+        if (keys.get(key) == null) return false;
+        hits++;
+        return true;
+    }
+
+    // Stamp to pass to add(), taken before the storage is asked for the key.
+    public synchronized long stamp(String key) {
+        return stamps[stripe(key)];
+    }
+
+    /**
+     * Remembers the key as absent, unless it was invalidated after the stamp
+     * was taken.
+     */
+    public synchronized void add(String key, long stamp) {
+        if (stamps[stripe(key)] == stamp) keys.put(key, Boolean.TRUE);
+    }
+
+    // Forgets the key, called after it was written.
+    public synchronized void invalidate(String key) {
+        stamps[stripe(key)]++;
+        keys.remove(key);
+    }
+
+    // Forgets every key, e.g. when the hash ring changed.
+    public synchronized void clear() {
+        for (int i = 0; i < stamps.length; i++) {
+            stamps[i]++;
+        }
+        keys.clear();
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    // Number of lookups answered without the storage.
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+}
@@ -56,13 +56,22 @@ public class ServerConnection {
     }
 
     public boolean put(String key, String value, boolean toReplicate) throws Exception{
-        KVMessage response = toReplicate ? serverComms.replicate(key,value) : serverComms.put(key, value);
+        return put(key, value, 0, toReplicate);
+    }
+
+    // Puts the pair with the remaining time to live of the key, 0 for none.
+    public boolean put(String key, String value, long ttlMillis, boolean toReplicate) throws Exception{
+        KVMessage response = toReplicate ? serverComms.replicate(key, value, ttlMillis) : serverComms.put(key, value, ttlMillis);
         if (response.getStatus() == StatusType.PUT_ERROR || response.getStatus() == StatusType.REPLICATE_ERROR || response.getStatus() == StatusType.DELETE_ERROR) {
             return false;
         }
         return true;
     }
 
+    public boolean sendSnapshotChunk(byte[] chunk) throws Exception {
+        return serverComms.snapshotChunk(chunk).getStatus() == StatusType.SNAPSHOT_SUCCESS;
+    }
+
     public void disconnect() {
         if(serverComms.isConnected()) {
             serverComms.disconnect();
@@ -0,0 +1,341 @@
+package app_kvServer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import app_kvServer.IKVServer.CacheStrategy;
+
+/**
+ * Projects the hit ratio every cache strategy would have on the live
+ * traffic, and optionally switches the live cache to the best one.
+ *
+ * Only keys whose hash falls into 1 of sampleRate buckets are looked at.
+ * For each strategy a ghost cache of cacheSize / sampleRate entries holds
+ * these keys with empty values and replays their GETs, PUTs and deletes.
+ * On a uniform sample of the keys a cache scaled down by the sampling rate
+ * sees about the hit ratio of the full cache, so the ghosts cost a small
+ * fraction of the live cache in memory and time.
+ *
+ * Requests only queue their samples into a lock-free buffer. The monitor
+ * thread replays them into the ghosts every DRAIN_INTERVAL_MS, so request
+ * threads never wait on a ghost. A request finding the buffer full replays
+ * it itself, or drops its sample if another thread is replaying already.
+ *
+ * Every report interval with enough sampled GETs the ratios are logged.
+ * With a switcher set, a strategy whose ghost beats the ghost of the live
+ * strategy by SWITCH_MARGIN becomes the live strategy. Comparing ghost with
+ * ghost keeps the sampling error out of the decision. The counts start over
+ * after every report, so the ratios follow the current traffic.
+ *
+ * Slab has the replacement order of LRU, the LRU ghost stands in for it. A
+ * Slab cache is kept for its memory layout and never switched.
+ */
+public class ShadowCacheMonitor implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public interface StrategySwitcher {
+        // Replaces the live cache with one of the strategy, keeping its contents.
+        public void switchTo(CacheStrategy strategy) throws Exception;
+    }
+
+    public static final int DEFAULT_SAMPLE_RATE = 16;
+    public static final long DEFAULT_REPORT_INTERVAL_MS = 60000;
+    // Ghosts smaller than this replay too few keys to be representative.
+    // Caches smaller than this are not worth monitoring.
+    public static final int MIN_GHOST_SIZE = 32;
+    private static final long MIN_SAMPLED_GETS = 10000;
+    public static final double SWITCH_MARGIN = 0.02;
+    public static final long DRAIN_INTERVAL_MS = 100;
+    private static final int BUFFER_SIZE = 4096;
+
+    private enum Operation { GET_HIT, GET_MISS, PUT, DELETE }
+
+    private static class Sample {
+        final String key;
+        final Operation operation;
+
+        Sample(String key, Operation operation) {
+            this.key = key;
+            this.operation = operation;
+        }
+    }
+
+    private static class Ghost {
+        final CacheStrategy strategy;
+        final CacheManager cache;
+        final LongAdder hits = new LongAdder();
+        // Set once the ghost failed, it is no longer replayed or projected.
+        volatile boolean broken = false;
+
+        Ghost(CacheStrategy strategy, CacheManager cache) {
+            this.strategy = strategy;
+            this.cache = cache;
+        }
+    }
+
+    private final int sampleMask;
+    private final long reportIntervalMillis;
+    private final long minSampledGets;
+    private final Map<CacheStrategy, Ghost> ghosts = new EnumMap<CacheStrategy, Ghost>(CacheStrategy.class);
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder liveHits = new LongAdder();
+    private final ConcurrentLinkedQueue<Sample> samples = new ConcurrentLinkedQueue<Sample>();
+    private final AtomicInteger buffered = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    // Held while replaying samples into the ghosts.
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private volatile CacheStrategy liveStrategy;
+    private volatile StrategySwitcher switcher;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    public ShadowCacheMonitor(int cacheSize, CacheStrategy liveStrategy) {
+        this(cacheSize, liveStrategy, DEFAULT_SAMPLE_RATE, DEFAULT_REPORT_INTERVAL_MS, MIN_SAMPLED_GETS);
+    }
+
+    /**
+     * @param sampleRate one in sampleRate keys is replayed, a power of two.
+     *           It is lowered for small caches so the ghosts keep at least
+     *           MIN_GHOST_SIZE entries, no ghost is smaller.
+     * @param minSampledGets sampled GETs needed before a report
+     */
+    public ShadowCacheMonitor(int cacheSize, CacheStrategy liveStrategy, int sampleRate,
+                              long reportIntervalMillis, long minSampledGets) {
+        if (sampleRate < 1 || (sampleRate & (sampleRate - 1)) != 0) {
+            throw new IllegalArgumentException("Sample rate " + sampleRate + " is not a power of two");
+        }
+        sampleRate = Math.min(sampleRate, Math.max(1, Integer.highestOneBit(cacheSize / MIN_GHOST_SIZE)));
+        this.sampleMask = sampleRate - 1;
+        this.reportIntervalMillis = reportIntervalMillis;
+        this.minSampledGets = minSampledGets;
+        this.liveStrategy = liveStrategy;
+        int ghostSize = Math.max(MIN_GHOST_SIZE, cacheSize / sampleRate);
+        for (CacheStrategy strategy : CacheStrategy.values()) {
+            if (strategy == CacheStrategy.None || strategy == CacheStrategy.Slab) continue;
+            ghosts.put(strategy, new Ghost(strategy, CacheFactory.GetSegment(ghostSize, strategy)));
+        }
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "shadow-cache-monitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+    }
+
+    // Switches to the best strategy on reports when set, only reports when null.
+    public void setSwitcher(StrategySwitcher switcher) {
+        this.switcher = switcher;
+    }
+
+    public CacheStrategy getLiveStrategy() {
+        return liveStrategy;
+    }
+
+    // Tells the monitor about a switch it did not make itself.
+    public void setLiveStrategy(CacheStrategy liveStrategy) {
+        this.liveStrategy = liveStrategy;
+    }
+
+    private boolean sampled(String key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        return ((h ^ (h >>> 16)) & sampleMask) == 0;
+    }
+
+    /**
+     * Records a GET that reached the live cache. On replay a ghost miss loads
+     * the key like the live cache does after reading the storage.
+     * @param liveHit whether the live cache had the key
+     */
+    public void recordGet(String key, boolean liveHit) {
+        if (sampled(key)) record(new Sample(key, liveHit ? Operation.GET_HIT : Operation.GET_MISS));
+    }
+
+    public void recordPut(String key) {
+        if (sampled(key)) record(new Sample(key, Operation.PUT));
+    }
+
+    public void recordDelete(String key) {
+        if (sampled(key)) record(new Sample(key, Operation.DELETE));
+    }
+
+    private void record(Sample sample) {
+        if (buffered.incrementAndGet() > BUFFER_SIZE) {
+            buffered.decrementAndGet();
+            if (!drainLock.tryLock()) {
+                dropped.increment();
+                return;
+            }
+            try {
+                replay();
+            } finally {
+                drainLock.unlock();
+            }
+            buffered.incrementAndGet();
+        }
+        samples.offer(sample);
+    }
+
+    // Replays the buffered samples into the ghosts.
+    public void drain() {
+        drainLock.lock();
+        try {
+            replay();
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    // Caller holds drainLock.
+    private void replay() {
+        Sample sample;
+        while ((sample = samples.poll()) != null) {
+            buffered.decrementAndGet();
+            if (sample.operation == Operation.GET_HIT || sample.operation == Operation.GET_MISS) {
+                gets.increment();
+                if (sample.operation == Operation.GET_HIT) liveHits.increment();
+            }
+            for (Ghost ghost : ghosts.values()) {
+                if (ghost.broken) continue;
+                // A failing ghost, even one overflowing the stack, is dropped
+                // from the projection and does not stop the other ghosts,
+                // the monitor thread or the request replaying a full buffer.
+                try {
+                    replay(ghost, sample);
+                } catch (Exception | StackOverflowError e) {
+                    ghost.broken = true;
+                    logger.error("Shadow cache " + ghost.strategy + " failed on " + sample.operation
+                            + " of " + sample.key + ", no longer projected", e);
+                }
+            }
+        }
+    }
+
+    private void replay(Ghost ghost, Sample sample) throws Exception {
+        switch (sample.operation) {
+            case DELETE:
+                ghost.cache.delete(sample.key);
+                break;
+            case PUT:
+                ghost.cache.putKV(sample.key, "");
+                break;
+            default:
+                if (ghost.cache.getKV(sample.key) != null) {
+                    ghost.hits.increment();
+                } else {
+                    ghost.cache.putKV(sample.key, "");
+                }
+        }
+    }
+
+    // Projected hit ratio of every strategy over the sampled GETs so far.
+    public Map<CacheStrategy, Double> getHitRatios() {
+        drain();
+        long total = Math.max(1, gets.sum());
+        Map<CacheStrategy, Double> ratios = new EnumMap<CacheStrategy, Double>(CacheStrategy.class);
+        for (Ghost ghost : ghosts.values()) {
+            if (!ghost.broken) ratios.put(ghost.strategy, (double) ghost.hits.sum() / total);
+        }
+        return ratios;
+    }
+
+    // Hit ratio the live cache had on the sampled GETs so far.
+    public double getLiveHitRatio() {
+        drain();
+        return (double) liveHits.sum() / Math.max(1, gets.sum());
+    }
+
+    public long getSampledGets() {
+        drain();
+        return gets.sum();
+    }
+
+    // Number of samples dropped because the buffer was full.
+    public long getDroppedSamples() {
+        return dropped.sum();
+    }
+
+    /**
+     * Logs the projected ratios and switches to the best strategy if a
+     * switcher is set and it beats the live one by SWITCH_MARGIN. Waits for
+     * minSampledGets sampled GETs first.
+     * @return the strategy switched to, null if there was no switch
+     */
+    public CacheStrategy report() {
+        Map<CacheStrategy, Double> ratios;
+        CacheStrategy live = liveStrategy;
+        CacheStrategy best = live == CacheStrategy.Slab ? CacheStrategy.LRU : live;
+        double liveProjected;
+        double bestProjected;
+        // Replays stay out until the counts are read and started over.
+        drainLock.lock();
+        try {
+            replay();
+            if (gets.sum() < minSampledGets) return null;
+            ratios = getHitRatios();
+            // Without a projection of its own the live strategy is kept.
+            liveProjected = ratios.containsKey(best) ? ratios.get(best) : Double.POSITIVE_INFINITY;
+            bestProjected = liveProjected;
+            StringBuilder report = new StringBuilder();
+            for (Map.Entry<CacheStrategy, Double> ratio : ratios.entrySet()) {
+                report.append(' ').append(ratio.getKey()).append(String.format(" %.1f%%", 100 * ratio.getValue()));
+                if (ratio.getValue() > bestProjected) {
+                    best = ratio.getKey();
+                    bestProjected = ratio.getValue();
+                }
+            }
+            logger.info("Projected cache hit ratios over " + gets.sum() + " sampled gets:" + report
+                    + String.format(", live %s %.1f%%", live, 100 * getLiveHitRatio()));
+            for (Ghost ghost : ghosts.values()) {
+                ghost.hits.reset();
+            }
+            gets.reset();
+            liveHits.reset();
+        } finally {
+            drainLock.unlock();
+        }
+
+        StrategySwitcher current = switcher;
+        if (current == null || live == CacheStrategy.Slab || best == live
+                || bestProjected < liveProjected + SWITCH_MARGIN) {
+            return null;
+        }
+        try {
+            current.switchTo(best);
+        } catch (Exception e) {
+            logger.error("Could not switch the cache to " + best, e);
+            return null;
+        }
+        liveStrategy = best;
+        return best;
+    }
+
+    @Override
+    public void run() {
+        long nextReport = System.currentTimeMillis() + reportIntervalMillis;
+        while (running) {
+            try {
+                Thread.sleep(Math.min(DRAIN_INTERVAL_MS, reportIntervalMillis));
+                drain();
+                if (System.currentTimeMillis() >= nextReport) {
+                    report();
+                    nextReport = System.currentTimeMillis() + reportIntervalMillis;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
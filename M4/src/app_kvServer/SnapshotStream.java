@@ -0,0 +1,164 @@
+package app_kvServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import storage_impl.Records;
+
+/**
+ * Wire and file format of storage snapshots. The pairs of a snapshot are cut
+ * into chunks of about CHUNK_BYTES, a chunk is a record count followed by the
+ * records (see Records), large values deflated. A pair given as an
+ * ExpiringPair keeps its expiry in its record. A chunk is sent to another
+ * server as the Base64 value of a SNAPSHOT_CHUNK message.
+ *
+ * A snapshot file is the magic, the chunks each prefixed with their length,
+ * and a zero length. It is written to a temporary file, forced to disk and
+ * moved into place, so a file under the target name is always complete.
+ */
+public class SnapshotStream {
+
+    public static final int CHUNK_BYTES = 64 * 1024;
+    private static final int MAGIC = 0x4b56534e;
+
+    // Pair of a key with an expiry, see Records.
+    public static class ExpiringPair extends AbstractMap.SimpleImmutableEntry<String, String> {
+        private static final long serialVersionUID = 1L;
+        private final long expiresAt;
+
+        public ExpiringPair(String key, String value, long expiresAt) {
+            super(key, value);
+            this.expiresAt = expiresAt;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    // Expiry of the pair in epoch milliseconds, 0 if it does not expire.
+    public static long expiresAt(Map.Entry<String, String> pair) {
+        return pair instanceof ExpiringPair ? ((ExpiringPair) pair).getExpiresAt() : 0;
+    }
+
+    /**
+     * Encodes the next pairs of the iteration into one chunk.
+     * @return the chunk, null once the iteration is exhausted
+     */
+    public static byte[] encodeChunk(Iterator<Map.Entry<String, String>> pairs) throws IOException {
+        if (!pairs.hasNext()) return null;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        int count = 0;
+        while (pairs.hasNext() && out.size() < CHUNK_BYTES) {
+            Map.Entry<String, String> pair = pairs.next();
+            ByteBuffer record = Records.encodePut(pair.getKey(), pair.getValue().getBytes(),
+                    Records.COMPRESSION_THRESHOLD, -1, expiresAt(pair));
+            out.write(record.array(), 0, record.remaining());
+            count++;
+        }
+        byte[] chunk = bytes.toByteArray();
+        ByteBuffer.wrap(chunk).putInt(0, count);
+        return chunk;
+    }
+
+    // Number of pairs in the chunk.
+    public static int chunkPairs(byte[] chunk) {
+        return ByteBuffer.wrap(chunk).getInt(0);
+    }
+
+    public static List<Map.Entry<String, String>> decodeChunk(byte[] chunk) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunk));
+        int count = in.readInt();
+        Records.Scanner scanner = new Records.Scanner(in, chunk.length);
+        List<Map.Entry<String, String>> pairs = new ArrayList<Map.Entry<String, String>>(count);
+        for (int i = 0; i < count; i++) {
+            if (!scanner.next() || scanner.isTombstone()) {
+                throw new IOException("Corrupt snapshot chunk, record " + i + " of " + count);
+            }
+            String value = new String(scanner.value());
+            long expiresAt = scanner.expiresAt();
+            pairs.add(expiresAt != 0 ? new ExpiringPair(scanner.key(), value, expiresAt)
+                    : new AbstractMap.SimpleImmutableEntry<String, String>(scanner.key(), value));
+        }
+        return pairs;
+    }
+
+    /**
+     * Writes the snapshot into a snapshot file, replacing an existing one.
+     * @return the number of pairs written
+     */
+    public static long writeFile(StorageSnapshot snapshot, File file) throws IOException {
+        return writeFile(snapshot.iterator(), file);
+    }
+
+    // Like writeFile() above, for the pairs of the iteration.
+    public static long writeFile(Iterator<Map.Entry<String, String>> iterator, File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(tmpFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, CHUNK_BYTES));
+        long pairs = 0;
+        try {
+            out.writeInt(MAGIC);
+            byte[] chunk;
+            while ((chunk = encodeChunk(iterator)) != null) {
+                out.writeInt(chunk.length);
+                out.write(chunk);
+                pairs += chunkPairs(chunk);
+            }
+            out.writeInt(0);
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return pairs;
+    }
+
+    // Reads a snapshot file chunk by chunk.
+    public static class Reader {
+        private final DataInputStream in;
+
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), CHUNK_BYTES));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("Not a snapshot file " + file);
+            }
+        }
+
+        /**
+         * @return the pairs of the next chunk, null at the end of the file
+         */
+        public List<Map.Entry<String, String>> nextChunk() throws IOException {
+            int length = in.readInt();
+            if (length == 0) return null;
+            byte[] chunk = new byte[length];
+            in.readFully(chunk);
+            return decodeChunk(chunk);
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package app_kvServer;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+// Background thread which compacts the storage files of one or more
+// FileManagers, each once its share of garbage (overwritten and deleted
+// values) crosses a threshold.
+public class StorageCompactor implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final double DEFAULT_GARBAGE_RATIO = 0.5;
+    private static final long CHECK_INTERVAL_MS = 10000;
+    // Files smaller than this are not worth rewriting.
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private List<FileManager> fileManagers;
+    private double garbageRatioThreshold;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    public StorageCompactor(FileManager fileManager) {
+        this(fileManager, DEFAULT_GARBAGE_RATIO);
+    }
+
+    public StorageCompactor(FileManager fileManager, double garbageRatioThreshold) {
+        this(Collections.singletonList(fileManager), garbageRatioThreshold);
+    }
+
+    public StorageCompactor(List<FileManager> fileManagers) {
+        this(fileManagers, DEFAULT_GARBAGE_RATIO);
+    }
+
+    public StorageCompactor(List<FileManager> fileManagers, double garbageRatioThreshold) {
+        this.fileManagers = fileManagers;
+        this.garbageRatioThreshold = garbageRatioThreshold;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "storage-compactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+    }
+
+    public void setGarbageRatioThreshold(double garbageRatioThreshold) {
+        this.garbageRatioThreshold = garbageRatioThreshold;
+    }
+
+    public double getGarbageRatioThreshold() {
+        return garbageRatioThreshold;
+    }
+
+    public long getTotalReclaimedBytes() {
+        long reclaimed = 0;
+        for (FileManager fileManager : fileManagers) {
+            reclaimed += fileManager.getReclaimedBytes();
+        }
+        return reclaimed;
+    }
+
+    // Runs one compaction of every storage file that qualifies.
+    // Returns the number of bytes reclaimed.
+    public long compactIfNeeded() throws Exception {
+        long reclaimed = 0;
+        for (FileManager fileManager : fileManagers) {
+            reclaimed += compactIfNeeded(fileManager);
+        }
+        return reclaimed;
+    }
+
+    private long compactIfNeeded(FileManager fileManager) throws Exception {
+        if (fileManager.getStorageLength() < MIN_COMPACTION_BYTES) return 0;
+        double garbageRatio = fileManager.getGarbageRatio();
+        if (garbageRatio < garbageRatioThreshold) return 0;
+
+        logger.info("Starting compaction of " + fileManager.getStoragePath() + ", garbage ratio " + garbageRatio);
+        long reclaimed = fileManager.compact();
+        logger.info("Compaction reclaimed " + reclaimed + " bytes, "
+                + getTotalReclaimedBytes() + " bytes reclaimed in total");
+        return reclaimed;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(CHECK_INTERVAL_MS);
+                compactIfNeeded();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error("Storage compaction failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Persistent key-value storage of a server, below the cache. Implementations
+ * are selected through StorageFactory.
+ */
+public interface StorageEngine {
+
+    /**
+     * Check if key is in storage.
+     * @return  true if key in storage, false otherwise
+     */
+    public boolean inStorage(String key) throws Exception;
+
+    /**
+     * Check if key might be in storage, without taking locks or reading disk.
+     * @return  false if the key is definitely not in storage
+     */
+    public boolean mightContain(String key);
+
+    /**
+     * Get the value associated with the key
+     * @return  value associated with key, null if the key is not stored
+     */
+    public String getKV(String key) throws Exception;
+
+    /**
+     * Put the key-value pair into storage, replacing an existing value
+     */
+    public void putKV(String key, String value) throws Exception;
+
+    /**
+     * Put the key-value pair into storage with an expiry. Once it passed the
+     * key reads as absent, and recovery, compaction and merges drop it like
+     * a deleted key. The storage does not delete it by itself, see TimingWheel.
+     * @param expiresAt expiry in epoch milliseconds, 0 for none
+     */
+    public void putKV(String key, String value, long expiresAt) throws Exception;
+
+    /**
+     * Delete the key from storage, nothing happens if it is not stored
+     */
+    public void delete(String key) throws Exception;
+
+    /**
+     * Iterate the stored keys. The iteration is weakly consistent, keys
+     * written while it runs may or may not be returned.
+     */
+    public Iterable<String> getKeys();
+
+    /**
+     * Selects the keys of a scan before their values are read.
+     */
+    public interface KeyFilter {
+        public boolean accept(String key);
+    }
+
+    /**
+     * Iterate the key-value pairs with startKey <= key < endKey in key order.
+     * Weakly consistent like getKeys().
+     * @param startKey first key of the range, null for no lower bound
+     * @param endKey key after the range, null for no upper bound
+     * @param filter keys to return, null for all. The values of the other
+     *           keys are not read.
+     */
+    public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey, KeyFilter filter);
+
+    /**
+     * Get the expiries of the stored keys that have one, e.g. to schedule
+     * them again after a restart. Reads every stored record, weakly
+     * consistent like getKeys().
+     * @return  key to expiry in epoch milliseconds
+     */
+    public Map<String, Long> getExpiries() throws IOException;
+
+    /**
+     * Take a consistent point-in-time snapshot of the stored pairs. Writers
+     * are only held up for as long as it takes to copy the in-memory state,
+     * the pairs are read from disk later. Callers close the snapshot.
+     */
+    public StorageSnapshot snapshot() throws IOException;
+
+    /**
+     * Delete every key and the files holding them
+     */
+    public void clearStorage() throws Exception;
+
+    /**
+     * Block until the last write of the calling thread is durable, as far as
+     * the durability mode of the storage promises it
+     */
+    public void awaitDurable() throws InterruptedException;
+
+    /**
+     * Get the number of writes that reached the OS but are not forced to disk
+     * @return  number of pending writes
+     */
+    public long getPendingWrites();
+
+    /**
+     * Force all completed writes to disk and release the writers waiting for
+     * them in awaitDurable()
+     */
+    public void sync() throws IOException;
+
+    /**
+     * Get the number of bytes given back by compactions or merges
+     * @return  reclaimed bytes
+     */
+    public long getReclaimedBytes();
+
+    /**
+     * Get the share of negative lookups that the key filters did not rule out
+     * @return  false positive rate of the key filters
+     */
+    public double getFilterFalsePositiveRate();
+
+    /**
+     * Stop the background work of the storage and persist what is needed
+     * for a fast restart
+     */
+    public void close();
+}
@@ -0,0 +1,69 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import app_kvServer.IKVServer.AllocationMode;
+import app_kvServer.IKVServer.DurabilityMode;
+import app_kvServer.IKVServer.StorageType;
+import storage_impl.LsmStorage;
+import storage_impl.PartitionedStorage;
+
+public class StorageFactory {
+
+    public static StorageEngine GetStorage(StorageType storageType, String nodeName,
+                                           DurabilityMode durabilityMode) throws Exception {
+        return GetStorage(storageType, nodeName, durabilityMode,
+                Collections.singletonList(FileManager.DEFAULT_DATA_DIR));
+    }
+
+    /**
+     * @param dataDirs directories the storage files are spread over, the
+     *           first one is used for the files that see the most I/O. Each
+     *           server only touches files named after its node name in them.
+     */
+    public static StorageEngine GetStorage(StorageType storageType, String nodeName,
+                                           DurabilityMode durabilityMode, List<String> dataDirs) throws Exception {
+        if (dataDirs.isEmpty()) throw new IllegalArgumentException("No data directory");
+        switch (storageType) {
+            case LOG:
+                FileManager fileManager = new FileManager(dataDirs.get(0), nodeName, durabilityMode,
+                        AllocationMode.APPEND);
+                fileManager.startCompactor();
+                return fileManager;
+            case LOG_REUSE:
+                FileManager reusing = new FileManager(dataDirs.get(0), nodeName, durabilityMode,
+                        AllocationMode.REUSE);
+                reusing.startCompactor();
+                return reusing;
+            case LSM:
+                List<String> lsmDirs = new ArrayList<String>();
+                for (String dataDir : dataDirs) {
+                    lsmDirs.add(subDir(dataDir, "lsm_" + nodeName));
+                }
+                return new LsmStorage(lsmDirs, durabilityMode, LsmStorage.MEMTABLE_BYTES);
+            case PARTITIONED:
+                // Under GROUP_COMMIT the partitioned storage syncs the buckets itself.
+                DurabilityMode bucketMode = durabilityMode == DurabilityMode.SYNC
+                        ? DurabilityMode.SYNC : DurabilityMode.NONE;
+                // Buckets are striped over the directories, a bucket stays in
+                // its directory as long as the list is not changed.
+                List<FileManager> buckets = new ArrayList<FileManager>();
+                for (int i = 0; i < PartitionedStorage.DEFAULT_BUCKETS; i++) {
+                    buckets.add(new FileManager(dataDirs.get(i % dataDirs.size()), nodeName + "_b" + i,
+                            bucketMode, AllocationMode.APPEND));
+                }
+                PartitionedStorage partitioned = new PartitionedStorage(buckets, durabilityMode);
+                partitioned.startCompactor();
+                return partitioned;
+            default:
+                return null;
+        }
+    }
+
+    private static String subDir(String dataDir, String name) {
+        return (dataDir.endsWith("/") ? dataDir : dataDir + "/") + name + "/";
+    }
+
+}
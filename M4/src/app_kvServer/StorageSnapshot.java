@@ -0,0 +1,23 @@
+package app_kvServer;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Point-in-time view of the key-value pairs of a StorageEngine, see
+ * StorageEngine.snapshot(). Writes made after the snapshot was taken are not
+ * visible in it. The pairs come in no particular order.
+ */
+public interface StorageSnapshot extends Iterable<Map.Entry<String, String>> {
+
+    /**
+     * Iterate the pairs of the snapshot, a snapshot is iterated only once
+     */
+    public Iterator<Map.Entry<String, String>> iterator();
+
+    /**
+     * Release the files the snapshot holds on to and let the storage reuse
+     * the space it kept for it
+     */
+    public void close();
+}
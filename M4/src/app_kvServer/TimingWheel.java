@@ -0,0 +1,214 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hierarchical timing wheel that tells a listener when the expiry of a key
+ * passed, without ever scanning the keys.
+ *
+ * Time advances in ticks. There are LEVELS wheels of SLOTS slots, a slot of
+ * level l spans SLOTS^l ticks. A key goes into the slot of the lowest level
+ * whose wheel reaches its expiry. Whenever the wheel of a level completes a
+ * turn the due slot of the level above is emptied into the lower levels, so
+ * a key moves down once per level before it expires in a slot of level 0.
+ * Scheduling and cancelling are O(1), a tick only touches the due slots.
+ * Expiries beyond the reach of the top level wait in its farthest slot and
+ * are placed again when it comes due.
+ *
+ * Keys never expire early, at most one tick late.
+ */
+public class TimingWheel implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public interface ExpiryListener {
+        // Called on the wheel thread once the expiry of the key passed.
+        public void expired(String key, long expiresAt);
+    }
+
+    public static final long DEFAULT_TICK_MS = 100;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private static class Timer {
+        final String key;
+        final long expiresAt;
+        final long tick;
+        int level;
+        int slot;
+
+        Timer(String key, long expiresAt, long tick) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final ExpiryListener listener;
+    // The slots are guarded by this, timers is only changed under it and
+    // read without it.
+    private final List<List<Set<Timer>>> wheels = new ArrayList<List<Set<Timer>>>();
+    private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private long currentTick = 0;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    public TimingWheel(ExpiryListener listener) {
+        this(DEFAULT_TICK_MS, listener);
+    }
+
+    /**
+     * @param tickMillis length of a tick, the precision of the expiries
+     */
+    public TimingWheel(long tickMillis, ExpiryListener listener) {
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+        this.listener = listener;
+        for (int level = 0; level < LEVELS; level++) {
+            List<Set<Timer>> slots = new ArrayList<Set<Timer>>(SLOTS);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots.add(new HashSet<Timer>());
+            }
+            wheels.add(slots);
+        }
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+    }
+
+    /**
+     * Schedules the expiry of the key, replacing an earlier one.
+     * @param expiresAt expiry in epoch milliseconds
+     */
+    public synchronized void schedule(String key, long expiresAt) {
+        cancel(key);
+        long tick = Math.max(currentTick + 1, ceilDiv(expiresAt - startMillis, tickMillis));
+        Timer timer = new Timer(key, expiresAt, tick);
+        place(timer);
+        timers.put(key, timer);
+    }
+
+    public synchronized void cancel(String key) {
+        Timer timer = timers.remove(key);
+        if (timer != null) wheels.get(timer.level).get(timer.slot).remove(timer);
+    }
+
+    // Expiry of the key in epoch milliseconds, 0 if none is scheduled.
+    public long getExpiry(String key) {
+        Timer timer = timers.get(key);
+        return timer == null ? 0 : timer.expiresAt;
+    }
+
+    // True if the key has an expiry not after now that did not fire yet.
+    public boolean isExpired(String key, long now) {
+        long expiresAt = getExpiry(key);
+        return expiresAt != 0 && expiresAt <= now;
+    }
+
+    // Number of scheduled keys.
+    public int size() {
+        return timers.size();
+    }
+
+    /**
+     * Advances the wheel to the given time and tells the listener about the
+     * keys that expired by then. Called by the wheel thread every tick.
+     */
+    public void advanceTo(long nowMillis) {
+        List<Timer> expired = new ArrayList<Timer>();
+        synchronized (this) {
+            long targetTick = (nowMillis - startMillis) / tickMillis;
+            if (timers.isEmpty() && targetTick > currentTick) currentTick = targetTick;
+            while (currentTick < targetTick) {
+                currentTick++;
+                // Higher levels first, their keys may move into a lower slot
+                // that is due at the same tick.
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) continue;
+                    for (Timer timer : takeSlot(level, slotOf(currentTick, level))) {
+                        place(timer);
+                    }
+                }
+                for (Timer timer : takeSlot(0, slotOf(currentTick, 0))) {
+                    if (timer.tick > currentTick) {
+                        place(timer);
+                    } else {
+                        timers.remove(timer.key);
+                        expired.add(timer);
+                    }
+                }
+            }
+        }
+        for (Timer timer : expired) {
+            try {
+                listener.expired(timer.key, timer.expiresAt);
+            } catch (Exception e) {
+                logger.error("Could not expire key " + timer.key, e);
+            }
+        }
+    }
+
+    // Puts the timer into the slot of the lowest level that reaches its tick.
+    private void place(Timer timer) {
+        long delta = timer.tick - currentTick;
+        long tick = timer.tick;
+        if (delta >= 1L << (SLOT_BITS * LEVELS)) {
+            tick = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+            delta = tick - currentTick;
+        }
+        int level = 0;
+        while (delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        timer.level = level;
+        timer.slot = slotOf(tick, level);
+        wheels.get(level).get(timer.slot).add(timer);
+    }
+
+    private Set<Timer> takeSlot(int level, int slot) {
+        Set<Timer> due = wheels.get(level).get(slot);
+        if (due.isEmpty()) return due;
+        wheels.get(level).set(slot, new HashSet<Timer>());
+        return due;
+    }
+
+    private static int slotOf(long tick, int level) {
+        return (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return -Math.floorDiv(-dividend, divisor);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(tickMillis);
+                advanceTo(System.currentTimeMillis());
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error("Timing wheel tick failed", e);
+            }
+        }
+    }
+}
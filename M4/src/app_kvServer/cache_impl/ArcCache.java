@@ -0,0 +1,223 @@
+package cache_impl;
+
+import app_kvServer.CacheManager;
+import app_kvServer.IKVServer.CacheStrategy;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Adaptive Replacement Cache. Keys seen once live in the recency list t1,
+ * keys seen again move to the frequency list t2, both least recent first.
+ * Keys evicted from either list are remembered without their values in the
+ * ghost lists b1 and b2. A miss that hits b1 means t1 was too small, one
+ * that hits b2 that t2 was, and the target share of t1, p, moves towards
+ * the list that would have kept the key. The cache thus adapts between
+ * recency and frequency by itself.
+ *
+ * Sizes are weights, see CacheManager, the ghost lists remember the weight
+ * of the pairs they stand for.
+ */
+public class ArcCache extends CacheManager {
+
+    public ArcCache(int cacheSize, CacheStrategy cacheStrategy) {
+        this(cacheSize, cacheStrategy, 0, 0);
+    }
+
+    public ArcCache(int cacheSize, CacheStrategy cacheStrategy, long byteBudget, int maxEntryBytes) {
+        super(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
+    }
+
+    @Override
+    public void putKV(String key, String value) throws Exception {
+        lock.acquire();
+        try {
+            if (!admits(key, value)) {
+                remove(key);
+                return;
+            }
+            long weight = weight(key, value);
+            if (t1.containsKey(key) || t2.containsKey(key)) {
+                // An update counts as a hit.
+                remove(key);
+                replace(weight, false);
+                insert(t2, key, value);
+            } else if (b1.containsKey(key)) {
+                long ghostWeight = b1.get(key);
+                target = Math.min(capacity(), target + Math.max(weight, weight * b2Weight / ghostWeight(b1Weight)));
+                b1.remove(key);
+                b1Weight -= ghostWeight;
+                replace(weight, false);
+                insert(t2, key, value);
+            } else if (b2.containsKey(key)) {
+                long ghostWeight = b2.get(key);
+                target = Math.max(0, target - Math.max(weight, weight * b1Weight / ghostWeight(b2Weight)));
+                b2.remove(key);
+                b2Weight -= ghostWeight;
+                replace(weight, true);
+                insert(t2, key, value);
+            } else {
+                // Keep t1 and b1 together within the capacity, and all four
+                // lists within twice of it.
+                while (t1Weight + b1Weight + weight > capacity() && !b1.isEmpty()) {
+                    b1Weight -= removeEldestGhost(b1);
+                }
+                while (t1Weight + b1Weight + weight > capacity() && !t1.isEmpty()) {
+                    t1Weight -= weightOf(removeEldest(t1));
+                }
+                while (t1Weight + t2Weight + b1Weight + b2Weight + weight > 2 * capacity() && !b2.isEmpty()) {
+                    b2Weight -= removeEldestGhost(b2);
+                }
+                replace(weight, false);
+                insert(t1, key, value);
+            }
+        } finally {
+            usedWeight = t1Weight + t2Weight;
+            lock.release();
+        }
+    }
+
+    @Override
+    public String getKV(String key) throws Exception {
+        lock.acquire();
+        try {
+            String value = t1.remove(key);
+            if (value != null) {
+                long weight = weight(key, value);
+                t1Weight -= weight;
+                t2.put(key, value);
+                t2Weight += weight;
+                return value;
+            }
+            // Access ordered, the get moves the key to the recent end.
+            return t2.get(key);
+        } finally {
+            lock.release();
+        }
+    }
+
+    // Evicts from t1 or t2 into their ghost lists until the weight fits,
+    // from t1 while it holds more than its target share.
+    private void replace(long weight, boolean inB2) {
+        while (t1Weight + t2Weight + weight > capacity() && !(t1.isEmpty() && t2.isEmpty())) {
+            if (!t1.isEmpty() && (t1Weight > target || (inB2 && t1Weight == target) || t2.isEmpty())) {
+                Map.Entry<String, String> evicted = removeEldest(t1);
+                long evictedWeight = weightOf(evicted);
+                t1Weight -= evictedWeight;
+                b1.put(evicted.getKey(), evictedWeight);
+                b1Weight += evictedWeight;
+            } else {
+                Map.Entry<String, String> evicted = removeEldest(t2);
+                long evictedWeight = weightOf(evicted);
+                t2Weight -= evictedWeight;
+                b2.put(evicted.getKey(), evictedWeight);
+                b2Weight += evictedWeight;
+            }
+        }
+    }
+
+    private void insert(LinkedHashMap<String, String> list, String key, String value) {
+        list.put(key, value);
+        if (list == t1) {
+            t1Weight += weight(key, value);
+        } else {
+            t2Weight += weight(key, value);
+        }
+    }
+
+    private long weightOf(Map.Entry<String, String> entry) {
+        return weight(entry.getKey(), entry.getValue());
+    }
+
+    private static long ghostWeight(long weight) {
+        return Math.max(1, weight);
+    }
+
+    private static Map.Entry<String, String> removeEldest(LinkedHashMap<String, String> list) {
+        Iterator<Map.Entry<String, String>> entries = list.entrySet().iterator();
+        Map.Entry<String, String> eldest = entries.next();
+        Map.Entry<String, String> removed = new AbstractMap.SimpleEntry<String, String>(eldest);
+        entries.remove();
+        return removed;
+    }
+
+    private static long removeEldestGhost(LinkedHashMap<String, Long> ghosts) {
+        Iterator<Map.Entry<String, Long>> entries = ghosts.entrySet().iterator();
+        long weight = entries.next().getValue();
+        entries.remove();
+        return weight;
+    }
+
+    // Forgets the key in all four lists.
+    private void remove(String key) {
+        String value;
+        Long ghost;
+        if ((value = t1.remove(key)) != null) t1Weight -= weight(key, value);
+        if ((value = t2.remove(key)) != null) t2Weight -= weight(key, value);
+        if ((ghost = b1.remove(key)) != null) b1Weight -= ghost;
+        if ((ghost = b2.remove(key)) != null) b2Weight -= ghost;
+    }
+
+    @Override
+    public boolean inCache(String key) throws Exception {
+        lock.acquire();
+        boolean result = t1.containsKey(key) || t2.containsKey(key);
+        lock.release();
+        return result;
+    }
+
+    @Override
+    public void delete(String key) throws Exception {
+        lock.acquire();
+        remove(key);
+        usedWeight = t1Weight + t2Weight;
+        lock.release();
+    }
+
+    @Override
+    public void clearCache() throws Exception {
+        lock.acquire();
+        t1.clear();
+        t2.clear();
+        b1.clear();
+        b2.clear();
+        t1Weight = t2Weight = b1Weight = b2Weight = usedWeight = 0;
+        target = 0;
+        lock.release();
+    }
+
+    // The frequency list before the recency list, most recent first in each.
+    @Override
+    public List<String> getHotKeys(int limit) throws Exception {
+        lock.acquire();
+        try {
+            List<String> keys = new ArrayList<String>(newestFirst(t2.keySet(), limit));
+            keys.addAll(newestFirst(t1.keySet(), limit - keys.size()));
+            return keys;
+        } finally {
+            lock.release();
+        }
+    }
+
+    // Target weight of t1, adapted on ghost hits.
+    public long getTarget() {
+        return target;
+    }
+
+    private final LinkedHashMap<String, String> t1 = new LinkedHashMap<String, String>(16, 0.75f, true);
+    private final LinkedHashMap<String, String> t2 = new LinkedHashMap<String, String>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> b1 = new LinkedHashMap<String, Long>();
+    private final LinkedHashMap<String, Long> b2 = new LinkedHashMap<String, Long>();
+    private long t1Weight = 0;
+    private long t2Weight = 0;
+    private long b1Weight = 0;
+    private long b2Weight = 0;
+    private long target = 0;
+    private final Semaphore lock = new Semaphore(1);
+
+}
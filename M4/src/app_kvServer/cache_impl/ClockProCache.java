@@ -0,0 +1,292 @@
+package cache_impl;
+
+import app_kvServer.CacheManager;
+import app_kvServer.IKVServer.CacheStrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * CLOCK-Pro cache. All keys sit on one circular list that three hands sweep.
+ * Resident keys are hot or cold, and cold keys that were evicted stay on the
+ * list without their value for a test period. A key that misses during its
+ * test period was evicted too early, so it comes back hot and the target
+ * share of cold keys grows; test periods that run out shrink it again. The
+ * cache thus adapts between recency and frequency by itself.
+ *
+ * A hit only sets the reference bit of the key, no node is moved, so gets
+ * take no lock. Puts and deletes are serialized.
+ *
+ * Sizes are weights, see CacheManager.
+ */
+public class ClockProCache extends CacheManager {
+
+    private enum Type { HOT, COLD, TEST }
+
+    private static class Node {
+        final String key;
+        // Null once the key is only a test entry.
+        volatile String value;
+        volatile boolean referenced = false;
+        Type type = Type.COLD;
+        long weight;
+        Node previous = this;
+        Node next = this;
+
+        Node(String key, String value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    public ClockProCache(int cacheSize, CacheStrategy cacheStrategy) {
+        this(cacheSize, cacheStrategy, 0, 0);
+    }
+
+    public ClockProCache(int cacheSize, CacheStrategy cacheStrategy, long byteBudget, int maxEntryBytes) {
+        super(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
+        coldTarget = capacity();
+    }
+
+    @Override
+    public void putKV(String key, String value) throws Exception {
+        lock.acquire();
+        try {
+            Node node = nodes.get(key);
+            if (!admits(key, value)) {
+                if (node != null) unlinkNode(node);
+                return;
+            }
+            long weight = weight(key, value);
+            if (node != null && node.type != Type.TEST) {
+                if (node.type == Type.HOT) {
+                    hotWeight += weight - node.weight;
+                } else {
+                    coldWeight += weight - node.weight;
+                }
+                node.weight = weight;
+                node.value = value;
+                node.referenced = true;
+                evict(0);
+                return;
+            }
+            if (node != null) {
+                // Missed in its test period, cold keys need more room.
+                coldTarget = Math.min(capacity(), coldTarget + weight);
+                unlinkNode(node);
+                node = new Node(key, value, weight);
+                node.type = Type.HOT;
+                add(node);
+                hotWeight += weight;
+            } else {
+                node = new Node(key, value, weight);
+                add(node);
+                coldWeight += weight;
+            }
+        } finally {
+            usedWeight = hotWeight + coldWeight;
+            lock.release();
+        }
+    }
+
+    @Override
+    public String getKV(String key) throws Exception {
+        Node node = nodes.get(key);
+        if (node == null) return null;
+        String value = node.value;
+        if (value != null) node.referenced = true;
+        return value;
+    }
+
+    // Makes room for the weight and links the node in behind the hot hand.
+    private void add(Node node) {
+        evict(node.weight);
+        nodes.put(node.key, node);
+        if (handHot == null) {
+            handHot = handCold = handTest = node;
+            return;
+        }
+        node.next = handHot;
+        node.previous = handHot.previous;
+        handHot.previous.next = node;
+        handHot.previous = node;
+        if (handCold == handHot) handCold = handCold.previous;
+    }
+
+    /**
+     * Moves the cold hand a step at a time until the incoming weight fits,
+     * with the test and hot hands following up after each step. A hand
+     * pushes the one it catches up with a single step ahead, no further, and
+     * the follow-up sweeps stop after a lap. Once the cold hand went a lap
+     * without freeing a key, e.g. while gets keep setting reference bits,
+     * cold keys go regardless of them, and after another lap hot keys too.
+     */
+    private void evict(long incoming) {
+        int idleSteps = 0;
+        while (hotWeight + coldWeight + incoming > capacity() && hotWeight + coldWeight > 0) {
+            int lap = nodes.size();
+            if (stepHandCold(idleSteps > lap)) {
+                idleSteps = 0;
+            } else {
+                idleSteps++;
+            }
+            for (int steps = lap; steps > 0 && testWeight > capacity() && handTest != null; steps--) {
+                stepHandTest();
+            }
+            // Hot keys may take what the cold target and the incoming key
+            // leave. The budget is never negative, so an incoming key of up
+            // to the capacity always fits.
+            long hotBudget = Math.max(0, capacity() - Math.max(coldTarget, incoming));
+            for (int steps = lap; steps > 0 && hotWeight > hotBudget && handHot != null; steps--) {
+                stepHandHot(idleSteps > 2 * lap);
+                hotBudget = Math.max(0, capacity() - Math.max(coldTarget, incoming));
+            }
+        }
+    }
+
+    // A referenced cold key turns hot unless force is set, an unreferenced
+    // one loses its value and starts its test period. Returns whether a key
+    // lost its value.
+    private boolean stepHandCold(boolean force) {
+        if (handCold == null) return false;
+        Node node = handCold;
+        handCold = handCold.next;
+        if (node.type != Type.COLD) return false;
+        if (node.referenced && !force) {
+            node.type = Type.HOT;
+            node.referenced = false;
+            coldWeight -= node.weight;
+            hotWeight += node.weight;
+            return false;
+        }
+        node.type = Type.TEST;
+        node.referenced = false;
+        node.value = null;
+        coldWeight -= node.weight;
+        testWeight += node.weight;
+        return true;
+    }
+
+    // An unreferenced hot key turns cold, a referenced one gets another round
+    // unless force is set.
+    private void stepHandHot(boolean force) {
+        if (handHot == handTest) stepHandTest();
+        if (handHot == null) return;
+        Node node = handHot;
+        handHot = handHot.next;
+        if (node.type != Type.HOT) return;
+        if (node.referenced && !force) {
+            node.referenced = false;
+            return;
+        }
+        node.type = Type.COLD;
+        node.referenced = false;
+        hotWeight -= node.weight;
+        coldWeight += node.weight;
+    }
+
+    // Ends the test period of the next test key, cold keys need less room.
+    private void stepHandTest() {
+        if (handTest == handCold) stepHandCold(false);
+        if (handTest == null) return;
+        Node node = handTest;
+        if (node.type == Type.TEST) {
+            // Moves the hand back to the previous node.
+            unlinkNode(node);
+            coldTarget = Math.max(Math.min(capacity(), 1), coldTarget - node.weight);
+            if (handTest == null) return;
+        }
+        handTest = handTest.next;
+    }
+
+    // Unlinks the node from the list, moving hands that point at it back.
+    private void unlinkNode(Node node) {
+        nodes.remove(node.key);
+        switch (node.type) {
+            case HOT: hotWeight -= node.weight; break;
+            case COLD: coldWeight -= node.weight; break;
+            case TEST: testWeight -= node.weight; break;
+        }
+        node.value = null;
+        if (node.next == node) {
+            handHot = handCold = handTest = null;
+            return;
+        }
+        if (handHot == node) handHot = node.previous;
+        if (handCold == node) handCold = node.previous;
+        if (handTest == node) handTest = node.previous;
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+        node.previous = node.next = node;
+    }
+
+    @Override
+    public boolean inCache(String key) throws Exception {
+        Node node = nodes.get(key);
+        return node != null && node.value != null;
+    }
+
+    @Override
+    public void delete(String key) throws Exception {
+        lock.acquire();
+        Node node = nodes.get(key);
+        if (node != null) unlinkNode(node);
+        usedWeight = hotWeight + coldWeight;
+        lock.release();
+    }
+
+    @Override
+    public void clearCache() throws Exception {
+        lock.acquire();
+        for (Node node : nodes.values()) {
+            node.value = null;
+        }
+        nodes.clear();
+        handHot = handCold = handTest = null;
+        hotWeight = coldWeight = testWeight = usedWeight = 0;
+        coldTarget = capacity();
+        lock.release();
+    }
+
+    // Hot keys before cold ones, the referenced ones first in each.
+    @Override
+    public List<String> getHotKeys(int limit) throws Exception {
+        lock.acquire();
+        try {
+            List<List<String>> ranks = new ArrayList<List<String>>();
+            for (int rank = 0; rank < 4; rank++) {
+                ranks.add(new ArrayList<String>());
+            }
+            for (Node node : nodes.values()) {
+                if (node.type == Type.TEST) continue;
+                ranks.get((node.type == Type.HOT ? 0 : 2) + (node.referenced ? 0 : 1)).add(node.key);
+            }
+            List<String> keys = new ArrayList<String>();
+            for (List<String> rank : ranks) {
+                keys.addAll(rank.subList(0, Math.min(rank.size(), limit - keys.size())));
+            }
+            return keys;
+        } finally {
+            lock.release();
+        }
+    }
+
+    // Weight the cold keys are meant to take, adapted on test period ends.
+    public long getColdTarget() {
+        return coldTarget;
+    }
+
+    private final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+    private Node handHot = null;
+    private Node handCold = null;
+    private Node handTest = null;
+    private long hotWeight = 0;
+    private long coldWeight = 0;
+    private long testWeight = 0;
+    private long coldTarget;
+    private final Semaphore lock = new Semaphore(1);
+
+}
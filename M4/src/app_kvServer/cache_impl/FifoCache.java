@@ -3,21 +3,44 @@ package cache_impl;
 import app_kvServer.CacheManager;
 import app_kvServer.IKVServer.CacheStrategy;
 
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
 
 public class FifoCache extends CacheManager {
 
     public FifoCache(int cacheSize, CacheStrategy cacheStrategy) {
-        super(cacheSize, cacheStrategy);
-        map = new LinkedHashMapCache(cacheSize, /*isAccessOrder=*/ false);
+        this(cacheSize, cacheStrategy, 0, 0);
+    }
+
+    public FifoCache(int cacheSize, CacheStrategy cacheStrategy, long byteBudget, int maxEntryBytes) {
+        super(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
+        // putKV evicts by weight, the map never evicts by itself.
+        map = new LinkedHashMapCache(Integer.MAX_VALUE, /*isAccessOrder=*/ false);
     }
 
     @Override
     public void putKV(String key, String value) throws Exception {
-        // LinkedHashMapCache takes care of LRU logic.
+        // LinkedHashMapCache keeps the eviction order.
         lock.acquire();
-        map.put(key, value);
-        lock.release();
+        try {
+            if (!admits(key, value)) {
+                remove(key);
+                return;
+            }
+            String previous = map.put(key, value);
+            usedWeight += weight(key, value) - (previous == null ? 0 : weight(key, previous));
+            // Evict from the eldest end until the entries fit again.
+            Iterator<Map.Entry<String, String>> eldest = map.entrySet().iterator();
+            while (usedWeight > capacity() && eldest.hasNext()) {
+                Map.Entry<String, String> entry = eldest.next();
+                usedWeight -= weight(entry.getKey(), entry.getValue());
+                eldest.remove();
+            }
+        } finally {
+            lock.release();
+        }
     }
 
     @Override
@@ -44,22 +67,34 @@ public class FifoCache extends CacheManager {
     @Override
     public void delete(String key) throws Exception {
         lock.acquire();
-        if (!map.containsKey(key)) {
-            lock.release();
-            return;
-        }
-
-        map.remove(key);
+        remove(key);
         lock.release();
     }
 
+    private void remove(String key) {
+        String previous = map.remove(key);
+        if (previous != null) usedWeight -= weight(key, previous);
+    }
+
     @Override
     public void clearCache() throws Exception {
         lock.acquire();
         map.clear();
+        usedWeight = 0;
         lock.release();
     }
 
+    // Newest first, the keys evicted last.
+    @Override
+    public List<String> getHotKeys(int limit) throws Exception {
+        lock.acquire();
+        try {
+            return newestFirst(map.keySet(), limit);
+        } finally {
+            lock.release();
+        }
+    }
+
     public LinkedHashMapCache map;
     private final Semaphore lock = new Semaphore(1);
 
@@ -0,0 +1,77 @@
+package cache_impl;
+
+import java.util.Arrays;
+
+/**
+ * Count-Min sketch of how often keys were seen recently, the admission filter
+ * of TinyLfuCache. Each key maps to one counter per row, its frequency is the
+ * smallest of them, so collisions can only overestimate it. Counters saturate
+ * at 15. After about ten times the cache size increments all counters are
+ * halved, so keys that were popular long ago lose their weight.
+ */
+public class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb9e3779b, 0x7f4a7c15, 0x2545f491};
+
+    public FrequencySketch(int cacheSize) {
+        int width = Integer.highestOneBit(Math.max(16, cacheSize - 1) << 1);
+        table = new byte[DEPTH][width];
+        mask = width - 1;
+        sampleSize = 10 * Math.max(1, cacheSize);
+    }
+
+    // Estimated number of recent accesses to the key, at most 15.
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, table[row][index(hash, row)]);
+        }
+        return min;
+    }
+
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(hash, row);
+            if (table[row][index] < MAX_COUNT) table[row][index]++;
+        }
+        if (++additions >= sampleSize) age();
+    }
+
+    // Halves every counter.
+    private void age() {
+        for (byte[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    public void clear() {
+        for (byte[] row : table) {
+            Arrays.fill(row, (byte) 0);
+        }
+        additions = 0;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        return h ^ (h >>> 11);
+    }
+
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+}
@@ -6,68 +6,108 @@ import java.util.concurrent.Semaphore;
 import app_kvServer.CacheManager;
 import app_kvServer.IKVServer.CacheStrategy;
 
+/**
+ * LFU cache with constant time get, put and delete. Keys with the same count
+ * hang off one node of a doubly linked list of counts in increasing order,
+ * least recently used first. A hit moves the key to the next count's node,
+ * an eviction takes the first key of the first node.
+ *
+ * Counts age: after ten times the cache size accesses every count is halved,
+ * so keys that were popular long ago can be evicted again once they are no
+ * longer hit. Halving is linear in the cache size but amortized over the
+ * accesses in between.
+ */
 public class LfuCache extends CacheManager {
 
+    // A cached key, linked into the keys of its count.
+    public static class Node {
+        private final String key;
+        private String value;
+        private Frequency frequency;
+        private Node previous;
+        private Node next;
+
+        private Node(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public int getCount() {
+            return frequency.count;
+        }
+    }
+
+    // The keys accessed count times, oldest first.
+    private static class Frequency {
+        private int count;
+        private Node first;
+        private Node last;
+        private Frequency previous;
+        private Frequency next;
+
+        private Frequency(int count) {
+            this.count = count;
+        }
+    }
+
     public LfuCache(int cacheSize, CacheStrategy cacheStrategy) {
-        super(cacheSize, cacheStrategy);
+        this(cacheSize, cacheStrategy, 0, 0);
+    }
+
+    public LfuCache(int cacheSize, CacheStrategy cacheStrategy, long byteBudget, int maxEntryBytes) {
+        super(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
         mapValues = new HashMap<>();
-        mapCounts = new HashMap<>();
-        mapOrders = new HashMap<>();
-        mapOrders.put(1, new LinkedHashSet<String>());
+        agingPeriod = 10 * Math.max(1, cacheSize);
     }
 
     @Override
     public void putKV(String key, String value) throws Exception {
         lock.acquire();
-        if (mapValues.containsKey(key)) {
-            mapValues.put(key, value);
-            lock.release();
-            return;
-        }
-
         try {
-            // Evict.
-            if (mapValues.size() >= cacheSize) {
-                String evictKey = mapOrders.get(MinFrequency).iterator().next();
-                mapOrders.get(MinFrequency).remove(evictKey);
-                mapValues.remove(evictKey);
-                mapCounts.remove(evictKey);
+            Node node = mapValues.get(key);
+            if (!admits(key, value)) {
+                if (node != null) remove(node);
+                return;
             }
-            mapValues.put(key, value);
-            mapCounts.put(key, 1);
-            MinFrequency = 1;
-            mapOrders.get(1).add(key);
-        } catch (Exception e) {
-            return;
+            if (node != null) {
+                usedWeight += weight(key, value) - weight(key, node.value);
+                node.value = value;
+                while (lowest != null && usedWeight > capacity()) evict();
+                return;
+            }
+            long weight = weight(key, value);
+            while (lowest != null && usedWeight + weight > capacity()) evict();
+            node = new Node(key, value);
+            if (lowest == null || lowest.count != 1) insertFrequency(new Frequency(1), null);
+            append(lowest, node);
+            mapValues.put(key, node);
+            usedWeight += weight;
+            accessed();
         } finally {
             lock.release();
         }
-
     }
 
     @Override
     public String getKV(String key) throws Exception {
         lock.acquire();
-        if (!mapValues.containsKey(key)) {
-            lock.release();
-            return null;
-        }
-
         try {
-            int count = mapCounts.get(key);
-            mapCounts.put(key, count + 1);
-            mapOrders.get(count).remove(key);
-
-            if (count == MinFrequency && mapOrders.get(count).size() == 0)
-                MinFrequency++;
-            if (!mapOrders.containsKey(count + 1))
-                mapOrders.put(count + 1, new LinkedHashSet<String>());
-            mapOrders.get(count + 1).add(key);
-
-            String result = mapValues.get(key);
-            return result;
-        } catch (Exception e) {
-            return null;
+            Node node = mapValues.get(key);
+            if (node == null) return null;
+            Frequency current = node.frequency;
+            Frequency higher = current.next;
+            if (higher == null || higher.count != current.count + 1) {
+                higher = new Frequency(current.count + 1);
+                insertFrequency(higher, current);
+            }
+            unlink(node);
+            append(higher, node);
+            accessed();
+            return node.value;
         } finally {
             lock.release();
         }
@@ -84,50 +124,136 @@ public class LfuCache extends CacheManager {
     @Override
     public void delete(String key) throws Exception {
         lock.acquire();
-        if (!mapValues.containsKey(key)) {
-            lock.release();
-            return;
-        }
+        Node node = mapValues.get(key);
+        if (node != null) remove(node);
+        lock.release();
+    }
 
-        try {
-            mapValues.remove(key);
-            mapOrders.get(mapCounts.get(key)).remove(key);
-            mapCounts.remove(key);
+    @Override
+    public void clearCache() throws Exception {
+        lock.acquire();
+        mapValues.clear();
+        lowest = null;
+        usedWeight = 0;
+        accesses = 0;
+        lock.release();
+    }
 
-            // Check if there is at least one element in the cache
-            if (!mapValues.isEmpty()) {
-                MinFrequency = -1;
-            } else {
-                int min = Integer.MAX_VALUE;
-                for (int i : mapOrders.keySet()) {
-                    if (mapOrders.get(i).isEmpty()) continue;
-                    if (i < min) min = i;
+    // Highest counts first, the most recent first within a count.
+    @Override
+    public List<String> getHotKeys(int limit) throws Exception {
+        lock.acquire();
+        try {
+            List<String> keys = new ArrayList<String>();
+            Frequency highest = lowest;
+            while (highest != null && highest.next != null) {
+                highest = highest.next;
+            }
+            for (Frequency frequency = highest; frequency != null && keys.size() < limit; frequency = frequency.previous) {
+                for (Node node = frequency.last; node != null && keys.size() < limit; node = node.previous) {
+                    keys.add(node.key);
                 }
-                MinFrequency = min;
             }
-        } catch (Exception e){
-            return;
+            return keys;
         } finally {
             lock.release();
         }
     }
 
-    @Override
-    public void clearCache() throws Exception {
-        lock.acquire();
-        mapValues.clear();
-        mapOrders.clear();
-        mapOrders.put(1, new LinkedHashSet<String>());
-        mapCounts.clear();
-        MinFrequency = -1;
-        lock.release();
+    // Evicts the least recently used of the least frequently used keys.
+    private void evict() {
+        if (lowest == null) return;
+        remove(lowest.first);
+    }
+
+    private void remove(Node node) {
+        mapValues.remove(node.key);
+        unlink(node);
+        usedWeight -= weight(node.key, node.value);
+    }
+
+    private void accessed() {
+        if (++accesses >= agingPeriod) {
+            age();
+            accesses = 0;
+        }
     }
 
-    private int MinFrequency = -1;
-    public Map<String, String> mapValues;
-    public Map<String, Integer> mapCounts;
-    public Map<Integer, LinkedHashSet<String>> mapOrders;
+    // Halves every count, merging the counts that become equal. Halving keeps
+    // the order of the counts, so the list stays sorted.
+    private void age() {
+        Frequency merged = null;
+        for (Frequency frequency = lowest; frequency != null; ) {
+            Frequency next = frequency.next;
+            frequency.count = Math.max(1, frequency.count / 2);
+            if (merged != null && merged.count == frequency.count) {
+                for (Node node = frequency.first; node != null; ) {
+                    Node following = node.next;
+                    append(merged, node);
+                    node = following;
+                }
+                merged.next = next;
+                if (next != null) next.previous = merged;
+            } else {
+                merged = frequency;
+            }
+            frequency = next;
+        }
+    }
+
+    // Links the frequency in after the given one, at the start if it is null.
+    private void insertFrequency(Frequency frequency, Frequency after) {
+        frequency.previous = after;
+        frequency.next = after == null ? lowest : after.next;
+        if (frequency.next != null) frequency.next.previous = frequency;
+        if (after == null) {
+            lowest = frequency;
+        } else {
+            after.next = frequency;
+        }
+    }
+
+    private static void append(Frequency frequency, Node node) {
+        node.frequency = frequency;
+        node.previous = frequency.last;
+        node.next = null;
+        if (frequency.last == null) {
+            frequency.first = node;
+        } else {
+            frequency.last.next = node;
+        }
+        frequency.last = node;
+    }
+
+    // Unlinks the node from its count, and the count once no key has it.
+    private void unlink(Node node) {
+        Frequency frequency = node.frequency;
+        if (node.previous == null) {
+            frequency.first = node.next;
+        } else {
+            node.previous.next = node.next;
+        }
+        if (node.next == null) {
+            frequency.last = node.previous;
+        } else {
+            node.next.previous = node.previous;
+        }
+        node.previous = null;
+        node.next = null;
+        if (frequency.first != null) return;
+        if (frequency.previous == null) {
+            lowest = frequency.next;
+        } else {
+            frequency.previous.next = frequency.next;
+        }
+        if (frequency.next != null) frequency.next.previous = frequency.previous;
+    }
+
+    public Map<String, Node> mapValues;
+    // Head of the list of counts, the lowest count.
+    private Frequency lowest = null;
+    private final int agingPeriod;
+    private int accesses = 0;
     private final Semaphore lock = new Semaphore(1);
 
 }
-
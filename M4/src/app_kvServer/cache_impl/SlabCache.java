@@ -0,0 +1,322 @@
+package cache_impl;
+
+import app_kvServer.CacheManager;
+import app_kvServer.IKVServer.CacheStrategy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Cache that keeps the values off the heap, as UTF-8 in direct ByteBuffer
+ * pages, so a large cache adds neither heap nor GC work. Only the keys and
+ * a small handle per entry stay on the heap.
+ *
+ * Pages are cut into chunks of one size class, the classes grow by
+ * CHUNK_GROWTH from MIN_CHUNK up to the page size, and a value takes a chunk
+ * of the smallest class it fits. Each class evicts its own entries, least
+ * recently used first, so a value only displaces values of about its size.
+ * A class that has neither free chunks nor entries when the pages ran out
+ * takes over the page of the least recently used entry of the class with
+ * the most pages.
+ *
+ * With a byte budget the pages take at most the budget and usedBytes counts
+ * the chunks of the entries. Without one the cache holds cacheSize entries
+ * and pages are added as they are needed.
+ */
+public class SlabCache extends CacheManager {
+
+    public static final int MAX_PAGE_SIZE = 1 << 20;
+    private static final int MIN_PAGE_SIZE = 1 << 12;
+    // A budget is cut into at least this many pages, so that several size
+    // classes get some.
+    private static final int MIN_PAGES = 16;
+    private static final int MIN_CHUNK = 64;
+    private static final double CHUNK_GROWTH = 1.25;
+
+    // Location of a value: chunk is the page index in the high and the
+    // offset in the low 32 bits.
+    private static class Handle {
+        final int sizeClass;
+        final long chunk;
+        final int length;
+
+        Handle(int sizeClass, long chunk, int length) {
+            this.sizeClass = sizeClass;
+            this.chunk = chunk;
+            this.length = length;
+        }
+    }
+
+    private static class SizeClass {
+        final int chunkSize;
+        // Access ordered, least recently used first.
+        final LinkedHashMap<String, Handle> entries = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+        final ArrayDeque<Long> freeChunks = new ArrayDeque<Long>();
+        final List<Integer> pages = new ArrayList<Integer>();
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    private final int pageSize;
+    private final int maxPages;
+    private final SizeClass[] classes;
+    private final HashMap<String, Handle> index = new HashMap<String, Handle>();
+    private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+    private final Semaphore lock = new Semaphore(1);
+
+    public SlabCache(int cacheSize, CacheStrategy cacheStrategy) {
+        this(cacheSize, cacheStrategy, 0, 0);
+    }
+
+    /**
+     * @param byteBudget off-heap bytes the pages may take, 0 to limit the
+     *                   number of entries to cacheSize instead
+     * @param maxEntryBytes values taking larger chunks are not cached, 0 for
+     *                   no limit besides the page size
+     */
+    public SlabCache(int cacheSize, CacheStrategy cacheStrategy, long byteBudget, int maxEntryBytes) {
+        super(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
+        if (isWeighted()) {
+            long share = Integer.highestOneBit((int) Math.min(MAX_PAGE_SIZE, Math.max(1, byteBudget / MIN_PAGES)));
+            pageSize = (int) Math.max(MIN_PAGE_SIZE, share);
+            maxPages = (int) Math.max(1, Math.min(Integer.MAX_VALUE, byteBudget / pageSize));
+        } else {
+            pageSize = MAX_PAGE_SIZE;
+            maxPages = Integer.MAX_VALUE;
+        }
+        List<SizeClass> sizes = new ArrayList<SizeClass>();
+        for (int size = MIN_CHUNK; size < pageSize; size = (int) Math.ceil(size * CHUNK_GROWTH / 8) * 8) {
+            sizes.add(new SizeClass(size));
+        }
+        sizes.add(new SizeClass(pageSize));
+        classes = sizes.toArray(new SizeClass[sizes.size()]);
+    }
+
+    @Override
+    public void putKV(String key, String value) throws Exception {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        lock.acquire();
+        try {
+            remove(key);
+            int sizeClass = classOf(bytes.length);
+            if (sizeClass < 0) return;
+            if (!isWeighted()) {
+                while (index.size() >= cacheSize) {
+                    evictEldest(classes[classes[sizeClass].entries.isEmpty() ? fullestClass() : sizeClass]);
+                }
+            }
+            long chunk = allocate(sizeClass);
+            if (chunk < 0) return;
+            ByteBuffer page = pages.get(pageOf(chunk)).duplicate();
+            page.position(offsetOf(chunk));
+            page.put(bytes);
+            Handle handle = new Handle(sizeClass, chunk, bytes.length);
+            index.put(key, handle);
+            classes[sizeClass].entries.put(key, handle);
+            usedWeight += weightOf(handle);
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Override
+    public String getKV(String key) throws Exception {
+        byte[] bytes;
+        lock.acquire();
+        try {
+            Handle handle = index.get(key);
+            if (handle == null) return null;
+            // Moves the key to the recent end of its class.
+            classes[handle.sizeClass].entries.get(key);
+            ByteBuffer page = pages.get(pageOf(handle.chunk)).duplicate();
+            page.position(offsetOf(handle.chunk));
+            bytes = new byte[handle.length];
+            page.get(bytes);
+        } finally {
+            lock.release();
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Smallest class whose chunks take the value, -1 if none may.
+    private int classOf(int length) {
+        int low = 0;
+        int high = classes.length - 1;
+        if (length > classes[high].chunkSize) return -1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (classes[mid].chunkSize < length) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (maxEntryBytes > 0 && classes[low].chunkSize > maxEntryBytes) return -1;
+        return low;
+    }
+
+    /**
+     * Takes a free chunk of the class. Adds a page while the budget allows,
+     * then evicts within the class, then takes over a page of another class.
+     * @return the chunk, -1 if there is none to have
+     */
+    private long allocate(int sizeClass) {
+        SizeClass target = classes[sizeClass];
+        while (true) {
+            Long chunk = target.freeChunks.poll();
+            if (chunk != null) return chunk;
+            if (pages.size() < maxPages) {
+                pages.add(ByteBuffer.allocateDirect(pageSize));
+                assign(pages.size() - 1, target);
+            } else if (!target.entries.isEmpty()) {
+                evictEldest(target);
+            } else if (!reassignPage(target)) {
+                return -1;
+            }
+        }
+    }
+
+    // Cuts the page into chunks of the class.
+    private void assign(int page, SizeClass target) {
+        target.pages.add(page);
+        for (int offset = 0; offset + target.chunkSize <= pageSize; offset += target.chunkSize) {
+            target.freeChunks.add(((long) page << 32) | offset);
+        }
+    }
+
+    // Frees the page of the least recently used entry of the class with the
+    // most pages, evicting all entries on it, and gives it to the target.
+    private boolean reassignPage(SizeClass target) {
+        SizeClass victim = null;
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass != target && (victim == null || sizeClass.pages.size() > victim.pages.size())) {
+                victim = sizeClass;
+            }
+        }
+        if (victim == null || victim.pages.isEmpty()) return false;
+        int page = victim.entries.isEmpty() ? victim.pages.get(0)
+                : pageOf(victim.entries.values().iterator().next().chunk);
+        Iterator<Map.Entry<String, Handle>> entries = victim.entries.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Handle> entry = entries.next();
+            if (pageOf(entry.getValue().chunk) != page) continue;
+            index.remove(entry.getKey());
+            usedWeight -= weightOf(entry.getValue());
+            entries.remove();
+        }
+        Iterator<Long> chunks = victim.freeChunks.iterator();
+        while (chunks.hasNext()) {
+            if (pageOf(chunks.next()) == page) chunks.remove();
+        }
+        victim.pages.remove(Integer.valueOf(page));
+        assign(page, target);
+        return true;
+    }
+
+    // Class with the most entries, evicted from when the one of a new entry
+    // has none left to give.
+    private int fullestClass() {
+        int fullest = 0;
+        for (int sizeClass = 1; sizeClass < classes.length; sizeClass++) {
+            if (classes[sizeClass].entries.size() > classes[fullest].entries.size()) fullest = sizeClass;
+        }
+        return fullest;
+    }
+
+    private void evictEldest(SizeClass sizeClass) {
+        Iterator<Map.Entry<String, Handle>> eldest = sizeClass.entries.entrySet().iterator();
+        Map.Entry<String, Handle> entry = eldest.next();
+        index.remove(entry.getKey());
+        release(entry.getValue());
+        eldest.remove();
+    }
+
+    private void remove(String key) {
+        Handle handle = index.remove(key);
+        if (handle == null) return;
+        classes[handle.sizeClass].entries.remove(key);
+        release(handle);
+    }
+
+    private void release(Handle handle) {
+        classes[handle.sizeClass].freeChunks.push(handle.chunk);
+        usedWeight -= weightOf(handle);
+    }
+
+    // Off-heap bytes of the entry when weighted, else 1.
+    private long weightOf(Handle handle) {
+        return isWeighted() ? classes[handle.sizeClass].chunkSize : 1;
+    }
+
+    private static int pageOf(long chunk) {
+        return (int) (chunk >>> 32);
+    }
+
+    private static int offsetOf(long chunk) {
+        return (int) chunk;
+    }
+
+    @Override
+    public boolean inCache(String key) throws Exception {
+        lock.acquire();
+        boolean result = index.containsKey(key);
+        lock.release();
+        return result;
+    }
+
+    @Override
+    public void delete(String key) throws Exception {
+        lock.acquire();
+        remove(key);
+        lock.release();
+    }
+
+    // Drops the pages too, the direct buffers are freed once collected.
+    @Override
+    public void clearCache() throws Exception {
+        lock.acquire();
+        index.clear();
+        pages.clear();
+        for (SizeClass sizeClass : classes) {
+            sizeClass.entries.clear();
+            sizeClass.freeChunks.clear();
+            sizeClass.pages.clear();
+        }
+        usedWeight = 0;
+        lock.release();
+    }
+
+    // Most recently used first, the size classes taking turns.
+    @Override
+    public List<String> getHotKeys(int limit) throws Exception {
+        lock.acquire();
+        try {
+            List<List<String>> parts = new ArrayList<List<String>>();
+            for (SizeClass sizeClass : classes) {
+                if (!sizeClass.entries.isEmpty()) parts.add(newestFirst(sizeClass.entries.keySet(), limit));
+            }
+            return interleave(parts, limit);
+        } finally {
+            lock.release();
+        }
+    }
+
+    // Off-heap bytes taken by the pages, used or not.
+    public long getOffHeapBytes() {
+        return (long) pages.size() * pageSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+}
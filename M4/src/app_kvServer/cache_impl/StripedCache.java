@@ -0,0 +1,136 @@
+package cache_impl;
+
+import app_kvServer.CacheFactory;
+import app_kvServer.CacheManager;
+import app_kvServer.IKVServer.CacheStrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cache split into independent segments by key hash, each segment a cache of
+ * the same strategy with its own lock and a share of the capacity. Client
+ * threads only contend when their keys fall into the same segment, so hits
+ * on different keys proceed in parallel instead of queueing on one lock.
+ *
+ * Replacement decisions are made per segment: a key is evicted in favour of
+ * a newer, more recent or more frequent key of its own segment. With enough
+ * keys per segment this is close to the strategy applied to the whole cache.
+ * A byte budget is split evenly over the segments.
+ */
+public class StripedCache extends CacheManager {
+
+    public static final int MAX_SEGMENTS = 16;
+    // Segments smaller than this would distort the replacement order.
+    public static final int MIN_SEGMENT_SIZE = 32;
+
+    // Number of segments for a cache of the given size, a power of two.
+    public static int segmentsFor(int cacheSize) {
+        int segments = Integer.highestOneBit(Math.max(1, cacheSize / MIN_SEGMENT_SIZE));
+        return Math.min(MAX_SEGMENTS, segments);
+    }
+
+    // Number of segments for a byte budget, every segment has to hold at
+    // least MIN_SEGMENT_SIZE of the largest entries admitted.
+    public static int segmentsFor(long byteBudget, int maxEntryBytes) {
+        long largestEntry = maxEntryBytes > 0 ? maxEntryBytes : byteBudget / MIN_SEGMENT_SIZE;
+        long fitting = byteBudget / Math.max(1, largestEntry);
+        return segmentsFor((int) Math.min(Integer.MAX_VALUE, fitting));
+    }
+
+    public StripedCache(int cacheSize, CacheStrategy cacheStrategy) {
+        this(cacheSize, cacheStrategy, segmentsFor(cacheSize));
+    }
+
+    /**
+     * @param segmentCount number of segments, a power of two of at most cacheSize
+     */
+    public StripedCache(int cacheSize, CacheStrategy cacheStrategy, int segmentCount) {
+        this(cacheSize, cacheStrategy, 0, 0, segmentCount);
+    }
+
+    /**
+     * @param byteBudget heap bytes of all segments together, 0 to limit the
+     *                   number of entries to cacheSize instead
+     * @param segmentCount number of segments, a power of two of at most
+     *                   cacheSize, or of at most the budget when there is one
+     */
+    public StripedCache(int cacheSize, CacheStrategy cacheStrategy, long byteBudget, int maxEntryBytes,
+                        int segmentCount) {
+        super(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
+        if (segmentCount < 1 || segmentCount > capacity() || (segmentCount & (segmentCount - 1)) != 0) {
+            throw new IllegalArgumentException("Segment count " + segmentCount + " is not a power of two up to " + capacity());
+        }
+        segments = new CacheManager[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // The remainder of the capacity goes to the first segments.
+            int segmentSize = cacheSize / segmentCount + (i < cacheSize % segmentCount ? 1 : 0);
+            long segmentBudget = byteBudget / segmentCount;
+            segments[i] = CacheFactory.GetSegment(segmentSize, cacheStrategy, segmentBudget, maxEntryBytes);
+        }
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    public CacheManager getSegment(int segment) {
+        return segments[segment];
+    }
+
+    private CacheManager segmentOf(String key) {
+        // Spread the high bits down, String hashes differ mostly in the low ones.
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    @Override
+    public void putKV(String key, String value) throws Exception {
+        segmentOf(key).putKV(key, value);
+    }
+
+    @Override
+    public String getKV(String key) throws Exception {
+        return segmentOf(key).getKV(key);
+    }
+
+    @Override
+    public boolean inCache(String key) throws Exception {
+        return segmentOf(key).inCache(key);
+    }
+
+    @Override
+    public void delete(String key) throws Exception {
+        segmentOf(key).delete(key);
+    }
+
+    @Override
+    public long getUsedBytes() {
+        long used = 0;
+        for (CacheManager segment : segments) {
+            used += segment.getUsedBytes();
+        }
+        return used;
+    }
+
+    @Override
+    public void clearCache() throws Exception {
+        for (CacheManager segment : segments) {
+            segment.clearCache();
+        }
+    }
+
+    // The segments hold about equally hot keys, so they take turns.
+    @Override
+    public List<String> getHotKeys(int limit) throws Exception {
+        List<List<String>> parts = new ArrayList<List<String>>();
+        for (CacheManager segment : segments) {
+            parts.add(segment.getHotKeys(limit));
+        }
+        return interleave(parts, limit);
+    }
+
+    private final CacheManager[] segments;
+
+}
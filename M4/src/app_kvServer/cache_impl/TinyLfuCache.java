@@ -0,0 +1,280 @@
+package cache_impl;
+
+import app_kvServer.CacheManager;
+import app_kvServer.IKVServer.CacheStrategy;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Window-TinyLFU cache. New keys enter a small LRU window of about 1% of the
+ * capacity. A key pushed out of the window only enters the main region if the
+ * frequency sketch has seen it more often than the key the main region would
+ * evict for it, otherwise the newcomer is dropped. One-off keys, like those
+ * of a bulk scan, thus pass through the window without flushing the keys
+ * that are hit again and again.
+ *
+ * The main region is a segmented LRU: admitted keys go into probation, a hit
+ * there promotes the key into the protected segment of 80% of the region,
+ * whose least recent key falls back into probation when it overflows.
+ * Evictions take the least recent key of probation.
+ *
+ * Sizes are weights, see CacheManager, so with a byte budget a large
+ * newcomer has to win against as many victims as it displaces.
+ */
+public class TinyLfuCache extends CacheManager {
+
+    // Assumed mean entry size to size the sketch of a byte budgeted cache.
+    private static final int SKETCH_ENTRY_BYTES = 512;
+
+    public TinyLfuCache(int cacheSize, CacheStrategy cacheStrategy) {
+        this(cacheSize, cacheStrategy, 0, 0);
+    }
+
+    public TinyLfuCache(int cacheSize, CacheStrategy cacheStrategy, long byteBudget, int maxEntryBytes) {
+        super(cacheSize, cacheStrategy, byteBudget, maxEntryBytes);
+        windowCapacity = Math.max(1, capacity() / 100);
+        mainCapacity = capacity() - windowCapacity;
+        protectedCapacity = mainCapacity * 4 / 5;
+        int expectedEntries = isWeighted()
+                ? (int) Math.min(Integer.MAX_VALUE / 2, byteBudget / SKETCH_ENTRY_BYTES) : cacheSize;
+        sketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public void putKV(String key, String value) throws Exception {
+        lock.acquire();
+        try {
+            if (!admits(key, value)) {
+                remove(key);
+                return;
+            }
+            long weight = weight(key, value);
+            String previous;
+            if ((previous = window.get(key)) != null) {
+                window.put(key, value);
+                windowWeight += weight - weight(key, previous);
+                evictFromWindow();
+            } else if ((previous = protectedSegment.get(key)) != null) {
+                protectedSegment.put(key, value);
+                protectedWeight += weight - weight(key, previous);
+                demoteProtected();
+                evictFromMain();
+            } else if ((previous = probation.get(key)) != null) {
+                probation.put(key, value);
+                probationWeight += weight - weight(key, previous);
+                promote(key);
+                evictFromMain();
+            } else {
+                sketch.increment(key);
+                window.put(key, value);
+                windowWeight += weight;
+                evictFromWindow();
+            }
+        } finally {
+            usedWeight = windowWeight + probationWeight + protectedWeight;
+            lock.release();
+        }
+    }
+
+    @Override
+    public String getKV(String key) throws Exception {
+        lock.acquire();
+        try {
+            sketch.increment(key);
+            String value = window.get(key);
+            if (value != null) return value;
+            value = protectedSegment.get(key);
+            if (value != null) return value;
+            value = probation.get(key);
+            if (value != null) promote(key);
+            return value;
+        } finally {
+            lock.release();
+        }
+    }
+
+    // Moves a key hit in probation into the protected segment.
+    private void promote(String key) {
+        String value = probation.remove(key);
+        long weight = weight(key, value);
+        probationWeight -= weight;
+        protectedSegment.put(key, value);
+        protectedWeight += weight;
+        demoteProtected();
+    }
+
+    // Moves the least recent protected keys back into probation until the
+    // protected segment fits.
+    private void demoteProtected() {
+        while (protectedWeight > protectedCapacity && !protectedSegment.isEmpty()) {
+            Map.Entry<String, String> demoted = removeEldest(protectedSegment);
+            long weight = weight(demoted.getKey(), demoted.getValue());
+            protectedWeight -= weight;
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationWeight += weight;
+        }
+    }
+
+    // Evicts from probation, then protected, until the main region fits.
+    private void evictFromMain() {
+        while (probationWeight + protectedWeight > mainCapacity) {
+            if (!probation.isEmpty()) {
+                Map.Entry<String, String> victim = removeEldest(probation);
+                probationWeight -= weight(victim.getKey(), victim.getValue());
+            } else {
+                Map.Entry<String, String> victim = removeEldest(protectedSegment);
+                protectedWeight -= weight(victim.getKey(), victim.getValue());
+            }
+        }
+    }
+
+    // The least recent window keys either replace the main region's victims
+    // or are dropped, whichever the sketch has seen less often.
+    private void evictFromWindow() {
+        while (windowWeight > windowCapacity && !window.isEmpty()) {
+            Map.Entry<String, String> candidate = removeEldest(window);
+            long weight = weight(candidate.getKey(), candidate.getValue());
+            windowWeight -= weight;
+            admit(candidate, weight);
+        }
+    }
+
+    // The candidate has to win against every victim it displaces, the least
+    // recent of probation and then of protected. They are only evicted once
+    // it did, so a candidate losing to a later victim costs none of them.
+    private void admit(Map.Entry<String, String> candidate, long weight) {
+        int frequency = sketch.frequency(candidate.getKey());
+        long excess = probationWeight + protectedWeight + weight - mainCapacity;
+        long freed = 0;
+        int probationVictims = 0;
+        int protectedVictims = 0;
+        Iterator<Map.Entry<String, String>> victims = probation.entrySet().iterator();
+        boolean inProbation = true;
+        while (freed < excess) {
+            if (!victims.hasNext()) {
+                if (!inProbation) return;
+                victims = protectedSegment.entrySet().iterator();
+                inProbation = false;
+                continue;
+            }
+            Map.Entry<String, String> victim = victims.next();
+            if (frequency <= sketch.frequency(victim.getKey())) return;
+            freed += weight(victim.getKey(), victim.getValue());
+            if (inProbation) {
+                probationVictims++;
+            } else {
+                protectedVictims++;
+            }
+        }
+        for (int i = 0; i < probationVictims; i++) {
+            Map.Entry<String, String> victim = removeEldest(probation);
+            probationWeight -= weight(victim.getKey(), victim.getValue());
+        }
+        for (int i = 0; i < protectedVictims; i++) {
+            Map.Entry<String, String> victim = removeEldest(protectedSegment);
+            protectedWeight -= weight(victim.getKey(), victim.getValue());
+        }
+        probation.put(candidate.getKey(), candidate.getValue());
+        probationWeight += weight;
+    }
+
+    private static Map.Entry<String, String> removeEldest(LinkedHashMap<String, String> segment) {
+        Iterator<Map.Entry<String, String>> entries = segment.entrySet().iterator();
+        Map.Entry<String, String> eldest = entries.next();
+        Map.Entry<String, String> removed = new AbstractMap.SimpleEntry<String, String>(eldest);
+        entries.remove();
+        return removed;
+    }
+
+    private void remove(String key) {
+        String value;
+        if ((value = window.remove(key)) != null) {
+            windowWeight -= weight(key, value);
+        } else if ((value = probation.remove(key)) != null) {
+            probationWeight -= weight(key, value);
+        } else if ((value = protectedSegment.remove(key)) != null) {
+            protectedWeight -= weight(key, value);
+        }
+    }
+
+    @Override
+    public boolean inCache(String key) throws Exception {
+        lock.acquire();
+        boolean result = window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key);
+        lock.release();
+        return result;
+    }
+
+    @Override
+    public void delete(String key) throws Exception {
+        lock.acquire();
+        remove(key);
+        usedWeight = windowWeight + probationWeight + protectedWeight;
+        lock.release();
+    }
+
+    @Override
+    public void clearCache() throws Exception {
+        lock.acquire();
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        windowWeight = probationWeight = protectedWeight = usedWeight = 0;
+        sketch.clear();
+        lock.release();
+    }
+
+    // Most frequent first by the sketch, protected keys first among equals.
+    @Override
+    public List<String> getHotKeys(int limit) throws Exception {
+        lock.acquire();
+        try {
+            List<String> keys = new ArrayList<String>(newestFirst(protectedSegment.keySet(), Integer.MAX_VALUE));
+            keys.addAll(newestFirst(probation.keySet(), Integer.MAX_VALUE));
+            keys.addAll(newestFirst(window.keySet(), Integer.MAX_VALUE));
+            final Map<String, Integer> frequencies = new HashMap<String, Integer>();
+            for (String key : keys) {
+                frequencies.put(key, sketch.frequency(key));
+            }
+            Collections.sort(keys, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    return frequencies.get(b) - frequencies.get(a);
+                }
+            });
+            return keys.subList(0, Math.min(limit, keys.size()));
+        } finally {
+            lock.release();
+        }
+    }
+
+    // Number of keys in the window, probation and protected segments.
+    public int[] getSegmentSizes() throws Exception {
+        lock.acquire();
+        int[] sizes = {window.size(), probation.size(), protectedSegment.size()};
+        lock.release();
+        return sizes;
+    }
+
+    private final long windowCapacity;
+    private final long mainCapacity;
+    private final long protectedCapacity;
+    private final FrequencySketch sketch;
+    // Access ordered, the least recent key first.
+    private final LinkedHashMap<String, String> window = new LinkedHashMap<String, String>(16, 0.75f, true);
+    private final LinkedHashMap<String, String> probation = new LinkedHashMap<String, String>(16, 0.75f, true);
+    private final LinkedHashMap<String, String> protectedSegment = new LinkedHashMap<String, String>(16, 0.75f, true);
+    private long windowWeight = 0;
+    private long probationWeight = 0;
+    private long protectedWeight = 0;
+    private final Semaphore lock = new Semaphore(1);
+
+}
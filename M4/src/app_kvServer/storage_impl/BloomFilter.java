@@ -0,0 +1,101 @@
+package storage_impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over string keys. mightContain() never returns false for an
+ * added key, and returns true for an absent key with roughly the false
+ * positive rate the filter was sized for.
+ *
+ * The k bit positions come from double hashing two 32-bit hashes of the
+ * UTF-8 key bytes. The bits are atomic words, keys can be added while other
+ * threads test the filter.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final int bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedKeys number of keys the filter is sized for
+     * @param falsePositiveRate target false positive rate at that many keys
+     */
+    public BloomFilter(int expectedKeys, double falsePositiveRate) {
+        int keys = Math.max(expectedKeys, 1);
+        long optimalBits = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE / 64, Math.max(1, (optimalBits + 63) / 64));
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / keys * Math.log(2)));
+    }
+
+    private BloomFilter(AtomicLongArray bits, int hashCount) {
+        this.bits = bits;
+        this.bitCount = bits.length() * 64;
+        this.hashCount = hashCount;
+    }
+
+    public void add(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash1 = hash(keyBytes, 0x9747b28c);
+        int hash2 = hash(keyBytes, hash1);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitCount;
+            long mask = 1L << bit;
+            long word = bits.get(bit >>> 6);
+            while ((word & mask) == 0 && !bits.compareAndSet(bit >>> 6, word, word | mask)) {
+                word = bits.get(bit >>> 6);
+            }
+        }
+    }
+
+    public boolean mightContain(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash1 = hash(keyBytes, 0x9747b28c);
+        int hash2 = hash(keyBytes, hash1);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitCount;
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    public long memoryBytes() {
+        return bits.length() * 8L;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(hashCount);
+        out.writeInt(bits.length());
+        for (int i = 0; i < bits.length(); i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    public static BloomFilter readFrom(DataInput in) throws IOException {
+        int hashCount = in.readInt();
+        AtomicLongArray bits = new AtomicLongArray(in.readInt());
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, in.readLong());
+        }
+        return new BloomFilter(bits, hashCount);
+    }
+
+    // Seeded FNV-1a with a final avalanche.
+    private static int hash(byte[] keyBytes, int seed) {
+        int hash = 0x811c9dc5 ^ seed;
+        for (byte b : keyBytes) {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+}
@@ -0,0 +1,815 @@
+package storage_impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import app_kvServer.DurabilityTracker;
+import app_kvServer.IKVServer.DurabilityMode;
+import app_kvServer.StorageEngine;
+import app_kvServer.StorageSnapshot;
+
+/**
+ * Log-structured merge tree storage engine.
+ *
+ * Writes go to a write-ahead log and an in-memory sorted memtable. A full
+ * memtable is frozen, a fresh one and a fresh log take over, and the
+ * SegmentMerger flushes the frozen one into an immutable SortedSegment and
+ * deletes its log. Segments are merged in size tiers: once a run of at least
+ * MERGE_FANIN newest segments each no larger than the newer ones combined
+ * builds up, the run is rewritten into one segment. Only a merge that
+ * includes the oldest segment may drop tombstones.
+ *
+ * Lookups check the memtable, the frozen memtable, then the segments newest
+ * first. Segments keep only a sparse index and a bloom filter in memory.
+ *
+ * Expiries of memtable values are kept beside the memtables and written into
+ * the records of the segment on flush. An expired value reads as a tombstone
+ * and is flushed or merged as one, see SortedSegment.
+ *
+ * The files can be spread over several directories. The first one is the hot
+ * tier and holds the write-ahead log and the freshly flushed segments, merge
+ * outputs, which hold most of the data, go round robin to the others. Any
+ * directory may hold any file at startup, so directories can be added or
+ * reordered between runs.
+ */
+public class LsmStorage implements StorageEngine {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final long MEMTABLE_BYTES = 4 * 1024 * 1024;
+    public static final int MERGE_FANIN = 4;
+    private static final Pattern WAL_PATTERN = Pattern.compile("wal-(\\d+)\\.log");
+
+    private final List<File> dirs;
+    // Directory of the next merge output, used by the merger thread only.
+    private int nextMergeDir = 0;
+    private final long memtableLimit;
+
+    // Memtable values are the value bytes or SortedSegment.TOMBSTONE. Writers
+    // serialize on appendLock, which guards the write-ahead log and the
+    // freezing of the memtable.
+    private volatile ConcurrentSkipListMap<String, byte[]> memtable = new ConcurrentSkipListMap<String, byte[]>();
+    private volatile ConcurrentSkipListMap<String, byte[]> frozen;
+    // Expiry in epoch milliseconds of the newest memtable value of a key, of
+    // the memtable or else the frozen one. Set before the value is put and
+    // dropped once the value is flushed.
+    private final ConcurrentHashMap<String, Long> expiries = new ConcurrentHashMap<String, Long>();
+    private long frozenId;
+    private long memtableBytes = 0;
+    private ReentrantLock appendLock = new ReentrantLock();
+    // Held while a frozen memtable is flushed, a writer that freezes the next
+    // memtable before that finished waits for it.
+    private ReentrantLock flushLock = new ReentrantLock();
+
+    private RandomAccessFile walFile;
+    private FileChannel walChannel;
+    private long walId;
+    private long walLength = 0;
+    // Read side held while the log is forced, write side while it is swapped.
+    private ReentrantReadWriteLock walLock = new ReentrantReadWriteLock();
+
+    // Newest first. Replaced as a whole under the write side of segmentLock,
+    // lookups hold the read side.
+    private volatile List<SortedSegment> segments = new ArrayList<SortedSegment>();
+    private ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private long nextId = 1;
+    private volatile long reclaimedBytes = 0;
+    private volatile int compressionThreshold = Records.COMPRESSION_THRESHOLD;
+    private SegmentMerger merger;
+
+    // Segment bloom filter probes that ruled a segment out, and probes that
+    // let a lookup read a segment which did not hold the key.
+    private LongAdder filterNegatives = new LongAdder();
+    private LongAdder filterFalsePositives = new LongAdder();
+
+    private DurabilityMode durabilityMode;
+    private DurabilityTracker durability;
+
+    public LsmStorage(String dirPath, DurabilityMode durabilityMode) throws IOException {
+        this(dirPath, durabilityMode, MEMTABLE_BYTES);
+    }
+
+    /**
+     * @param dirPath directory holding the logs and segments of this storage
+     * @param durabilityMode when the write-ahead log is forced to disk
+     * @param memtableLimit bytes of records after which the memtable is flushed
+     */
+    public LsmStorage(String dirPath, DurabilityMode durabilityMode, long memtableLimit) throws IOException {
+        this(Arrays.asList(dirPath), durabilityMode, memtableLimit);
+    }
+
+    /**
+     * @param dirPaths directories holding the logs and segments of this
+     *           storage, hot tier first
+     */
+    public LsmStorage(List<String> dirPaths, DurabilityMode durabilityMode, long memtableLimit) throws IOException {
+        if (dirPaths.isEmpty()) throw new IllegalArgumentException("No storage directory");
+        this.dirs = new ArrayList<File>();
+        for (String dirPath : dirPaths) {
+            File dir = new File(dirPath);
+            dir.mkdirs();
+            dirs.add(dir);
+        }
+        this.durabilityMode = durabilityMode;
+        this.memtableLimit = memtableLimit;
+        openSegments();
+        replayLogs();
+        openLog();
+        merger = new SegmentMerger(this);
+        merger.start();
+        durability = new DurabilityTracker(this, durabilityMode);
+        durability.start();
+    }
+
+    public boolean inStorage(String key) throws Exception {
+        return lookup(key) != null;
+    }
+
+    // Checks the memtables and the bloom filters of the segments, without
+    // locks or disk reads.
+    public boolean mightContain(String key) {
+        if (memtable.containsKey(key)) return true;
+        ConcurrentSkipListMap<String, byte[]> frozenTable = frozen;
+        if (frozenTable != null && frozenTable.containsKey(key)) return true;
+        boolean mightContain = false;
+        for (SortedSegment segment : segments) {
+            if (segment.mightContain(key)) {
+                mightContain = true;
+            } else {
+                filterNegatives.increment();
+            }
+        }
+        return mightContain;
+    }
+
+    public String getKV(String key) throws Exception {
+        byte[] value = lookup(key);
+        return value == null ? null : new String(value);
+    }
+
+    private byte[] lookup(String key) throws IOException {
+        // The memtable is read before the frozen one, a freeze publishes the
+        // frozen memtable before it replaces the memtable. The expiry is read
+        // before both, a flush forgets it only after it retired the frozen one.
+        boolean expired = isExpired(key, System.currentTimeMillis());
+        byte[] value = memtable.get(key);
+        if (value == null) {
+            ConcurrentSkipListMap<String, byte[]> frozenTable = frozen;
+            if (frozenTable != null) value = frozenTable.get(key);
+        }
+        if (value != null && expired) value = SortedSegment.TOMBSTONE;
+        // Keys no segment filter admits are answered without taking the lock.
+        if (value == null && mightContain(key)) {
+            segmentLock.readLock().lock();
+            try {
+                for (SortedSegment segment : segments) {
+                    if (!segment.mightContain(key)) continue;
+                    value = segment.get(key);
+                    if (value != null) break;
+                    filterFalsePositives.increment();
+                }
+            } finally {
+                segmentLock.readLock().unlock();
+            }
+        }
+        return value == SortedSegment.TOMBSTONE ? null : value;
+    }
+
+    public void putKV(String key, String value) throws Exception {
+        putKV(key, value, 0);
+    }
+
+    public void putKV(String key, String value, long expiresAt) throws Exception {
+        byte[] valueBytes = value.getBytes();
+        write(key, valueBytes, Records.encodePut(key, valueBytes, compressionThreshold, -1, expiresAt), expiresAt);
+    }
+
+    public void delete(String key) throws Exception {
+        if (!inStorage(key)) return;
+        write(key, SortedSegment.TOMBSTONE, Records.encodeTombstone(key), 0);
+    }
+
+    private void write(String key, byte[] value, ByteBuffer record, long expiresAt) throws IOException {
+        appendLock.lock();
+        try {
+            int size = record.remaining();
+            while (record.hasRemaining()) {
+                walChannel.write(record, walLength + record.position());
+            }
+            walLength += size;
+            if (expiresAt != 0) {
+                expiries.put(key, expiresAt);
+            } else {
+                expiries.remove(key);
+            }
+            memtable.put(key, value);
+            memtableBytes += size;
+            completeWrite();
+            if (memtableBytes >= memtableLimit) freeze();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Called under appendLock once a write reached the OS.
+    private void completeWrite() throws IOException {
+        if (durabilityMode == DurabilityMode.SYNC) {
+            walChannel.force(false);
+            return;
+        }
+        durability.writeCompleted();
+    }
+
+    // Hands the memtable to the merger and starts a new one with a new log,
+    // caller holds appendLock. If the previous frozen memtable is still not
+    // flushed the writer flushes it, which throttles writes to the speed of
+    // the disk.
+    private void freeze() throws IOException {
+        flushLock.lock();
+        try {
+            flushFrozen();
+        } finally {
+            flushLock.unlock();
+        }
+
+        walLock.writeLock().lock();
+        try {
+            if (durabilityMode != DurabilityMode.NONE) walChannel.force(false);
+            walFile.close();
+            frozenId = walId;
+            frozen = memtable;
+            memtable = new ConcurrentSkipListMap<String, byte[]>();
+            memtableBytes = 0;
+            openLog();
+        } finally {
+            walLock.writeLock().unlock();
+        }
+        merger.wake();
+    }
+
+    // Writes the frozen memtable, if any, into a segment and deletes its log.
+    void flushFrozen() throws IOException {
+        flushLock.lock();
+        try {
+            ConcurrentSkipListMap<String, byte[]> table = frozen;
+            if (table == null) return;
+            SortedSegment segment = SortedSegment.write(hotDir(), frozenId, frozenId,
+                    withExpiries(table.entrySet().iterator(), expiries, System.currentTimeMillis()),
+                    table.size(), compressionThreshold);
+            segmentLock.writeLock().lock();
+            try {
+                List<SortedSegment> updated = new ArrayList<SortedSegment>(segments);
+                updated.add(0, segment);
+                segments = updated;
+                frozen = null;
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+            dropExpiries(table);
+            new File(hotDir(), logName(frozenId)).delete();
+            logger.info("Flushed memtable to " + segment.getFile().getName() + ", "
+                    + segment.getRecordCount() + " records");
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Merges the newest run of similarly sized segments if it has at least
+     * MERGE_FANIN of them. Runs on the merger thread only.
+     * @return true if a merge ran
+     */
+    boolean mergeIfNeeded() throws IOException {
+        List<SortedSegment> current = segments;
+        if (current.size() < MERGE_FANIN) return false;
+        int run = 1;
+        long runBytes = current.get(0).getSizeBytes();
+        while (run < current.size() && current.get(run).getSizeBytes() <= runBytes) {
+            runBytes += current.get(run).getSizeBytes();
+            run++;
+        }
+        if (run < MERGE_FANIN) return false;
+
+        List<SortedSegment> inputs = new ArrayList<SortedSegment>(current.subList(0, run));
+        boolean includesOldest = run == current.size();
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<Iterator<Map.Entry<String, byte[]>>>();
+        int expectedKeys = 0;
+        for (SortedSegment input : inputs) {
+            sources.add(input.iterator());
+            expectedKeys += input.getRecordCount();
+        }
+        SortedSegment output = SortedSegment.write(mergeDir(),
+                inputs.get(inputs.size() - 1).getMinId(), inputs.get(0).getMaxId(),
+                new MergingIterator<byte[]>(sources, /*skipTombstones=*/includesOldest), expectedKeys,
+                compressionThreshold);
+
+        segmentLock.writeLock().lock();
+        try {
+            List<SortedSegment> updated = new ArrayList<SortedSegment>(segments);
+            if (!updated.containsAll(inputs)) {
+                // The storage was cleared while merging.
+                output.delete();
+                return false;
+            }
+            updated.removeAll(inputs);
+            updated.add(output);
+            Collections.sort(updated, NEWEST_FIRST);
+            segments = updated;
+            for (SortedSegment input : inputs) {
+                input.delete();
+            }
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        reclaimedBytes += Math.max(0, runBytes - output.getSizeBytes());
+        logger.info("Merged " + inputs.size() + " segments into " + output.getFile().getName()
+                + ", " + output.getRecordCount() + " records");
+        return true;
+    }
+
+    // True if the newest memtable value of the key has an expiry not after now.
+    private boolean isExpired(String key, long now) {
+        Long expiresAt = expiries.get(key);
+        return expiresAt != null && expiresAt <= now;
+    }
+
+    // Forgets the expiries of the keys of a flushed memtable, its segment
+    // holds them now. An expiry set by a newer write meanwhile is kept.
+    private void dropExpiries(Map<String, byte[]> table) {
+        for (Map.Entry<String, Long> expiry : expiries.entrySet()) {
+            String key = expiry.getKey();
+            if (table.containsKey(key) && !memtable.containsKey(key)) expiries.remove(key, expiry.getValue());
+        }
+    }
+
+    /**
+     * Applies the expiries to the entries of a memtable: an expired value
+     * turns into a tombstone, one that expires later into an ExpiringEntry.
+     */
+    private static Iterator<Map.Entry<String, byte[]>> withExpiries(final Iterator<Map.Entry<String, byte[]>> entries,
+                                                                    final Map<String, Long> expiries, final long now) {
+        if (expiries.isEmpty()) return entries;
+        return new Iterator<Map.Entry<String, byte[]>>() {
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            public Map.Entry<String, byte[]> next() {
+                Map.Entry<String, byte[]> entry = entries.next();
+                Long expiresAt = expiries.get(entry.getKey());
+                if (expiresAt == null || entry.getValue() == SortedSegment.TOMBSTONE) return entry;
+                if (expiresAt <= now) {
+                    return new AbstractMap.SimpleImmutableEntry<String, byte[]>(entry.getKey(), SortedSegment.TOMBSTONE);
+                }
+                return new SortedSegment.ExpiringEntry(entry.getKey(), entry.getValue(), expiresAt);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Directory of the write-ahead log and of flushed segments.
+    private File hotDir() {
+        return dirs.get(0);
+    }
+
+    private File mergeDir() {
+        if (dirs.size() == 1) return hotDir();
+        return dirs.get(1 + nextMergeDir++ % (dirs.size() - 1));
+    }
+
+    private List<File> listFiles() {
+        List<File> files = new ArrayList<File>();
+        for (File dir : dirs) {
+            File[] listed = dir.listFiles();
+            if (listed != null) files.addAll(Arrays.asList(listed));
+        }
+        return files;
+    }
+
+    private static final Comparator<SortedSegment> NEWEST_FIRST = new Comparator<SortedSegment>() {
+        public int compare(SortedSegment a, SortedSegment b) {
+            return Long.compare(b.getMaxId(), a.getMaxId());
+        }
+    };
+
+    // Opens the segments in the directory. Segments whose id range lies
+    // within the range of another one are inputs of a merge that finished
+    // before a crash and are deleted.
+    private void openSegments() throws IOException {
+        List<SortedSegment> opened = new ArrayList<SortedSegment>();
+        for (File file : listFiles()) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+            } else if (SortedSegment.isSegmentFile(file)) {
+                try {
+                    opened.add(SortedSegment.open(file));
+                } catch (IOException e) {
+                    logger.error("Could not open segment " + file, e);
+                }
+            }
+        }
+        List<SortedSegment> live = new ArrayList<SortedSegment>();
+        for (SortedSegment segment : opened) {
+            boolean covered = false;
+            for (SortedSegment other : opened) {
+                if (other != segment && other.getMinId() <= segment.getMinId()
+                        && segment.getMaxId() <= other.getMaxId()
+                        && other.getMaxId() - other.getMinId() > segment.getMaxId() - segment.getMinId()) {
+                    covered = true;
+                }
+            }
+            if (covered) {
+                segment.delete();
+            } else {
+                live.add(segment);
+                nextId = Math.max(nextId, segment.getMaxId() + 1);
+            }
+        }
+        Collections.sort(live, NEWEST_FIRST);
+        segments = live;
+    }
+
+    // Replays the logs of memtables that were not flushed before a crash and
+    // flushes them right away into one segment.
+    private void replayLogs() throws IOException {
+        TreeMap<Long, File> logs = new TreeMap<Long, File>();
+        for (File file : listFiles()) {
+            Matcher matcher = WAL_PATTERN.matcher(file.getName());
+            if (matcher.matches()) logs.put(Long.parseLong(matcher.group(1)), file);
+        }
+
+        ConcurrentSkipListMap<String, byte[]> replayed = new ConcurrentSkipListMap<String, byte[]>();
+        Map<String, Long> replayedExpiries = new HashMap<String, Long>();
+        long now = System.currentTimeMillis();
+        List<Long> replayedIds = new ArrayList<Long>();
+        for (long id : logs.keySet()) {
+            File log = logs.get(id);
+            nextId = Math.max(nextId, id + 1);
+            if (isFlushed(id)) {
+                log.delete();
+                continue;
+            }
+            Records.Scanner scanner = new Records.Scanner(new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(log), 64 * 1024)), Integer.MAX_VALUE);
+            try {
+                // A torn record ends the log, the records before it are intact.
+                while (scanner.next()) {
+                    if (scanner.isTombstone() || scanner.isExpired(now)) {
+                        replayed.put(scanner.key(), SortedSegment.TOMBSTONE);
+                        replayedExpiries.remove(scanner.key());
+                        continue;
+                    }
+                    replayed.put(scanner.key(), scanner.value());
+                    if (scanner.expiresAt() != 0) {
+                        replayedExpiries.put(scanner.key(), scanner.expiresAt());
+                    } else {
+                        replayedExpiries.remove(scanner.key());
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+            replayedIds.add(id);
+        }
+        if (replayedIds.isEmpty()) return;
+
+        SortedSegment segment = SortedSegment.write(hotDir(), replayedIds.get(0),
+                replayedIds.get(replayedIds.size() - 1),
+                withExpiries(replayed.entrySet().iterator(), replayedExpiries, now), replayed.size(),
+                compressionThreshold);
+        List<SortedSegment> updated = new ArrayList<SortedSegment>(segments);
+        updated.add(segment);
+        Collections.sort(updated, NEWEST_FIRST);
+        segments = updated;
+        for (long id : replayedIds) {
+            logs.get(id).delete();
+        }
+        logger.info("Recovered " + replayed.size() + " keys from " + replayedIds.size() + " write-ahead logs");
+    }
+
+    private boolean isFlushed(long id) {
+        for (SortedSegment segment : segments) {
+            if (segment.getMinId() <= id && id <= segment.getMaxId()) return true;
+        }
+        return false;
+    }
+
+    private static String logName(long id) {
+        return "wal-" + id + ".log";
+    }
+
+    private void openLog() throws IOException {
+        walId = nextId++;
+        walFile = new RandomAccessFile(new File(hotDir(), logName(walId)), "rw");
+        walChannel = walFile.getChannel();
+        walLength = 0;
+    }
+
+    public void awaitDurable() throws InterruptedException {
+        durability.awaitDurable();
+    }
+
+    public long getPendingWrites() {
+        return durability.getPendingWrites();
+    }
+
+    // A freeze forces the log it retires, so forcing the current log covers
+    // every write completed before the call.
+    public void sync() throws IOException {
+        long sequence = durability.startSync();
+        if (sequence < 0) return;
+        walLock.readLock().lock();
+        try {
+            walChannel.force(false);
+        } finally {
+            walLock.readLock().unlock();
+        }
+        durability.syncCompleted(sequence);
+    }
+
+    /**
+     * Iterates the live keys in key order. The segments are captured when the
+     * iteration starts, merges running meanwhile do not affect it.
+     */
+    public Iterable<String> getKeys() {
+        return new Iterable<String>() {
+            public Iterator<String> iterator() {
+                final Iterator<Map.Entry<String, byte[]>> entries = entryIterator();
+                return new Iterator<String>() {
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    public String next() {
+                        return entries.next().getKey();
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    // Merges the expiries of the memtables and the segments.
+    public Map<String, Long> getExpiries() {
+        Map<String, Long> found = new HashMap<String, Long>();
+        Iterator<Map.Entry<String, byte[]>> entries = entryIterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, byte[]> entry = entries.next();
+            long expiresAt = SortedSegment.expiresAt(entry);
+            if (expiresAt != 0) found.put(entry.getKey(), expiresAt);
+        }
+        return found;
+    }
+
+    /**
+     * Iterates the live key-value pairs with startKey <= key < endKey in key
+     * order, weakly consistent like getKeys(). Segments are only read from
+     * the sparse index block of startKey on. The segments read the values of
+     * rejected keys along the way, they are not decoded.
+     */
+    public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey, KeyFilter filter) {
+        Iterator<Map.Entry<String, byte[]>> entries = entryIterator(startKey, endKey);
+        return toStrings(filter == null ? entries : accepted(entries, filter));
+    }
+
+    private static Iterator<Map.Entry<String, byte[]>> accepted(final Iterator<Map.Entry<String, byte[]>> entries,
+                                                                final KeyFilter filter) {
+        return new Iterator<Map.Entry<String, byte[]>>() {
+            private Map.Entry<String, byte[]> next = advance();
+
+            private Map.Entry<String, byte[]> advance() {
+                while (entries.hasNext()) {
+                    Map.Entry<String, byte[]> entry = entries.next();
+                    if (filter.accept(entry.getKey())) return entry;
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Map.Entry<String, byte[]> next() {
+                if (next == null) throw new NoSuchElementException();
+                Map.Entry<String, byte[]> entry = next;
+                next = advance();
+                return entry;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static Iterator<Map.Entry<String, String>> toStrings(final Iterator<Map.Entry<String, byte[]>> entries) {
+        return new Iterator<Map.Entry<String, String>>() {
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            public Map.Entry<String, String> next() {
+                Map.Entry<String, byte[]> entry = entries.next();
+                return new AbstractMap.SimpleImmutableEntry<String, String>(entry.getKey(), new String(entry.getValue()));
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Freezes the state under appendLock: the memtable and the expiries are
+     * copied, the frozen memtable and the segments are immutable. Every
+     * segment is opened for reading right away, so merges and flushes do not
+     * disturb the snapshot.
+     */
+    public StorageSnapshot snapshot() throws IOException {
+        final List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<Iterator<Map.Entry<String, byte[]>>>();
+        final List<SortedSegment.SegmentIterator> opened = new ArrayList<SortedSegment.SegmentIterator>();
+        long now = System.currentTimeMillis();
+        appendLock.lock();
+        segmentLock.readLock().lock();
+        try {
+            Map<String, Long> expiryCopy = new HashMap<String, Long>(expiries);
+            sources.add(withExpiries(new TreeMap<String, byte[]>(memtable).entrySet().iterator(), expiryCopy, now));
+            if (frozen != null) sources.add(withExpiries(frozen.entrySet().iterator(), expiryCopy, now));
+            for (SortedSegment segment : segments) {
+                SortedSegment.SegmentIterator segmentEntries = segment.iterator();
+                opened.add(segmentEntries);
+                sources.add(segmentEntries);
+            }
+        } catch (IOException e) {
+            closeAll(opened);
+            throw e;
+        } finally {
+            segmentLock.readLock().unlock();
+            appendLock.unlock();
+        }
+        return new StorageSnapshot() {
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return toStrings(new MergingIterator<byte[]>(sources, /*skipTombstones=*/true));
+            }
+
+            public void close() {
+                closeAll(opened);
+            }
+        };
+    }
+
+    private static void closeAll(List<SortedSegment.SegmentIterator> iterators) {
+        for (SortedSegment.SegmentIterator iterator : iterators) {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                logger.error("Could not close segment iterator", e);
+            }
+        }
+    }
+
+    private Iterator<Map.Entry<String, byte[]>> entryIterator() {
+        return entryIterator(null, null);
+    }
+
+    private Iterator<Map.Entry<String, byte[]>> entryIterator(String startKey, String endKey) {
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<Iterator<Map.Entry<String, byte[]>>>();
+        long now = System.currentTimeMillis();
+        // The memtables are iterated lazily while a flush may forget the
+        // expiries of the frozen one, so they are copied before it is read.
+        Map<String, Long> expiryCopy = expiries.isEmpty() ? expiries : new HashMap<String, Long>(expiries);
+        sources.add(withExpiries(range(memtable, startKey, endKey).entrySet().iterator(), expiryCopy, now));
+        ConcurrentSkipListMap<String, byte[]> frozenTable = frozen;
+        if (frozenTable != null) {
+            sources.add(withExpiries(range(frozenTable, startKey, endKey).entrySet().iterator(), expiryCopy, now));
+        }
+        segmentLock.readLock().lock();
+        try {
+            for (SortedSegment segment : segments) {
+                sources.add(segment.iterator(startKey, endKey));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+        return new MergingIterator<byte[]>(sources, /*skipTombstones=*/true);
+    }
+
+    private static NavigableMap<String, byte[]> range(NavigableMap<String, byte[]> table, String startKey, String endKey) {
+        if (startKey != null) table = table.tailMap(startKey, true);
+        if (endKey != null) table = table.headMap(endKey, false);
+        return table;
+    }
+
+    public void clearStorage() throws Exception {
+        appendLock.lock();
+        flushLock.lock();
+        walLock.writeLock().lock();
+        segmentLock.writeLock().lock();
+        try {
+            walFile.close();
+            for (SortedSegment segment : segments) {
+                segment.close();
+            }
+            for (File dir : dirs) {
+                dir.mkdirs();
+                FileUtils.cleanDirectory(dir);
+            }
+            segments = new ArrayList<SortedSegment>();
+            memtable = new ConcurrentSkipListMap<String, byte[]>();
+            memtableBytes = 0;
+            frozen = null;
+            expiries.clear();
+            nextId = 1;
+            openLog();
+        } finally {
+            segmentLock.writeLock().unlock();
+            walLock.writeLock().unlock();
+            flushLock.unlock();
+            appendLock.unlock();
+        }
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    /**
+     * @param compressionThreshold values of at least this many bytes are
+     *           stored deflated when that pays off, 0 disables compression.
+     *           Segments take the new threshold when they are next merged.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public double getFilterFalsePositiveRate() {
+        long falsePositives = filterFalsePositives.sum();
+        long probes = falsePositives + filterNegatives.sum();
+        return probes == 0 ? 0 : (double) falsePositives / probes;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    // Bytes of the sparse indexes and bloom filters of all segments.
+    public long getIndexMemoryBytes() {
+        long bytes = 0;
+        for (SortedSegment segment : segments) {
+            bytes += segment.memoryBytes();
+        }
+        return bytes;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    // Stops the merger and the group committer after a final sync. The
+    // memtable is recovered from its log on the next start.
+    public void close() {
+        merger.stop();
+        durability.stop();
+        try {
+            sync();
+        } catch (IOException e) {
+            logger.error("Could not sync storage on close", e);
+        }
+    }
+}
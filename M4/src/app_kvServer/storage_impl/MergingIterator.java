@@ -0,0 +1,87 @@
+package storage_impl;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges key ordered sources into one key ordered iteration. For a key held
+ * by several sources only the entry of the newest source is returned,
+ * sources are passed newest first. Optionally skips keys whose newest entry
+ * is a tombstone.
+ */
+public class MergingIterator<V> implements Iterator<Map.Entry<String, V>> {
+
+    private static class Head<V> implements Comparable<Head<V>> {
+        final Iterator<Map.Entry<String, V>> source;
+        final int age;
+        Map.Entry<String, V> entry;
+
+        Head(Iterator<Map.Entry<String, V>> source, int age) {
+            this.source = source;
+            this.age = age;
+        }
+
+        boolean advance() {
+            if (!source.hasNext()) return false;
+            entry = source.next();
+            return true;
+        }
+
+        public int compareTo(Head<V> other) {
+            int order = entry.getKey().compareTo(other.entry.getKey());
+            return order != 0 ? order : Integer.compare(age, other.age);
+        }
+    }
+
+    private final PriorityQueue<Head<V>> heads = new PriorityQueue<Head<V>>();
+    private final boolean skipTombstones;
+    private Map.Entry<String, V> next;
+
+    /**
+     * @param sources key ordered sources, newest first
+     * @param skipTombstones leave out deleted keys instead of returning
+     *           SortedSegment.TOMBSTONE for them
+     */
+    public MergingIterator(List<Iterator<Map.Entry<String, V>>> sources, boolean skipTombstones) {
+        this.skipTombstones = skipTombstones;
+        for (int age = 0; age < sources.size(); age++) {
+            Head<V> head = new Head<V>(sources.get(age), age);
+            if (head.advance()) heads.add(head);
+        }
+        next = computeNext();
+    }
+
+    private Map.Entry<String, V> computeNext() {
+        while (!heads.isEmpty()) {
+            Head<V> newest = heads.poll();
+            Map.Entry<String, V> entry = newest.entry;
+            if (newest.advance()) heads.add(newest);
+            // Drop the older entries of the same key.
+            while (!heads.isEmpty() && heads.peek().entry.getKey().equals(entry.getKey())) {
+                Head<V> older = heads.poll();
+                if (older.advance()) heads.add(older);
+            }
+            if (skipTombstones && entry.getValue() == SortedSegment.TOMBSTONE) continue;
+            return entry;
+        }
+        return null;
+    }
+
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    public Map.Entry<String, V> next() {
+        if (next == null) throw new NoSuchElementException();
+        Map.Entry<String, V> entry = next;
+        next = computeNext();
+        return entry;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,343 @@
+package storage_impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Compact hash index from keys to primitive long entries (a FileManager packs
+ * the value offset and size into one long).
+ *
+ * Open addressing with linear probing over three parallel primitive arrays,
+ * the key bytes are kept as UTF-8 in a single arena buffer. Each key costs about 20 bytes of table plus its UTF-8 bytes,
+ * instead of the HashMap node, boxed value and String of a HashMap index.
+ *
+ * Lookups are optimistic reads of a StampedLock and never block, writers
+ * take the write lock.
+ */
+public class PackedKeyIndex implements Iterable<String> {
+
+    public static final long NOT_FOUND = -1;
+
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final float MAX_LOAD = 0.75f;
+    private static final int KEY_LENGTH_BITS = 16;
+    private static final long KEY_LENGTH_MASK = (1L << KEY_LENGTH_BITS) - 1;
+
+    private final StampedLock lock = new StampedLock();
+
+    // hashes[i] is EMPTY, DELETED or the (never 0 or -1) hash of the key in slot i.
+    private int[] hashes;
+    // Arena offset of the key bytes in the high bits, their length in the low bits.
+    private long[] keyRefs;
+    private long[] entries;
+    private ByteBuffer arena;
+    private int arenaEnd = 0;
+    private int size = 0;
+    // Live plus deleted slots, both lengthen probe sequences.
+    private int usedSlots = 0;
+
+    public PackedKeyIndex() {
+        init(INITIAL_CAPACITY, INITIAL_CAPACITY * 16);
+    }
+
+    private void init(int capacity, int arenaCapacity) {
+        hashes = new int[capacity];
+        keyRefs = new long[capacity];
+        entries = new long[capacity];
+        arena = ByteBuffer.allocate(arenaCapacity);
+        arenaEnd = 0;
+        size = 0;
+        usedSlots = 0;
+    }
+
+    public long get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                long result = lookup(hashes, keyRefs, entries, arena, keyBytes, hash);
+                if (lock.validate(stamp)) return result;
+            } catch (RuntimeException e) {
+                // Torn read of a concurrent resize, retry under the read lock.
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return lookup(hashes, keyRefs, entries, arena, keyBytes, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean containsKey(String key) {
+        return get(key) != NOT_FOUND;
+    }
+
+    /**
+     * @param entry a non-negative entry
+     * @return the previous entry of the key or NOT_FOUND
+     */
+    public long put(String key, long entry) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(keyBytes, hash);
+            if (slot >= 0) {
+                long previous = entries[slot];
+                entries[slot] = entry;
+                return previous;
+            }
+            if (usedSlots + 1 > hashes.length * MAX_LOAD) {
+                rehash(size + 1 > hashes.length * MAX_LOAD / 2 ? hashes.length * 2 : hashes.length);
+            }
+            insert(keyBytes, hash, entry);
+            return NOT_FOUND;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the removed entry or NOT_FOUND
+     */
+    public long remove(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(keyBytes, hash);
+            if (slot < 0) return NOT_FOUND;
+            hashes[slot] = DELETED;
+            size--;
+            return entries[slot];
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            init(INITIAL_CAPACITY, INITIAL_CAPACITY * 16);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Bytes held by the table arrays and the key arena.
+    public long memoryBytes() {
+        return (long) hashes.length * (4 + 8 + 8) + arena.capacity();
+    }
+
+    /**
+     * @return an independent copy of the index, e.g. as a point-in-time
+     *         snapshot for a compaction.
+     */
+    public PackedKeyIndex copy() {
+        long stamp = lock.readLock();
+        try {
+            PackedKeyIndex copy = new PackedKeyIndex();
+            copy.hashes = hashes.clone();
+            copy.keyRefs = keyRefs.clone();
+            copy.entries = entries.clone();
+            copy.arena = ByteBuffer.allocate(arena.capacity());
+            ByteBuffer source = arena.duplicate();
+            source.position(0).limit(arenaEnd);
+            copy.arena.put(source);
+            copy.arenaEnd = arenaEnd;
+            copy.size = size;
+            copy.usedSlots = usedSlots;
+            return copy;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Iterates the keys without copying them into a collection. Like a
+     * cursor() it reads the live table, iterate a copy() while other threads
+     * write.
+     */
+    public Iterator<String> iterator() {
+        final Cursor cursor = cursor();
+        return new Iterator<String>() {
+            private boolean advanced = false;
+            private boolean hasNext;
+
+            public boolean hasNext() {
+                if (!advanced) {
+                    hasNext = cursor.next();
+                    advanced = true;
+                }
+                return hasNext;
+            }
+
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                advanced = false;
+                return cursor.key();
+            }
+        };
+    }
+
+    public Cursor cursor() {
+        long stamp = lock.readLock();
+        try {
+            return new Cursor(hashes, keyRefs, entries, arena);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Walks the slots of a table without boxing the entries.
+     */
+    public class Cursor {
+        private final int[] cursorHashes;
+        private final long[] cursorKeyRefs;
+        private final long[] cursorEntries;
+        private final ByteBuffer cursorArena;
+        private int slot = -1;
+
+        private Cursor(int[] hashes, long[] keyRefs, long[] entries, ByteBuffer arena) {
+            this.cursorHashes = hashes;
+            this.cursorKeyRefs = keyRefs;
+            this.cursorEntries = entries;
+            this.cursorArena = arena;
+        }
+
+        public boolean next() {
+            while (++slot < cursorHashes.length) {
+                int hash = cursorHashes[slot];
+                if (hash != EMPTY && hash != DELETED) return true;
+            }
+            return false;
+        }
+
+        public String key() {
+            return readKey(cursorArena, cursorKeyRefs[slot]);
+        }
+
+        public long entry() {
+            return cursorEntries[slot];
+        }
+    }
+
+    private static long lookup(int[] hashes, long[] keyRefs, long[] entries, ByteBuffer arena,
+                               byte[] keyBytes, int hash) {
+        int mask = hashes.length - 1;
+        for (int slot = hash & mask, probes = 0; probes < hashes.length; slot = (slot + 1) & mask, probes++) {
+            int slotHash = hashes[slot];
+            if (slotHash == EMPTY) return NOT_FOUND;
+            if (slotHash == hash && keyEquals(arena, keyRefs[slot], keyBytes)) return entries[slot];
+        }
+        return NOT_FOUND;
+    }
+
+    // Slot of the key or -1, caller holds the write lock.
+    private int findSlot(byte[] keyBytes, int hash) {
+        int mask = hashes.length - 1;
+        for (int slot = hash & mask, probes = 0; probes < hashes.length; slot = (slot + 1) & mask, probes++) {
+            int slotHash = hashes[slot];
+            if (slotHash == EMPTY) return -1;
+            if (slotHash == hash && keyEquals(arena, keyRefs[slot], keyBytes)) return slot;
+        }
+        return -1;
+    }
+
+    private void insert(byte[] keyBytes, int hash, long entry) {
+        int mask = hashes.length - 1;
+        int slot = hash & mask;
+        while (hashes[slot] != EMPTY && hashes[slot] != DELETED) {
+            slot = (slot + 1) & mask;
+        }
+        if (hashes[slot] == EMPTY) usedSlots++;
+        hashes[slot] = hash;
+        keyRefs[slot] = appendKey(keyBytes);
+        entries[slot] = entry;
+        size++;
+    }
+
+    private long appendKey(byte[] keyBytes) {
+        if (keyBytes.length > KEY_LENGTH_MASK) {
+            throw new IllegalArgumentException("Key of " + keyBytes.length + " bytes is too long");
+        }
+        if (arenaEnd + keyBytes.length > arena.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(arena.capacity() * 2, arenaEnd + keyBytes.length));
+            ByteBuffer source = arena.duplicate();
+            source.position(0).limit(arenaEnd);
+            grown.put(source);
+            arena = grown;
+        }
+        long ref = ((long) arenaEnd << KEY_LENGTH_BITS) | keyBytes.length;
+        ByteBuffer target = arena.duplicate();
+        target.position(arenaEnd);
+        target.put(keyBytes);
+        arenaEnd += keyBytes.length;
+        return ref;
+    }
+
+    // Rebuilds the table at the given capacity, dropping deleted slots and
+    // the arena bytes of deleted keys.
+    private void rehash(int capacity) {
+        int[] oldHashes = hashes;
+        long[] oldKeyRefs = keyRefs;
+        long[] oldEntries = entries;
+        ByteBuffer oldArena = arena;
+        init(capacity, Math.max(INITIAL_CAPACITY * 16, arenaEnd));
+        for (int slot = 0; slot < oldHashes.length; slot++) {
+            int hash = oldHashes[slot];
+            if (hash == EMPTY || hash == DELETED) continue;
+            byte[] keyBytes = readKeyBytes(oldArena, oldKeyRefs[slot]);
+            insert(keyBytes, hash, oldEntries[slot]);
+        }
+    }
+
+    private static boolean keyEquals(ByteBuffer arena, long keyRef, byte[] keyBytes) {
+        int length = (int) (keyRef & KEY_LENGTH_MASK);
+        if (length != keyBytes.length) return false;
+        int offset = (int) (keyRef >>> KEY_LENGTH_BITS);
+        for (int i = 0; i < length; i++) {
+            if (arena.get(offset + i) != keyBytes[i]) return false;
+        }
+        return true;
+    }
+
+    private static byte[] readKeyBytes(ByteBuffer arena, long keyRef) {
+        int length = (int) (keyRef & KEY_LENGTH_MASK);
+        int offset = (int) (keyRef >>> KEY_LENGTH_BITS);
+        byte[] keyBytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            keyBytes[i] = arena.get(offset + i);
+        }
+        return keyBytes;
+    }
+
+    private static String readKey(ByteBuffer arena, long keyRef) {
+        return new String(readKeyBytes(arena, keyRef), StandardCharsets.UTF_8);
+    }
+
+    // FNV-1a, mapped away from the EMPTY and DELETED markers.
+    private static int hash(byte[] keyBytes) {
+        int hash = 0x811c9dc5;
+        for (byte b : keyBytes) {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        if (hash == EMPTY || hash == DELETED) hash = 1;
+        return hash;
+    }
+}
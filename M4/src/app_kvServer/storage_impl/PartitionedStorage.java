@@ -0,0 +1,325 @@
+package storage_impl;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import app_kvServer.DurabilityTracker;
+import app_kvServer.FileManager;
+import app_kvServer.IKVServer.DurabilityMode;
+import app_kvServer.StorageCompactor;
+import app_kvServer.StorageEngine;
+import app_kvServer.StorageSnapshot;
+
+/**
+ * Storage split into a fixed number of buckets over the MD5 hash space of the
+ * hash ring, each bucket a storage engine with its own files and index. A key
+ * lives in the bucket of the top bits of its MD5 hash, so a bucket holds one
+ * contiguous hash range and a ring change only has to look at the buckets
+ * that cross the range it moves. A whole bucket can be enumerated or dropped
+ * without touching the others.
+ *
+ * Durability is tracked across the buckets: under GROUP_COMMIT the buckets
+ * leave forcing to this storage, and one group committer syncs them all.
+ *
+ * Writes hold the read side of a barrier lock, a snapshot takes the write
+ * side for as long as the buckets take their own snapshots, so the bucket
+ * snapshots are of the same point in time.
+ */
+public class PartitionedStorage implements StorageEngine {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final int DEFAULT_BUCKETS = 32;
+    private static final int HASH_BITS = 128;
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final StorageEngine[] buckets;
+    private final int bucketBits;
+    private DurabilityTracker durability;
+    private StorageCompactor compactor;
+    private ReentrantReadWriteLock snapshotBarrier = new ReentrantReadWriteLock();
+
+    /**
+     * @param buckets the bucket storages, bucket i holds the i-th range of the
+     *           hash space. The count must be a power of two of at most 65536.
+     * @param durabilityMode durability promised by this storage, buckets are
+     *           expected to run with NONE unless it is SYNC
+     */
+    public PartitionedStorage(List<? extends StorageEngine> buckets, DurabilityMode durabilityMode) {
+        int count = buckets.size();
+        if (count == 0 || count > 65536 || (count & (count - 1)) != 0) {
+            throw new IllegalArgumentException("Bucket count " + count + " is not a power of two up to 65536");
+        }
+        this.buckets = buckets.toArray(new StorageEngine[count]);
+        this.bucketBits = Integer.numberOfTrailingZeros(count);
+        this.durability = new DurabilityTracker(this, durabilityMode);
+        durability.start();
+    }
+
+    public int getBucketCount() {
+        return buckets.length;
+    }
+
+    // Bucket of the key, the top bits of the MD5 hash the ring places it by.
+    public int bucketOf(String key) {
+        if (bucketBits == 0) return 0;
+        MessageDigest md = digests.get();
+        md.reset();
+        byte[] digest = md.digest(key.getBytes());
+        int top = ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16)
+                | ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+        return top >>> (32 - bucketBits);
+    }
+
+    // Lowest hash of the range of the bucket.
+    public BigInteger getBucketStart(int bucket) {
+        return BigInteger.valueOf(bucket).shiftLeft(HASH_BITS - bucketBits);
+    }
+
+    // Highest hash of the range of the bucket, inclusive.
+    public BigInteger getBucketEnd(int bucket) {
+        return getBucketStart(bucket + 1).subtract(BigInteger.ONE);
+    }
+
+    public StorageEngine getBucket(int bucket) {
+        return buckets[bucket];
+    }
+
+    // Keys of a single bucket, weakly consistent like getKeys().
+    public Iterable<String> getKeys(int bucket) {
+        return buckets[bucket].getKeys();
+    }
+
+    /**
+     * Deletes every key of the bucket at once, e.g. after the range moved to
+     * another server.
+     */
+    public void dropBucket(int bucket) throws Exception {
+        buckets[bucket].clearStorage();
+        logger.info("Dropped storage bucket " + bucket);
+    }
+
+    public boolean inStorage(String key) throws Exception {
+        return buckets[bucketOf(key)].inStorage(key);
+    }
+
+    public boolean mightContain(String key) {
+        return buckets[bucketOf(key)].mightContain(key);
+    }
+
+    public String getKV(String key) throws Exception {
+        return buckets[bucketOf(key)].getKV(key);
+    }
+
+    public void putKV(String key, String value) throws Exception {
+        putKV(key, value, 0);
+    }
+
+    public void putKV(String key, String value, long expiresAt) throws Exception {
+        snapshotBarrier.readLock().lock();
+        try {
+            buckets[bucketOf(key)].putKV(key, value, expiresAt);
+        } finally {
+            snapshotBarrier.readLock().unlock();
+        }
+        writeCompleted();
+    }
+
+    public void delete(String key) throws Exception {
+        snapshotBarrier.readLock().lock();
+        try {
+            buckets[bucketOf(key)].delete(key);
+        } finally {
+            snapshotBarrier.readLock().unlock();
+        }
+        writeCompleted();
+    }
+
+    // Chains the snapshots of the buckets, taken behind the barrier.
+    public StorageSnapshot snapshot() throws IOException {
+        final List<StorageSnapshot> snapshots = new ArrayList<StorageSnapshot>();
+        snapshotBarrier.writeLock().lock();
+        try {
+            for (StorageEngine bucket : buckets) {
+                snapshots.add(bucket.snapshot());
+            }
+        } catch (IOException e) {
+            for (StorageSnapshot snapshot : snapshots) {
+                snapshot.close();
+            }
+            throw e;
+        } finally {
+            snapshotBarrier.writeLock().unlock();
+        }
+        return new StorageSnapshot() {
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int bucket = 0;
+                    private Iterator<Map.Entry<String, String>> pairs = Collections.<Map.Entry<String, String>>emptyList().iterator();
+
+                    public boolean hasNext() {
+                        while (!pairs.hasNext() && bucket < snapshots.size()) {
+                            pairs = snapshots.get(bucket++).iterator();
+                        }
+                        return pairs.hasNext();
+                    }
+
+                    public Map.Entry<String, String> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        return pairs.next();
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            public void close() {
+                for (StorageSnapshot snapshot : snapshots) {
+                    snapshot.close();
+                }
+            }
+        };
+    }
+
+    private void writeCompleted() {
+        if (durability.getDurabilityMode() != DurabilityMode.SYNC) durability.writeCompleted();
+    }
+
+    // Chains the keys of the buckets, bucket by bucket.
+    public Iterable<String> getKeys() {
+        return new Iterable<String>() {
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    private int bucket = 0;
+                    private Iterator<String> keys = Collections.<String>emptyList().iterator();
+
+                    public boolean hasNext() {
+                        while (!keys.hasNext() && bucket < buckets.length) {
+                            keys = buckets[bucket++].getKeys().iterator();
+                        }
+                        return keys.hasNext();
+                    }
+
+                    public String next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        return keys.next();
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    public Map<String, Long> getExpiries() throws IOException {
+        Map<String, Long> expiries = new HashMap<String, Long>();
+        for (StorageEngine bucket : buckets) {
+            expiries.putAll(bucket.getExpiries());
+        }
+        return expiries;
+    }
+
+    // Merges the key ordered scans of the buckets, which hold disjoint keys.
+    public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey, KeyFilter filter) {
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<Iterator<Map.Entry<String, String>>>();
+        for (StorageEngine bucket : buckets) {
+            sources.add(bucket.scan(startKey, endKey, filter));
+        }
+        return new MergingIterator<String>(sources, /*skipTombstones=*/false);
+    }
+
+    public void clearStorage() throws Exception {
+        for (StorageEngine bucket : buckets) {
+            bucket.clearStorage();
+        }
+    }
+
+    public void awaitDurable() throws InterruptedException {
+        durability.awaitDurable();
+    }
+
+    public long getPendingWrites() {
+        return durability.getPendingWrites();
+    }
+
+    public void sync() throws IOException {
+        long sequence = durability.startSync();
+        if (sequence < 0) return;
+        for (StorageEngine bucket : buckets) {
+            bucket.sync();
+        }
+        durability.syncCompleted(sequence);
+    }
+
+    // Compacts the FileManager buckets from one background thread.
+    public void startCompactor() {
+        List<FileManager> fileManagers = new ArrayList<FileManager>();
+        for (StorageEngine bucket : buckets) {
+            if (bucket instanceof FileManager) fileManagers.add((FileManager) bucket);
+        }
+        if (fileManagers.isEmpty()) return;
+        compactor = new StorageCompactor(fileManagers);
+        compactor.start();
+    }
+
+    public long getReclaimedBytes() {
+        long reclaimed = 0;
+        for (StorageEngine bucket : buckets) {
+            reclaimed += bucket.getReclaimedBytes();
+        }
+        return reclaimed;
+    }
+
+    // Mean over the buckets, which see about the same share of lookups.
+    public double getFilterFalsePositiveRate() {
+        double rate = 0;
+        for (StorageEngine bucket : buckets) {
+            rate += bucket.getFilterFalsePositiveRate();
+        }
+        return rate / buckets.length;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durability.getDurabilityMode();
+    }
+
+    // Stops the compactor and the group committer after a final sync, then
+    // closes the buckets.
+    public void close() {
+        if (compactor != null) compactor.stop();
+        durability.stop();
+        try {
+            sync();
+        } catch (IOException e) {
+            logger.error("Could not sync storage on close", e);
+        }
+        for (StorageEngine bucket : buckets) {
+            bucket.close();
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package storage_impl;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Self-describing key-value record shared by the storage engines:
+ *   int    CRC32 of the rest of the record
+ *   byte   flags
+ *   short  key length
+ *   int    value length
+ *   long   sequence number, only if FLAG_SEQUENCED is set
+ *   long   expiry in epoch milliseconds, only if FLAG_EXPIRES is set
+ *   key bytes (UTF-8), value bytes
+ * A delete is a tombstone record without a value. Values of at least a
+ * compression threshold are stored deflated if that saves at least an
+ * eighth, flagged per record so compressed and plain records mix freely.
+ * A deflated value is the length of the plain value followed by the
+ * deflate stream.
+ *
+ * A record whose slot was given up is turned into a free block by setting
+ * FLAG_FREE, a single byte write. The lengths still give the size of the
+ * block, its checksum is no longer checked.
+ *
+ * A put with an expiry reads as absent once the expiry passed, engines
+ * treat it like a tombstone when they recover, compact or merge.
+ */
+public final class Records {
+
+    public static final int HEADER_SIZE = 4 + 1 + 2 + 4;
+    public static final byte FLAG_TOMBSTONE = 1;
+    public static final byte FLAG_DEFLATED = 2;
+    public static final byte FLAG_FREE = 4;
+    public static final byte FLAG_SEQUENCED = 8;
+    public static final byte FLAG_EXPIRES = 16;
+    public static final int FLAGS_OFFSET = 4;
+    public static final int SEQUENCE_SIZE = 8;
+    public static final int EXPIRY_SIZE = 8;
+    // Default size from which values are compressed, 0 disables compression.
+    public static final int COMPRESSION_THRESHOLD = 1024;
+    // Upper bound used to recognize a garbage key length in a torn record.
+    public static final int MAX_KEY_SIZE = 1024;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private Records() {
+    }
+
+    /**
+     * Encodes a put, deflating the value if it is at least
+     * compressionThreshold bytes and compresses well enough.
+     */
+    public static ByteBuffer encodePut(String key, byte[] valueBytes, int compressionThreshold) {
+        return encodePut(key, valueBytes, compressionThreshold, -1);
+    }
+
+    /**
+     * Like encodePut() above, with a sequence number unless it is negative.
+     * See setSequence() for assigning it once the record is encoded.
+     */
+    public static ByteBuffer encodePut(String key, byte[] valueBytes, int compressionThreshold, long sequence) {
+        return encodePut(key, valueBytes, compressionThreshold, sequence, 0);
+    }
+
+    /**
+     * Like encodePut() above, with an expiry in epoch milliseconds unless it
+     * is 0.
+     */
+    public static ByteBuffer encodePut(String key, byte[] valueBytes, int compressionThreshold, long sequence,
+                                       long expiresAt) {
+        byte flags = expiresAt != 0 ? FLAG_EXPIRES : 0;
+        if (compressionThreshold > 0 && valueBytes.length >= compressionThreshold) {
+            byte[] deflated = deflate(valueBytes);
+            if (deflated != null) return encode(key, deflated, (byte) (flags | FLAG_DEFLATED), sequence, expiresAt);
+        }
+        return encode(key, valueBytes, flags, sequence, expiresAt);
+    }
+
+    public static ByteBuffer encode(String key, byte[] valueBytes, byte flags) {
+        return encode(key, valueBytes, flags, -1);
+    }
+
+    public static ByteBuffer encode(String key, byte[] valueBytes, byte flags, long sequence) {
+        return encode(key, valueBytes, flags, sequence, 0);
+    }
+
+    public static ByteBuffer encode(String key, byte[] valueBytes, byte flags, long sequence, long expiresAt) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Key of " + keyBytes.length + " bytes is too long");
+        }
+        if (sequence >= 0) flags |= FLAG_SEQUENCED;
+        if (expiresAt != 0) flags |= FLAG_EXPIRES;
+        int size = headerSize(flags) + keyBytes.length + valueBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(0);
+        record.put(flags);
+        record.putShort((short) keyBytes.length);
+        record.putInt(valueBytes.length);
+        if (sequence >= 0) record.putLong(sequence);
+        if (expiresAt != 0) record.putLong(expiresAt);
+        record.put(keyBytes);
+        record.put(valueBytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, size - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    public static ByteBuffer encodeTombstone(String key) {
+        return encode(key, new byte[0], FLAG_TOMBSTONE);
+    }
+
+    public static ByteBuffer encodeTombstone(String key, long sequence) {
+        return encode(key, new byte[0], FLAG_TOMBSTONE, sequence);
+    }
+
+    /**
+     * Replaces the sequence number of an encoded record with FLAG_SEQUENCED
+     * and updates its checksum. Lets writers encode a record before they
+     * know its place in the write order.
+     */
+    public static void setSequence(ByteBuffer record, long sequence) {
+        byte[] buffer = record.array();
+        int offset = record.arrayOffset() + record.position();
+        ByteBuffer.wrap(buffer, offset + HEADER_SIZE, SEQUENCE_SIZE).putLong(sequence);
+        CRC32 crc = new CRC32();
+        crc.update(buffer, offset + 4, size(buffer, offset) - 4);
+        ByteBuffer.wrap(buffer, offset, 4).putInt((int) crc.getValue());
+    }
+
+    /**
+     * Encodes the header of a free block spanning size bytes, which must be
+     * at least HEADER_SIZE. Only the header is written over the old bytes.
+     */
+    public static ByteBuffer encodeFreeHeader(int size) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0);
+        header.put(FLAG_FREE);
+        header.putShort((short) 0);
+        header.putInt(size - HEADER_SIZE);
+        header.flip();
+        return header;
+    }
+
+    public static boolean checksumMatches(byte[] buffer, int offset, int size) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer, offset + 4, size - 4);
+        return ByteBuffer.wrap(buffer, offset, 4).getInt() == (int) crc.getValue();
+    }
+
+    public static byte flags(byte[] buffer, int offset) {
+        return buffer[offset + 4];
+    }
+
+    public static boolean isTombstone(byte[] buffer, int offset) {
+        return (flags(buffer, offset) & FLAG_TOMBSTONE) != 0;
+    }
+
+    public static boolean isFree(byte[] buffer, int offset) {
+        return (flags(buffer, offset) & FLAG_FREE) != 0;
+    }
+
+    // Size of the header including the sequence number and the expiry, if
+    // there are any.
+    public static int headerSize(byte[] buffer, int offset) {
+        return headerSize(flags(buffer, offset));
+    }
+
+    private static int headerSize(byte flags) {
+        int size = HEADER_SIZE;
+        if ((flags & FLAG_SEQUENCED) != 0) size += SEQUENCE_SIZE;
+        if ((flags & FLAG_EXPIRES) != 0) size += EXPIRY_SIZE;
+        return size;
+    }
+
+    // Sequence number of the record, -1 if it has none.
+    public static long sequence(byte[] buffer, int offset) {
+        if ((flags(buffer, offset) & FLAG_SEQUENCED) == 0) return -1;
+        return ByteBuffer.wrap(buffer, offset + HEADER_SIZE, SEQUENCE_SIZE).getLong();
+    }
+
+    // Expiry of the record in epoch milliseconds, 0 if it does not expire.
+    public static long expiresAt(byte[] buffer, int offset) {
+        byte flags = flags(buffer, offset);
+        if ((flags & FLAG_EXPIRES) == 0) return 0;
+        int expiryOffset = (flags & FLAG_SEQUENCED) != 0 ? HEADER_SIZE + SEQUENCE_SIZE : HEADER_SIZE;
+        return ByteBuffer.wrap(buffer, offset + expiryOffset, EXPIRY_SIZE).getLong();
+    }
+
+    // True if the record has an expiry that is not after now.
+    public static boolean isExpired(byte[] buffer, int offset, long now) {
+        long expiresAt = expiresAt(buffer, offset);
+        return expiresAt != 0 && expiresAt <= now;
+    }
+
+    public static int keyLength(byte[] buffer, int offset) {
+        return ((buffer[offset + 5] & 0xff) << 8) | (buffer[offset + 6] & 0xff);
+    }
+
+    public static int valueLength(byte[] buffer, int offset) {
+        return ByteBuffer.wrap(buffer, offset + 7, 4).getInt();
+    }
+
+    public static int size(byte[] buffer, int offset) {
+        return headerSize(buffer, offset) + keyLength(buffer, offset) + valueLength(buffer, offset);
+    }
+
+    public static String key(byte[] buffer, int offset) {
+        return new String(buffer, offset + headerSize(buffer, offset), keyLength(buffer, offset), StandardCharsets.UTF_8);
+    }
+
+    public static int valueOffset(byte[] buffer, int offset) {
+        return offset + headerSize(buffer, offset) + keyLength(buffer, offset);
+    }
+
+    public static boolean isDeflated(byte[] buffer, int offset) {
+        return (flags(buffer, offset) & FLAG_DEFLATED) != 0;
+    }
+
+    // The plain value of the record, inflated if it is stored deflated.
+    public static byte[] value(byte[] buffer, int offset) throws IOException {
+        int valueOffset = valueOffset(buffer, offset);
+        int valueLength = valueLength(buffer, offset);
+        if (isDeflated(buffer, offset)) {
+            return inflate(buffer, valueOffset, valueLength);
+        }
+        byte[] value = new byte[valueLength];
+        System.arraycopy(buffer, valueOffset, value, 0, value.length);
+        return value;
+    }
+
+    // Returns null unless deflating saves at least an eighth of the value.
+    private static byte[] deflate(byte[] value) {
+        if (value.length < 64) return null;
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+        byte[] deflated = new byte[value.length - value.length / 8];
+        ByteBuffer.wrap(deflated).putInt(value.length);
+        int length = 4;
+        while (!deflater.finished() && length < deflated.length) {
+            length += deflater.deflate(deflated, length, deflated.length - length);
+        }
+        if (!deflater.finished()) return null;
+        return Arrays.copyOf(deflated, length);
+    }
+
+    private static byte[] inflate(byte[] buffer, int offset, int length) throws IOException {
+        int plainLength = ByteBuffer.wrap(buffer, offset, 4).getInt();
+        if (plainLength < 0) throw new IOException("Corrupt deflated value");
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(buffer, offset + 4, length - 4);
+        byte[] value = new byte[plainLength];
+        try {
+            int inflated = 0;
+            while (inflated < plainLength) {
+                int read = inflater.inflate(value, inflated, plainLength - inflated);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated deflated value");
+                }
+                inflated += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflated value", e);
+        }
+        return value;
+    }
+
+    /**
+     * Reads records one after the other from a stream into a reused buffer.
+     * next() returns false at the end of the stream and at the first torn or
+     * corrupt record. Free blocks are returned as well, see isFree(), only
+     * their header is kept.
+     */
+    public static class Scanner {
+        private final DataInputStream in;
+        private final long maxRecordSize;
+        private byte[] record = new byte[4096];
+        private int size = 0;
+        private boolean valid = false;
+
+        public Scanner(DataInputStream in, long maxRecordSize) {
+            this.in = in;
+            this.maxRecordSize = maxRecordSize;
+        }
+
+        public boolean next() throws IOException {
+            return nextBlock() && valid;
+        }
+
+        /**
+         * Reads the next block, unlike next() also one whose checksum does not
+         * match, see isValid(). Returns false at the end of the stream and at
+         * a block whose lengths are torn or run past the end.
+         */
+        public boolean nextBlock() throws IOException {
+            try {
+                int crc = in.readInt();
+                byte flags = in.readByte();
+                int keyLength = in.readUnsignedShort();
+                int valueLength = in.readInt();
+                int headerSize = headerSize(flags);
+                long recordSize = (long) headerSize + keyLength + valueLength;
+                if (keyLength > MAX_KEY_SIZE || valueLength < 0 || recordSize > maxRecordSize) return false;
+
+                size = (int) recordSize;
+                boolean free = (flags & FLAG_FREE) != 0;
+                int keep = free ? HEADER_SIZE : size;
+                if (record.length < keep) record = new byte[keep];
+                ByteBuffer.wrap(record).putInt(crc).put(flags).putShort((short) keyLength).putInt(valueLength);
+                if (free) {
+                    skipFully(recordSize - HEADER_SIZE);
+                    valid = true;
+                    return true;
+                }
+                in.readFully(record, HEADER_SIZE, size - HEADER_SIZE);
+                valid = checksumMatches(record, 0, size);
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        private void skipFully(long bytes) throws IOException {
+            while (bytes > 0) {
+                int skipped = in.skipBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+                if (skipped <= 0) {
+                    // skipBytes() does not tell the end of the stream apart.
+                    in.readByte();
+                    skipped = 1;
+                }
+                bytes -= skipped;
+            }
+        }
+
+        // Size in bytes of the current record.
+        public int size() {
+            return size;
+        }
+
+        // False if the checksum of the current block does not match.
+        public boolean isValid() {
+            return valid;
+        }
+
+        public boolean isFree() {
+            return Records.isFree(record, 0);
+        }
+
+        public long sequence() {
+            return Records.sequence(record, 0);
+        }
+
+        public long expiresAt() {
+            return Records.expiresAt(record, 0);
+        }
+
+        public boolean isExpired(long now) {
+            return Records.isExpired(record, 0, now);
+        }
+
+        public boolean isTombstone() {
+            return Records.isTombstone(record, 0);
+        }
+
+        public String key() {
+            return Records.key(record, 0);
+        }
+
+        public byte[] value() throws IOException {
+            return Records.value(record, 0);
+        }
+
+        // The current record, valid until the next call to next().
+        public byte[] buffer() {
+            return record;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
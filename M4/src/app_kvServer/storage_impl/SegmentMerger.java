@@ -0,0 +1,62 @@
+package storage_impl;
+
+import org.apache.log4j.Logger;
+
+// Background thread of an LsmStorage. Flushes a frozen memtable as soon as
+// there is one and merges segments until no tier qualifies anymore.
+public class SegmentMerger implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    private LsmStorage storage;
+    private volatile boolean running = false;
+    private final Object wakeMonitor = new Object();
+    private boolean woken = false;
+    private Thread thread;
+
+    public SegmentMerger(LsmStorage storage) {
+        this.storage = storage;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "segment-merger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+    }
+
+    // Called when a memtable was frozen.
+    public void wake() {
+        synchronized (wakeMonitor) {
+            woken = true;
+            wakeMonitor.notify();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                synchronized (wakeMonitor) {
+                    if (!woken) wakeMonitor.wait(CHECK_INTERVAL_MS);
+                    woken = false;
+                }
+                storage.flushFrozen();
+                while (running && storage.mergeIfNeeded()) {
+                    storage.flushFrozen();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error("Segment flush or merge failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package storage_impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable segment file of an LsmStorage, holding one record per key in key
+ * order (see Records), tombstones included.
+ *
+ * Layout: the records, a sparse index with the key and offset of every
+ * INDEX_INTERVAL-th record, a bloom filter over all keys, and a fixed size
+ * footer locating the index and the filter. The index and the filter are
+ * kept in memory, a lookup reads a single block of at most INDEX_INTERVAL
+ * records.
+ *
+ * A segment is named after the range of memtable ids it holds, seg-MIN-MAX.sst.
+ * A flushed memtable covers a single id, a merge output the range of its inputs.
+ *
+ * A record that expired reads as a tombstone, which shadows older records of
+ * its key and is written back as one by the next merge. Records that have
+ * not expired yet are returned as ExpiringEntry and keep their expiry.
+ */
+public class SortedSegment {
+
+    // Value returned by get() for a key deleted in this segment.
+    public static final byte[] TOMBSTONE = new byte[0];
+
+    public static final int INDEX_INTERVAL = 16;
+    private static final int MAGIC = 0x4b565353;
+    private static final int FOOTER_SIZE = 8 + 8 + 4 + 4;
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+    private static final Pattern NAME_PATTERN = Pattern.compile("seg-(\\d+)-(\\d+)\\.sst");
+
+    private final File file;
+    private final long minId;
+    private final long maxId;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long dataEnd;
+    private final int recordCount;
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+    private final BloomFilter bloomFilter;
+
+    private SortedSegment(File file, long minId, long maxId) throws IOException {
+        this.file = file;
+        this.minId = minId;
+        this.maxId = maxId;
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        try {
+            long length = channel.size();
+            if (length < FOOTER_SIZE) throw new IOException("Truncated segment " + file);
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            readFully(footer, length - FOOTER_SIZE);
+            footer.flip();
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            recordCount = footer.getInt();
+            if (footer.getInt() != MAGIC) throw new IOException("Bad segment footer in " + file);
+            dataEnd = indexOffset;
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(indexOffset))));
+            int indexSize = in.readInt();
+            indexKeys = new String[indexSize];
+            indexOffsets = new long[indexSize];
+            for (int i = 0; i < indexSize; i++) {
+                byte[] keyBytes = new byte[in.readUnsignedShort()];
+                in.readFully(keyBytes);
+                indexKeys[i] = new String(keyBytes, StandardCharsets.UTF_8);
+                indexOffsets[i] = in.readLong();
+            }
+            in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(bloomOffset))));
+            bloomFilter = BloomFilter.readFrom(in);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    // Entry of a value with an expiry, see Records.
+    public static class ExpiringEntry extends AbstractMap.SimpleImmutableEntry<String, byte[]> {
+        private static final long serialVersionUID = 1L;
+        private final long expiresAt;
+
+        public ExpiringEntry(String key, byte[] value, long expiresAt) {
+            super(key, value);
+            this.expiresAt = expiresAt;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    // Expiry of the entry in epoch milliseconds, 0 if it does not expire.
+    public static long expiresAt(Map.Entry<String, byte[]> entry) {
+        return entry instanceof ExpiringEntry ? ((ExpiringEntry) entry).getExpiresAt() : 0;
+    }
+
+    public static String fileName(long minId, long maxId) {
+        return "seg-" + minId + "-" + maxId + ".sst";
+    }
+
+    // Returns true for the file names of segments.
+    public static boolean isSegmentFile(File file) {
+        return NAME_PATTERN.matcher(file.getName()).matches();
+    }
+
+    public static SortedSegment open(File file) throws IOException {
+        Matcher matcher = NAME_PATTERN.matcher(file.getName());
+        if (!matcher.matches()) throw new IOException("Not a segment file " + file);
+        return new SortedSegment(file, Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)));
+    }
+
+    /**
+     * Writes the entries, which must be in key order, as a new segment. The
+     * file is forced to disk and renamed into place before it is opened.
+     * @param entries key to value, or to TOMBSTONE for a deleted key. The
+     *           expiry of an ExpiringEntry is kept.
+     * @param expectedKeys number of entries, used to size the bloom filter
+     * @param compressionThreshold see Records.encodePut()
+     */
+    public static SortedSegment write(File dir, long minId, long maxId,
+                                      Iterator<Map.Entry<String, byte[]>> entries,
+                                      int expectedKeys, int compressionThreshold) throws IOException {
+        File target = new File(dir, fileName(minId, maxId));
+        File tmpFile = new File(dir, target.getName() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(tmpFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 64 * 1024));
+        List<String> indexKeys = new ArrayList<String>();
+        List<Long> indexOffsets = new ArrayList<Long>();
+        BloomFilter bloomFilter = new BloomFilter(expectedKeys, BLOOM_FALSE_POSITIVE_RATE);
+        long offset = 0;
+        int recordCount = 0;
+        try {
+            while (entries.hasNext()) {
+                Map.Entry<String, byte[]> entry = entries.next();
+                ByteBuffer record = entry.getValue() == TOMBSTONE
+                        ? Records.encodeTombstone(entry.getKey())
+                        : Records.encodePut(entry.getKey(), entry.getValue(), compressionThreshold, -1,
+                                expiresAt(entry));
+                if (recordCount % INDEX_INTERVAL == 0) {
+                    indexKeys.add(entry.getKey());
+                    indexOffsets.add(offset);
+                }
+                bloomFilter.add(entry.getKey());
+                out.write(record.array(), 0, record.remaining());
+                offset += record.remaining();
+                recordCount++;
+            }
+
+            long indexOffset = offset;
+            out.writeInt(indexKeys.size());
+            offset += 4;
+            for (int i = 0; i < indexKeys.size(); i++) {
+                byte[] keyBytes = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeShort(keyBytes.length);
+                out.write(keyBytes);
+                out.writeLong(indexOffsets.get(i));
+                offset += 2 + keyBytes.length + 8;
+            }
+            long bloomOffset = offset;
+            bloomFilter.writeTo(out);
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeInt(recordCount);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(target);
+    }
+
+    // False if the segment definitely does not hold the key. Only touches the
+    // in-memory filter, also after the segment is closed.
+    public boolean mightContain(String key) {
+        return bloomFilter.mightContain(key);
+    }
+
+    /**
+     * Looks the key up without consulting the bloom filter, callers check
+     * mightContain() first.
+     * @return the value of the key, TOMBSTONE if it is deleted or expired in
+     *         this segment or null if the segment does not hold it
+     */
+    public byte[] get(String key) throws IOException {
+        int block = floorIndex(key);
+        if (block < 0) return null;
+
+        long start = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        readFully(buffer, start);
+        byte[] records = buffer.array();
+        long now = System.currentTimeMillis();
+        int offset = 0;
+        while (offset < records.length) {
+            int size = Records.size(records, offset);
+            if (!Records.checksumMatches(records, offset, size)) {
+                throw new IOException("Checksum mismatch in " + file + " at " + (start + offset));
+            }
+            int order = Records.key(records, offset).compareTo(key);
+            if (order == 0) {
+                return Records.isTombstone(records, offset) || Records.isExpired(records, offset, now)
+                        ? TOMBSTONE : Records.value(records, offset);
+            }
+            if (order > 0) return null;
+            offset += size;
+        }
+        return null;
+    }
+
+    // Index of the last sparse index key not greater than the key, or -1.
+    private int floorIndex(String key) {
+        int low = 0;
+        int high = indexKeys.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = indexKeys[middle].compareTo(key);
+            if (order == 0) return middle;
+            if (order < 0) low = middle + 1;
+            else high = middle - 1;
+        }
+        return high;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Unexpected end of segment " + file);
+        }
+    }
+
+    /**
+     * Iterates all entries in key order, tombstones included. The iterator
+     * reads through its own stream opened right away, so it keeps working
+     * after the segment is closed and deleted by a merge.
+     */
+    public SegmentIterator iterator() throws IOException {
+        return iterator(null, null);
+    }
+
+    /**
+     * Iterates the entries with fromKey <= key < toKey like iterator(). The
+     * stream starts at the sparse index block of fromKey.
+     * @param fromKey first key, null to start at the first entry
+     * @param toKey key after the last, null to end at the last entry
+     */
+    public SegmentIterator iterator(String fromKey, String toKey) throws IOException {
+        int block = fromKey == null ? 0 : Math.max(floorIndex(fromKey), 0);
+        long start = indexOffsets.length == 0 ? dataEnd : indexOffsets[block];
+        return new SegmentIterator(start, fromKey, toKey);
+    }
+
+    // Iterator over the records of a segment. It closes its stream once it
+    // reached the end, close() releases it earlier.
+    public class SegmentIterator implements Iterator<Map.Entry<String, byte[]>>, Closeable {
+        private final Records.Scanner scanner;
+        private final String fromKey;
+        private final String toKey;
+        private final long now = System.currentTimeMillis();
+        private long position;
+        private Map.Entry<String, byte[]> next;
+
+        private SegmentIterator(long start, String fromKey, String toKey) throws IOException {
+            FileInputStream fileStream = new FileInputStream(file);
+            fileStream.getChannel().position(start);
+            this.scanner = new Records.Scanner(new DataInputStream(
+                    new BufferedInputStream(fileStream, 64 * 1024)), Integer.MAX_VALUE);
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+            this.position = start;
+            this.next = advance();
+        }
+
+        private Map.Entry<String, byte[]> advance() {
+            try {
+                while (position < dataEnd) {
+                    if (!scanner.next()) throw new IOException("Corrupt record in " + file);
+                    position += scanner.size();
+                    String key = scanner.key();
+                    if (fromKey != null && key.compareTo(fromKey) < 0) continue;
+                    if (toKey != null && key.compareTo(toKey) >= 0) break;
+                    if (scanner.isTombstone() || scanner.isExpired(now)) {
+                        return new AbstractMap.SimpleImmutableEntry<String, byte[]>(key, TOMBSTONE);
+                    }
+                    long expiresAt = scanner.expiresAt();
+                    if (expiresAt != 0) return new ExpiringEntry(key, scanner.value(), expiresAt);
+                    return new AbstractMap.SimpleImmutableEntry<String, byte[]>(key, scanner.value());
+                }
+                scanner.close();
+                return null;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<String, byte[]> next() {
+            if (next == null) throw new NoSuchElementException();
+            Map.Entry<String, byte[]> entry = next;
+            next = advance();
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() throws IOException {
+            next = null;
+            scanner.close();
+        }
+    }
+
+    public long getMinId() {
+        return minId;
+    }
+
+    public long getMaxId() {
+        return maxId;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public long getSizeBytes() {
+        return file.length();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // Sparse index and bloom filter bytes kept in memory.
+    public long memoryBytes() {
+        long bytes = bloomFilter.memoryBytes() + indexOffsets.length * 8L;
+        for (String key : indexKeys) {
+            bytes += 40 + 2 * key.length();
+        }
+        return bytes;
+    }
+
+    public void close() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // Nothing left to release.
+        }
+    }
+
+    public void delete() {
+        close();
+        file.delete();
+    }
+}
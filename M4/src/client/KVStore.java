@@ -4,14 +4,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
 
 import ecs.ECSHashRing;
 //import jdk.dynalink.Operation;
 import shared.messages.KVMessage;
 import org.apache.log4j.Logger;
 import shared.messages.ProtoKVMessage;
+import shared.messages.ScanMessages;
 
 public class KVStore implements KVCommInterface {
 
@@ -88,13 +95,24 @@ public class KVStore implements KVCommInterface {
 
 	@Override
 	public KVMessage put(String key, String value) throws Exception {
+		return put(key, value, 0);
+	}
+
+	/**
+	 * Puts the pair with a time to live. The servers drop the key, from the
+	 * coordinator and the replicas alike, once ttlMillis passed since it was
+	 * stored. A later put without a time to live makes it permanent again.
+	 *
+	 * @param ttlMillis time to live in milliseconds, 0 for no expiry
+	 */
+	public KVMessage put(String key, String value, long ttlMillis) throws Exception {
 	    // Return early when there is an error.
-		if (!checkKeyValueFormat(key, value)) {
+		if (!checkKeyValueFormat(key, value) || ttlMillis < 0) {
 			return new ProtoKVMessage(key,"",KVMessage.StatusType.PUT_ERROR);
 		}
 
 		// Send put message and try receive a response from the server currently connected.
-        ProtoKVMessage putMsg = new ProtoKVMessage(key, value, KVMessage.StatusType.PUT);
+        ProtoKVMessage putMsg = new ProtoKVMessage(key, value, KVMessage.StatusType.PUT, ttlMillis);
         ProtoKVMessage receiveMsg = new ProtoKVMessage();
         try {
             // Check the connection and try reconnecting if necessary.
@@ -120,13 +138,18 @@ public class KVStore implements KVCommInterface {
 	}
 
 	public KVMessage replicate(String key, String value) throws Exception {
+		return replicate(key, value, 0);
+	}
+
+	// Replicates the pair with the time to live it has left on the coordinator.
+	public KVMessage replicate(String key, String value, long ttlMillis) throws Exception {
 	    // Return early when there is an error.
 		if (!checkKeyValueFormat(key, value)) {
 			return new ProtoKVMessage(key,"",KVMessage.StatusType.REPLICATE_ERROR);
 		}
 
 		// Send replication message and try receive a response from the server currently connected.
-        ProtoKVMessage putMsg = new ProtoKVMessage(key, value, KVMessage.StatusType.REPLICATE);
+        ProtoKVMessage putMsg = new ProtoKVMessage(key, value, KVMessage.StatusType.REPLICATE, ttlMillis);
         ProtoKVMessage receiveMsg = new ProtoKVMessage();
         try {
             logger.info("KVStore replicate operation started");
@@ -180,6 +203,77 @@ public class KVStore implements KVCommInterface {
         }
     }
 
+	/**
+	 * Retrieves the key-value pairs with startKey <= key < endKey in key order.
+	 * Every server of the cached metadata streams the pairs it coordinates in
+	 * pages, the pages are merged here. With a limit at most limit pairs are
+	 * kept, and once there are that many the next servers are only asked for
+	 * the keys before the last one kept. The client is connected to its
+	 * original server again afterwards.
+	 *
+	 * @param startKey first key, null for no lower bound
+	 * @param endKey key after the range, null for no upper bound
+	 * @param limit maximum number of pairs, 0 for no limit
+	 * @throws Exception if a server fails the scan or cannot be reached.
+	 */
+	public List<Map.Entry<String, String>> scan(String startKey, String endKey, int limit) throws Exception {
+		TreeMap<String, String> pairs = new TreeMap<String, String>();
+		String originalServer = addressName + addressAndPortDelimiter + portNum;
+		boolean wasConnected = isConnected();
+		Set<String> servers = new HashSet<String>(cached_hashring.cached_map.keySet());
+		if (servers.isEmpty()) servers.add(originalServer);
+		try {
+			for (String server : servers) {
+				String serverEndKey = endKey;
+				if (limit > 0 && pairs.size() == limit) {
+					serverEndKey = pairs.lastKey();
+					if (startKey != null && serverEndKey.compareTo(startKey) <= 0) break;
+				}
+				if (!isConnectedTo(server)) {
+					setAddress(server);
+					disconnect();
+					connect();
+				}
+				ProtoKVMessage scanMsg = new ProtoKVMessage(startKey == null ? "" : startKey,
+						ScanMessages.encodeRequest(serverEndKey, limit), KVMessage.StatusType.SCAN);
+				scanMsg.writeMessage(output);
+				while (true) {
+					ProtoKVMessage receiveMsg = new ProtoKVMessage();
+					receiveMsg.parseMessage(input);
+					if (receiveMsg.getStatus() == KVMessage.StatusType.SCAN_SUCCESS) break;
+					if (receiveMsg.getStatus() != KVMessage.StatusType.SCAN_PAGE) {
+						throw new IOException("Scan failed on " + server + ": " + receiveMsg.getStatus());
+					}
+					for (Map.Entry<String, String> pair : ScanMessages.decodePage(receiveMsg.getValue())) {
+						pairs.put(pair.getKey(), pair.getValue());
+						if (limit > 0 && pairs.size() > limit) pairs.pollLastEntry();
+					}
+				}
+			}
+		} finally {
+			if (!isConnectedTo(originalServer)) {
+				setAddress(originalServer);
+				disconnect();
+				if (wasConnected) connect();
+			}
+		}
+		logger.info("KVStore scan operation done");
+		return new ArrayList<Map.Entry<String, String>>(pairs.entrySet());
+	}
+
+	/**
+	 * Sends a chunk of a storage snapshot to the connected server, which
+	 * stores the pairs it is coordinator or replica for.
+	 */
+	public KVMessage snapshotChunk(byte[] chunk) throws Exception {
+		ProtoKVMessage chunkMsg = new ProtoKVMessage("", Base64.getEncoder().encodeToString(chunk),
+				KVMessage.StatusType.SNAPSHOT_CHUNK);
+		chunkMsg.writeMessage(output);
+		ProtoKVMessage receiveMsg = new ProtoKVMessage();
+		receiveMsg.parseMessage(input);
+		return receiveMsg;
+	}
+
 	private boolean checkKeyValueFormat(String key, String value) {
         if (!checkKeyFormat(key)) return false;
         if (!checkValueFormat(value)) return false;
@@ -290,7 +384,7 @@ public class KVStore implements KVCommInterface {
         System.out.println("KVStore resending message");
         if (msg.getStatus() == KVMessage.StatusType.PUT) {
             checkConnectionAndReconnectIfNecessary(msg.getKey(), OperationType.PUT);
-            return this.put(msg.getKey(), msg.getValue());
+            return this.put(msg.getKey(), msg.getValue(), msg.getTtlMillis());
         }
         if (msg.getStatus() == KVMessage.StatusType.GET) {
             checkConnectionAndReconnectIfNecessary(msg.getKey(), OperationType.GET);
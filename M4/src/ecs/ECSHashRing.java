@@ -110,6 +110,19 @@ public class ECSHashRing {
         return foundFullAddress;
     }
 
+    // Gets the coordinator of every hash in [start, end], or null if the range
+    // is split between several coordinators.
+    public String getRangeOwner(BigInteger start, BigInteger end) {
+        if (cached_map.isEmpty()) return null;
+        if (cached_map.size() == 1) return getNodeByHash(end.toString(16));
+        // Only a node hash inside the range, below its end, splits it.
+        for (String hash : cached_map.values()) {
+            BigInteger nodeHash = new BigInteger(hash, 16);
+            if (nodeHash.compareTo(start) >= 0 && nodeHash.compareTo(end) < 0) return null;
+        }
+        return getNodeByHash(end.toString(16));
+    }
+
     // Gets addressAndPort of the coordinator of the input key.
     public String getNodeByKey(String key) {
         return getNodeByHash(getHash(key));
@@ -1,6 +1,7 @@
 package ecs;
 
 
+import app_kvServer.FileManager;
 import app_kvServer.KVServer;
 import shared.messages.KVMessage;
 import shared.messages.ProtoKVMessage;
@@ -156,20 +157,28 @@ public class ECSNode implements IECSNode{
     }
 
     public boolean sshServerStart(String replacementPolicy,int cacheSize){
+        return sshServerStart(replacementPolicy, cacheSize, 0, 0);
+    }
+
+    // Starts the server with a cache budget in bytes, see KVServer.main.
+    public boolean sshServerStart(String replacementPolicy, int cacheSize, long cacheBytes, int maxCacheEntryBytes){
+        // The budget follows the optional durability, storage and data directory arguments.
+        String cacheArgs = cacheBytes > 0
+                ? " none log " + FileManager.DEFAULT_DATA_DIR + " " + cacheBytes + " " + maxCacheEntryBytes : "";
         Runtime run = Runtime.getRuntime();
         System.out.println("startsshServer");
         try {
             if (System.getProperty("os.name").toLowerCase().contains("win")) {
-                proc = run.exec("cmd /c " + "ssh -n herna130@127.0.0.1 nohup java -jar ./ECE4/ECE419/M2/m2-server.jar "+port+" "+cacheSize+" "+replacementPolicy+" ALL "+ zkHostName + ":" + zkPort+" /ECE419 "+name);
-                String sent="ssh -n herna130@127.0.0.1 nohup java -jar ./ECE4/ECE419/M2/m2-server.jar "+port+" "+cacheSize+" "+replacementPolicy+" ALL "+ zkHostName + ":" + zkPort+" /ECE419 "+name;
+                proc = run.exec("cmd /c " + "ssh -n herna130@127.0.0.1 nohup java -jar ./ECE4/ECE419/M2/m2-server.jar "+port+" "+cacheSize+" "+replacementPolicy+" ALL "+ zkHostName + ":" + zkPort+" /ECE419 "+name+cacheArgs);
+                String sent="ssh -n herna130@127.0.0.1 nohup java -jar ./ECE4/ECE419/M2/m2-server.jar "+port+" "+cacheSize+" "+replacementPolicy+" ALL "+ zkHostName + ":" + zkPort+" /ECE419 "+name+cacheArgs;
                 System.out.println(sent);
 
                 //proc = run.exec(scriptWin);
             } else {
                 //String sent="ssh -n brianaly@localhost nohup java -jar ./ECE419/M3/m2-server.jar "+port+" "+cacheSize+" "+replacementPolicy+" ALL "+ zkHostName + ":" + zkPort+" /ECE419 "+name+" &";
-                String sent="ssh -n herna130@localhost nohup java -jar ./ECEFourthYear/ECE419/M3/m2-server.jar "+port+" "+cacheSize+" "+replacementPolicy+" ALL "+ zkHostName + ":" + zkPort+" /ECE419 "+name+" &";
+                String sent="ssh -n herna130@localhost nohup java -jar ./ECEFourthYear/ECE419/M3/m2-server.jar "+port+" "+cacheSize+" "+replacementPolicy+" ALL "+ zkHostName + ":" + zkPort+" /ECE419 "+name+cacheArgs+" &";
                 System.out.println(sent);
-                proc = run.exec("ssh -o StrictHostKeyChecking=no -n alybrian@localhost nohup java -jar ./ECE419/M4/m2-server.jar "+port+" "+cacheSize+" "+replacementPolicy+" ALL "+ zkHostName + ":" + zkPort+" /ECE419 "+name+" &");
+                proc = run.exec("ssh -o StrictHostKeyChecking=no -n alybrian@localhost nohup java -jar ./ECE419/M4/m2-server.jar "+port+" "+cacheSize+" "+replacementPolicy+" ALL "+ zkHostName + ":" + zkPort+" /ECE419 "+name+cacheArgs+" &");
                 //proc = run.exec("ssh -o StrictHostKeyChecking=no -n herna130@localhost nohup java -jar ./ECEFourthYear/ECE419/M3/m2-server.jar "+port+" "+cacheSize+" "+replacementPolicy+" ALL "+ zkHostName + ":" + zkPort+" /ECE419 "+name+" &");
             }
             System.out.println("testScript");
@@ -24,7 +24,16 @@ public interface KVMessage {
 		SERVER_START,
 		SERVER_SHUTDOWN,
 		SETUP_ACK,
-		SERVER_KILL
+		SERVER_KILL,
+
+		SCAN,			/* Scan - request, key is the start key, see ScanMessages */
+		SCAN_PAGE,		/* Scan - a page of key-value pairs, more follow */
+		SCAN_SUCCESS,	/* Scan - request done, all pages sent */
+		SCAN_ERROR,		/* Scan - request not successful */
+
+		SNAPSHOT_CHUNK,		/* Snapshot - server to server chunk of pairs, see SnapshotStream */
+		SNAPSHOT_SUCCESS,	/* Snapshot - chunk stored */
+		SNAPSHOT_ERROR		/* Snapshot - chunk not stored */
 
 	}
 
@@ -18,10 +18,17 @@ public class ProtoKVMessage implements KVMessage {
     public ProtoKVMessage() {}
 
     public ProtoKVMessage(String key, String value, StatusType status) {
+        this(key, value, status, 0);
+    }
+
+    // A PUT with a time to live, the key expires ttlMillis after the server
+    // stored it. 0 means it never expires.
+    public ProtoKVMessage(String key, String value, StatusType status, long ttlMillis) {
         message = ProtobufKVMessage.newBuilder()
                 .setKey(key)
                 .setValue(value)
                 .setStatusType(status.ordinal())
+                .setTtlMillis(ttlMillis)
                 .build();
     }
 
@@ -35,6 +42,10 @@ public class ProtoKVMessage implements KVMessage {
         return message.getValue();
     }
 
+    public long getTtlMillis() {
+        return message.getTtlMillis();
+    }
+
     @Override
     public StatusType getStatus() {
 
@@ -42,6 +42,11 @@ public final class ProtobufMessage {
      */
     com.google.protobuf.ByteString
         getValueBytes();
+
+    /**
+     * <code>int64 ttl_millis = 4;</code>
+     */
+    long getTtlMillis();
   }
   /**
    * Protobuf type {@code shared.messages.ProtobufKVMessage}
@@ -59,6 +64,7 @@ public final class ProtobufMessage {
       statusType_ = 0;
       key_ = "";
       value_ = "";
+      ttlMillis_ = 0L;
     }
 
     @java.lang.Override
@@ -102,6 +108,11 @@ public final class ProtobufMessage {
               value_ = s;
               break;
             }
+            case 32: {
+
+              ttlMillis_ = input.readInt64();
+              break;
+            }
             default: {
               if (!parseUnknownFieldProto3(
                   input, unknownFields, extensionRegistry, tag)) {
@@ -211,6 +222,15 @@ public final class ProtobufMessage {
       }
     }
 
+    public static final int TTL_MILLIS_FIELD_NUMBER = 4;
+    private long ttlMillis_;
+    /**
+     * <code>int64 ttl_millis = 4;</code>
+     */
+    public long getTtlMillis() {
+      return ttlMillis_;
+    }
+
     private byte memoizedIsInitialized = -1;
     @java.lang.Override
     public final boolean isInitialized() {
@@ -234,6 +254,9 @@ public final class ProtobufMessage {
       if (!getValueBytes().isEmpty()) {
         com.google.protobuf.GeneratedMessageV3.writeString(output, 3, value_);
       }
+      if (ttlMillis_ != 0L) {
+        output.writeInt64(4, ttlMillis_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -253,6 +276,10 @@ public final class ProtobufMessage {
       if (!getValueBytes().isEmpty()) {
         size += com.google.protobuf.GeneratedMessageV3.computeStringSize(3, value_);
       }
+      if (ttlMillis_ != 0L) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(4, ttlMillis_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSize = size;
       return size;
@@ -275,6 +302,8 @@ public final class ProtobufMessage {
           .equals(other.getKey());
       result = result && getValue()
           .equals(other.getValue());
+      result = result && (getTtlMillis()
+          == other.getTtlMillis());
       result = result && unknownFields.equals(other.unknownFields);
       return result;
     }
@@ -292,6 +321,9 @@ public final class ProtobufMessage {
       hash = (53 * hash) + getKey().hashCode();
       hash = (37 * hash) + VALUE_FIELD_NUMBER;
       hash = (53 * hash) + getValue().hashCode();
+      hash = (37 * hash) + TTL_MILLIS_FIELD_NUMBER;
+      hash = (53 * hash) + com.google.protobuf.Internal.hashLong(
+          getTtlMillis());
       hash = (29 * hash) + unknownFields.hashCode();
       memoizedHashCode = hash;
       return hash;
@@ -431,6 +463,8 @@ public final class ProtobufMessage {
 
         value_ = "";
 
+        ttlMillis_ = 0L;
+
         return this;
       }
 
@@ -460,6 +494,7 @@ public final class ProtobufMessage {
         result.statusType_ = statusType_;
         result.key_ = key_;
         result.value_ = value_;
+        result.ttlMillis_ = ttlMillis_;
         onBuilt();
         return result;
       }
@@ -519,6 +554,9 @@ public final class ProtobufMessage {
           value_ = other.value_;
           onChanged();
         }
+        if (other.getTtlMillis() != 0L) {
+          setTtlMillis(other.getTtlMillis());
+        }
         this.mergeUnknownFields(other.unknownFields);
         onChanged();
         return this;
@@ -711,6 +749,32 @@ public final class ProtobufMessage {
         onChanged();
         return this;
       }
+
+      private long ttlMillis_ ;
+      /**
+       * <code>int64 ttl_millis = 4;</code>
+       */
+      public long getTtlMillis() {
+        return ttlMillis_;
+      }
+      /**
+       * <code>int64 ttl_millis = 4;</code>
+       */
+      public Builder setTtlMillis(long value) {
+        
+        ttlMillis_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>int64 ttl_millis = 4;</code>
+       */
+      public Builder clearTtlMillis() {
+        
+        ttlMillis_ = 0L;
+        onChanged();
+        return this;
+      }
       @java.lang.Override
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
@@ -779,9 +843,10 @@ public final class ProtobufMessage {
   static {
     java.lang.String[] descriptorData = {
       "\n\025ProtobufMessage.proto\022\017shared.messages" +
-      "\"D\n\021ProtobufKVMessage\022\023\n\013status_type\030\001 \001" +
-      "(\005\022\013\n\003key\030\002 \001(\t\022\r\n\005value\030\003 \001(\tB\"\n\017shared" +
-      ".messagesB\017ProtobufMessageb\006proto3"
+      "\"X\n\021ProtobufKVMessage\022\023\n\013status_type\030\001 \001" +
+      "(\005\022\013\n\003key\030\002 \001(\t\022\r\n\005value\030\003 \001(\t\022\022\n\nttl_mi" +
+      "llis\030\004 \001(\003B\"\n\017shared.messagesB\017ProtobufM" +
+      "essageb\006proto3"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
         new com.google.protobuf.Descriptors.FileDescriptor.    InternalDescriptorAssigner() {
@@ -800,7 +865,7 @@ public final class ProtobufMessage {
     internal_static_shared_messages_ProtobufKVMessage_fieldAccessorTable = new
       com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
         internal_static_shared_messages_ProtobufKVMessage_descriptor,
-        new java.lang.String[] { "StatusType", "Key", "Value", });
+        new java.lang.String[] { "StatusType", "Key", "Value", "TtlMillis", });
   }
 
   // @@protoc_insertion_point(outer_class_scope)
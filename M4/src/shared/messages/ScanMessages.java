@@ -0,0 +1,64 @@
+package shared.messages;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Payloads of the SCAN messages. A SCAN request carries the start key as its
+// key and "<limit> <endKey>" as its value, the end key may be left out and a
+// limit of 0 means no limit. Keys never contain spaces. The server answers
+// with SCAN_PAGE messages whose value holds the pairs of the page as
+// netstrings, "<length>:<key>,<length>:<value>,", and ends the scan with an
+// empty SCAN_SUCCESS or a SCAN_ERROR.
+public class ScanMessages {
+
+    public static String encodeRequest(String endKey, int limit) {
+        return endKey == null ? Integer.toString(limit) : limit + " " + endKey;
+    }
+
+    public static int parseLimit(String requestValue) {
+        int space = requestValue.indexOf(' ');
+        return Integer.parseInt(space < 0 ? requestValue : requestValue.substring(0, space));
+    }
+
+    // Returns null if the request has no end key.
+    public static String parseEndKey(String requestValue) {
+        int space = requestValue.indexOf(' ');
+        return space < 0 ? null : requestValue.substring(space + 1);
+    }
+
+    public static String encodePage(List<Map.Entry<String, String>> pairs) {
+        StringBuilder page = new StringBuilder();
+        for (Map.Entry<String, String> pair : pairs) {
+            appendNetstring(page, pair.getKey());
+            appendNetstring(page, pair.getValue());
+        }
+        return page.toString();
+    }
+
+    public static List<Map.Entry<String, String>> decodePage(String page) {
+        List<Map.Entry<String, String>> pairs = new ArrayList<Map.Entry<String, String>>();
+        int[] position = {0};
+        while (position[0] < page.length()) {
+            String key = readNetstring(page, position);
+            String value = readNetstring(page, position);
+            pairs.add(new AbstractMap.SimpleImmutableEntry<String, String>(key, value));
+        }
+        return pairs;
+    }
+
+    private static void appendNetstring(StringBuilder out, String s) {
+        out.append(s.length()).append(':').append(s).append(',');
+    }
+
+    private static String readNetstring(String in, int[] position) {
+        int colon = in.indexOf(':', position[0]);
+        if (colon < 0) throw new IllegalArgumentException("Malformed scan page");
+        int length = Integer.parseInt(in.substring(position[0], colon));
+        int end = colon + 1 + length;
+        if (end >= in.length() || in.charAt(end) != ',') throw new IllegalArgumentException("Malformed scan page");
+        position[0] = end + 1;
+        return in.substring(colon + 1, end);
+    }
+}
@@ -3,26 +3,58 @@ package testing;
 import app_kvServer.IKVServer.CacheStrategy;
 import app_kvServer.CacheManager;
 import app_kvServer.CacheFactory;
+import app_kvServer.CacheWarmer;
+import app_kvServer.DataManager;
 import app_kvServer.FileManager;
+import app_kvServer.KVServer;
+import app_kvServer.NegativeCache;
+import app_kvServer.ShadowCacheMonitor;
+import app_kvServer.StorageEngine;
+import app_kvServer.StorageFactory;
+import app_kvServer.StorageSnapshot;
+import app_kvServer.SnapshotStream;
+import app_kvServer.TimingWheel;
+import app_kvServer.IKVServer.AllocationMode;
+import app_kvServer.IKVServer.DurabilityMode;
+import app_kvServer.IKVServer.StorageType;
 import cache_impl.FifoCache;
 import cache_impl.LinkedHashMapCache;
 import cache_impl.LruCache;
 import cache_impl.LfuCache;
+import cache_impl.SlabCache;
+import cache_impl.StripedCache;
+import cache_impl.ClockProCache;
+import cache_impl.TinyLfuCache;
+import storage_impl.LsmStorage;
+import storage_impl.PackedKeyIndex;
+import storage_impl.PartitionedStorage;
+import ecs.ECSHashRing;
 import ecs.ECSNode;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import junit.framework.TestCase;
 
 import shared.messages.KVMessage;
 import shared.messages.ProtoKVMessage;
+import shared.messages.ScanMessages;
 
 public class AdditionalTest extends TestCase {
 
@@ -125,6 +157,556 @@ public class AdditionalTest extends TestCase {
         assertEquals(inStorage2, false);
     }
 
+    public void testServerFileJournalRecovery() {
+        String result1 = "";
+        String result2 = "";
+        boolean inStorage = true;
+
+        try {
+            FileManager fileManager = new FileManager();
+            fileManager.putKV("jkey1", "value1");
+            fileManager.putKV("jkey2", "value2");
+            fileManager.putKV("jkey1", "value3");
+            fileManager.delete("jkey2");
+
+            // A new instance has to rebuild the index by scanning the log.
+            FileManager restarted = new FileManager();
+            result1 = restarted.getKV("jkey1");
+            inStorage = restarted.inStorage("jkey2");
+            result2 = restarted.getKV("jkey2");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        assertEquals("value3", result1);
+        assertEquals(false, inStorage);
+        assertNull(result2);
+    }
+
+    public void testServerFileRecoveryScan() throws Exception {
+        FileManager fileManager = new FileManager();
+        fileManager.clearStorage();
+        fileManager.putKV("rkey1", "value1");
+        fileManager.putKV("rkey2", "value2");
+        fileManager.close();
+        fileManager.putKV("rkey3", "value3");
+        fileManager.delete("rkey1");
+        long intactLength = fileManager.getStorageLength();
+
+        // Simulate a crash in the middle of appending a record.
+        RandomAccessFile storage = new RandomAccessFile(fileManager.getStoragePath(), "rw");
+        storage.seek(intactLength);
+        storage.write(new byte[] {0, 1, 2, 3, 0, 0, 3});
+        storage.close();
+
+        // Only the two records after the checkpoint are scanned, the torn one is cut off.
+        FileManager restarted = new FileManager();
+        assertEquals(2, restarted.getRecoveredRecords());
+        assertEquals(intactLength, restarted.getStorageLength());
+        assertFalse(restarted.inStorage("rkey1"));
+        assertEquals("value2", restarted.getKV("rkey2"));
+        assertEquals("value3", restarted.getKV("rkey3"));
+
+        restarted.putKV("rkey4", "value4");
+        assertEquals("value4", new FileManager().getKV("rkey4"));
+    }
+
+    public void testServerFileCompaction() {
+        String result1 = "";
+        String result2 = "";
+        long reclaimed = 0;
+        double garbageRatio = 1;
+
+        try {
+            FileManager fileManager = new FileManager();
+            fileManager.clearStorage();
+            fileManager.putKV("ckey1", "value1");
+            fileManager.putKV("ckey2", "value2");
+            for (int i = 0; i < 10; i++) {
+                fileManager.putKV("ckey1", "overwritten" + i);
+            }
+            fileManager.delete("ckey2");
+            fileManager.putKV("ckey3", "value3");
+            reclaimed = fileManager.compact();
+            garbageRatio = fileManager.getGarbageRatio();
+
+            FileManager restarted = new FileManager();
+            result1 = restarted.getKV("ckey1");
+            result2 = restarted.getKV("ckey3");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        assertTrue(reclaimed > 0);
+        assertEquals(0.0, garbageRatio);
+        assertEquals("overwritten9", result1);
+        assertEquals("value3", result2);
+    }
+
+    public void testServerFileConcurrentAccess() throws Exception {
+        final FileManager fileManager = new FileManager();
+        final boolean[] failed = {false};
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String prefix = "t" + t + "_";
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            fileManager.putKV(prefix + i, "value" + i);
+                            if (!("value" + i).equals(fileManager.getKV(prefix + i))) failed[0] = true;
+                        }
+                    } catch (Exception e) {
+                        failed[0] = true;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertFalse(failed[0]);
+        assertEquals("value199", fileManager.getKV("t3_199"));
+    }
+
+    public void testServerFileCompression() throws Exception {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            json.append("{\"id\": ").append(i).append(", \"name\": \"item\"},");
+        }
+        String compressible = json.toString();
+        StringBuilder random = new StringBuilder();
+        java.util.Random generator = new java.util.Random(7);
+        for (int i = 0; i < 4000; i++) {
+            random.append((char) ('!' + generator.nextInt(90)));
+        }
+        String incompressible = random.toString();
+
+        FileManager fileManager = new FileManager();
+        fileManager.clearStorage();
+        fileManager.putKV("zkey1", compressible);
+        long compressedLength = fileManager.getStorageLength();
+        fileManager.putKV("zkey2", incompressible);
+        fileManager.setCompressionThreshold(0);
+        fileManager.putKV("zkey3", compressible);
+
+        assertTrue(compressedLength < compressible.length() / 4);
+        assertEquals(compressible, fileManager.getKV("zkey1"));
+        assertEquals(incompressible, fileManager.getKV("zkey2"));
+        assertEquals(compressible, fileManager.getKV("zkey3"));
+
+        // Plain and compressed records mix in one file and survive a restart.
+        FileManager restarted = new FileManager();
+        assertEquals(compressible, restarted.getKV("zkey1"));
+        assertEquals(compressible, restarted.getKV("zkey3"));
+    }
+
+    public void testServerFileKeyFilter() throws Exception {
+        FileManager fileManager = new FileManager();
+        fileManager.clearStorage();
+        for (int i = 0; i < 1000; i++) {
+            fileManager.putKV("fkey" + i, "value" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(fileManager.mightContain("fkey" + i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertFalse(fileManager.inStorage("absent" + i));
+            assertNull(fileManager.getKV("absent" + i));
+        }
+        assertTrue(fileManager.getFilterFalsePositiveRate() < 0.05);
+    }
+
+    public void testServerFileSlotReuse() throws Exception {
+        FileManager fileManager = new FileManager("reuse_test", DurabilityMode.NONE, AllocationMode.REUSE);
+        fileManager.clearStorage();
+        for (int i = 0; i < 20; i++) {
+            fileManager.putKV("rkey" + i, "value" + (100 + i));
+        }
+        long length = fileManager.getStorageLength();
+        // Updates of the same size go into the slot the previous value freed.
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 20; i++) {
+                fileManager.putKV("rkey" + i, "round" + round + (10 + i));
+            }
+        }
+        assertTrue(fileManager.getStorageLength() <= length + 100);
+        assertTrue(fileManager.getReusedWrites() >= 90);
+        fileManager.delete("rkey3");
+        assertTrue(fileManager.getFragmentation() > 0);
+        // A smaller value takes part of a freed slot.
+        fileManager.putKV("rkey3", "v");
+        fileManager.close();
+
+        FileManager restarted = new FileManager("reuse_test", DurabilityMode.NONE, AllocationMode.REUSE);
+        assertEquals("round4" + 15, restarted.getKV("rkey5"));
+        assertEquals("v", restarted.getKV("rkey3"));
+        restarted.delete("rkey4");
+        restarted.close();
+
+        restarted = new FileManager("reuse_test", DurabilityMode.NONE, AllocationMode.REUSE);
+        assertNull(restarted.getKV("rkey4"));
+        assertEquals(19, restarted.getKeyCount());
+        restarted.compact();
+        assertEquals(0, restarted.getFreeSlotCount());
+        assertEquals("round4" + 19, restarted.getKV("rkey9"));
+        restarted.clearStorage();
+        restarted.close();
+    }
+
+    public void testLsmStorage() throws Exception {
+        // A tiny memtable makes every few writes flush a segment.
+        LsmStorage storage = new LsmStorage("/tmp/ECEdataSS/lsm_test/", DurabilityMode.NONE, 1024);
+        storage.clearStorage();
+        for (int i = 0; i < 300; i++) {
+            storage.putKV("lkey" + (i % 100), "value" + i);
+        }
+        for (int i = 0; i < 100; i += 3) {
+            storage.delete("lkey" + i);
+        }
+        assertTrue(storage.getSegmentCount() > 0);
+        assertEquals("value250", storage.getKV("lkey50"));
+        assertNull(storage.getKV("lkey51"));
+        assertFalse(storage.inStorage("lkey99"));
+
+        int keys = 0;
+        for (String key : storage.getKeys()) {
+            assertTrue(storage.inStorage(key));
+            keys++;
+        }
+        assertEquals(66, keys);
+        storage.close();
+
+        // The memtable is replayed from its write-ahead log.
+        LsmStorage restarted = new LsmStorage("/tmp/ECEdataSS/lsm_test/", DurabilityMode.NONE, 1024);
+        assertEquals("value298", restarted.getKV("lkey98"));
+        assertNull(restarted.getKV("lkey0"));
+        restarted.close();
+    }
+
+    public void testStorageDataDirs() throws Exception {
+        List<String> dirs = Arrays.asList("/tmp/ECEdataSS/dirs_test_a", "/tmp/ECEdataSS/dirs_test_b/");
+        StorageEngine partitioned = StorageFactory.GetStorage(StorageType.PARTITIONED, "dirs_test",
+                DurabilityMode.NONE, dirs);
+        partitioned.clearStorage();
+        partitioned.putKV("dkey", "value");
+        partitioned.close();
+        // Buckets alternate between the directories.
+        assertTrue(new File("/tmp/ECEdataSS/dirs_test_a/storage_dirs_test_b0.txt").exists());
+        assertTrue(new File("/tmp/ECEdataSS/dirs_test_b/storage_dirs_test_b1.txt").exists());
+
+        LsmStorage lsm = new LsmStorage(dirs, DurabilityMode.NONE, 1024);
+        lsm.clearStorage();
+        for (int i = 0; i < 200; i++) {
+            lsm.putKV("dkey" + i, "value" + i);
+        }
+        lsm.close();
+        // Files are found in any of the directories.
+        List<String> reversed = Arrays.asList(dirs.get(1), dirs.get(0));
+        LsmStorage restarted = new LsmStorage(reversed, DurabilityMode.NONE, 1024);
+        assertEquals("value7", restarted.getKV("dkey7"));
+        assertEquals("value199", restarted.getKV("dkey199"));
+        restarted.clearStorage();
+        restarted.close();
+    }
+
+    public void testStorageSnapshot() throws Exception {
+        List<FileManager> buckets = new ArrayList<FileManager>();
+        for (int i = 0; i < 4; i++) {
+            buckets.add(new FileManager("snap_test_b" + i));
+        }
+        StorageEngine[] engines = {
+                new FileManager("snap_test", DurabilityMode.NONE, AllocationMode.APPEND),
+                new FileManager("snap_test_reuse", DurabilityMode.NONE, AllocationMode.REUSE),
+                new LsmStorage("/tmp/ECEdataSS/lsm_snap_test/", DurabilityMode.NONE, 1024),
+                new PartitionedStorage(buckets, DurabilityMode.NONE)};
+        for (StorageEngine storage : engines) {
+            storage.clearStorage();
+            for (int i = 0; i < 100; i++) {
+                storage.putKV("skey" + i, "value" + i);
+            }
+            StorageSnapshot snapshot = storage.snapshot();
+            // Writes after the snapshot do not show up in it.
+            for (int i = 0; i < 100; i++) {
+                storage.putKV("skey" + i, "changed" + i);
+            }
+            storage.delete("skey5");
+            storage.putKV("skey100", "value100");
+            if (storage instanceof FileManager) ((FileManager) storage).compact();
+
+            File file = new File("/tmp/ECEdataSS/snap_test.snapshot");
+            assertEquals(100, SnapshotStream.writeFile(snapshot, file));
+            snapshot.close();
+            Map<String, String> restored = new java.util.HashMap<String, String>();
+            SnapshotStream.Reader reader = new SnapshotStream.Reader(file);
+            List<Map.Entry<String, String>> chunk;
+            while ((chunk = reader.nextChunk()) != null) {
+                for (Map.Entry<String, String> pair : chunk) {
+                    restored.put(pair.getKey(), pair.getValue());
+                }
+            }
+            reader.close();
+            assertEquals(100, restored.size());
+            assertEquals("value5", restored.get("skey5"));
+            assertEquals("value99", restored.get("skey99"));
+            assertEquals("changed7", storage.getKV("skey7"));
+            storage.close();
+        }
+    }
+
+    public void testSnapshotChunkKeepsExpiry() throws Exception {
+        long expiresAt = System.currentTimeMillis() + 60000;
+        List<Map.Entry<String, String>> pairs = new ArrayList<Map.Entry<String, String>>();
+        pairs.add(new SnapshotStream.ExpiringPair("ekey", "evalue", expiresAt));
+        pairs.add(new java.util.AbstractMap.SimpleImmutableEntry<String, String>("pkey", "pvalue"));
+        List<Map.Entry<String, String>> decoded =
+                SnapshotStream.decodeChunk(SnapshotStream.encodeChunk(pairs.iterator()));
+        assertEquals(2, decoded.size());
+        assertEquals("evalue", decoded.get(0).getValue());
+        assertEquals(expiresAt, SnapshotStream.expiresAt(decoded.get(0)));
+        assertEquals(0, SnapshotStream.expiresAt(decoded.get(1)));
+    }
+
+    public void testKeyExpiry() throws Exception {
+        final List<String> fired = new ArrayList<String>();
+        TimingWheel wheel = new TimingWheel(10, new TimingWheel.ExpiryListener() {
+            public void expired(String key, long expiresAt) {
+                fired.add(key);
+            }
+        });
+        long start = System.currentTimeMillis();
+        wheel.schedule("soon", start + 50);
+        wheel.schedule("later", start + 100000);
+        wheel.schedule("cancelled", start + 200);
+        wheel.schedule("far", start + 10L * 365 * 24 * 3600 * 1000);
+        wheel.cancel("cancelled");
+        assertEquals(3, wheel.size());
+        assertTrue(wheel.isExpired("soon", start + 50));
+        wheel.advanceTo(start + 40);
+        assertTrue(fired.isEmpty());
+        wheel.advanceTo(start + 1000);
+        assertEquals(Arrays.asList("soon"), fired);
+        // Cascades down from a higher level, neither early nor much late.
+        wheel.advanceTo(start + 99980);
+        assertEquals(1, fired.size());
+        wheel.advanceTo(start + 100020);
+        assertEquals(Arrays.asList("soon", "later"), fired);
+        assertEquals(1, wheel.size());
+        assertEquals(0, wheel.getExpiry("later"));
+
+        StorageEngine[] engines = {
+                new FileManager("ttl_test", DurabilityMode.NONE, AllocationMode.APPEND),
+                new LsmStorage("/tmp/ECEdataSS/lsm_ttl_test/", DurabilityMode.NONE, 1024)};
+        for (StorageEngine storage : engines) {
+            storage.clearStorage();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 100; i++) {
+                // Every other key has already expired, the rest expire in an hour.
+                storage.putKV("tkey" + i, "value" + i, i % 2 == 0 ? now - 1 : now + 3600000);
+            }
+            storage.putKV("tkey100", "value100");
+            assertNull(storage.getKV("tkey4"));
+            assertEquals("value5", storage.getKV("tkey5"));
+            assertFalse(storage.inStorage("tkey4"));
+            assertTrue(storage.inStorage("tkey5"));
+            Map<String, Long> expiries = storage.getExpiries();
+            assertEquals(Long.valueOf(now + 3600000), expiries.get("tkey5"));
+            assertFalse(expiries.containsKey("tkey100"));
+            int scanned = 0;
+            for (Iterator<Map.Entry<String, String>> it = storage.scan(null, null, null); it.hasNext(); it.next()) {
+                scanned++;
+            }
+            assertEquals(51, scanned);
+            if (storage instanceof FileManager) {
+                ((FileManager) storage).compact();
+                int keys = 0;
+                for (String key : storage.getKeys()) {
+                    keys++;
+                }
+                assertEquals(51, keys);
+            }
+            storage.close();
+        }
+        FileManager restarted = new FileManager("ttl_test", DurabilityMode.NONE, AllocationMode.APPEND);
+        assertNull(restarted.getKV("tkey0"));
+        assertFalse(restarted.inStorage("tkey0"));
+        assertEquals("value99", restarted.getKV("tkey99"));
+        assertEquals(50, restarted.getExpiries().size());
+        restarted.clearStorage();
+        restarted.close();
+        LsmStorage lsmRestarted = new LsmStorage("/tmp/ECEdataSS/lsm_ttl_test/", DurabilityMode.NONE, 1024);
+        assertNull(lsmRestarted.getKV("tkey98"));
+        assertEquals("value97", lsmRestarted.getKV("tkey97"));
+        assertEquals(50, lsmRestarted.getExpiries().size());
+        lsmRestarted.clearStorage();
+        lsmRestarted.close();
+
+        // A restarted server schedules the stored expiries again, so a cached
+        // key stops being served once it expires and the others keep their
+        // time to live.
+        DataManager dataManager = new DataManager(100, CacheStrategy.LRU, "ttl_dm_test", "localhost:50098",
+                DurabilityMode.NONE, StorageType.LOG, Arrays.asList("/tmp/ECEdataSS/"));
+        dataManager.clearStorage();
+        dataManager.putKV("soon", "value", 300);
+        dataManager.putKV("later", "value", 3600000);
+        dataManager.close();
+        dataManager = new DataManager(100, CacheStrategy.LRU, "ttl_dm_test", "localhost:50098",
+                DurabilityMode.NONE, StorageType.LOG, Arrays.asList("/tmp/ECEdataSS/"));
+        assertTrue(dataManager.remainingTtl("later") > 3500000);
+        assertEquals("value", dataManager.getKV("soon"));
+        assertTrue(dataManager.inCache("soon"));
+        Thread.sleep(500);
+        assertNull(dataManager.getKV("soon"));
+        dataManager.clearStorage();
+        dataManager.close();
+
+        ProtoKVMessage message = new ProtoKVMessage("key", "value", KVMessage.StatusType.PUT, 5000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeMessage(out);
+        ProtoKVMessage parsed = new ProtoKVMessage();
+        parsed.parseMessage(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(5000, parsed.getTtlMillis());
+    }
+
+    public void testPartitionedStorage() throws Exception {
+        List<FileManager> buckets = new ArrayList<FileManager>();
+        for (int i = 0; i < 8; i++) {
+            buckets.add(new FileManager("part_test_b" + i));
+        }
+        PartitionedStorage storage = new PartitionedStorage(buckets, DurabilityMode.NONE);
+        storage.clearStorage();
+        for (int i = 0; i < 200; i++) {
+            storage.putKV("pkey" + i, "value" + i);
+        }
+        storage.delete("pkey0");
+        assertEquals("value7", storage.getKV("pkey7"));
+        assertNull(storage.getKV("pkey0"));
+
+        // Every key sits in the bucket whose hash range holds its ring position.
+        int keys = 0;
+        for (int bucket = 0; bucket < storage.getBucketCount(); bucket++) {
+            for (String key : storage.getKeys(bucket)) {
+                BigInteger hash = new BigInteger(ECSHashRing.getHash(key), 16);
+                assertTrue(hash.compareTo(storage.getBucketStart(bucket)) >= 0);
+                assertTrue(hash.compareTo(storage.getBucketEnd(bucket)) <= 0);
+                keys++;
+            }
+        }
+        assertEquals(199, keys);
+
+        int bucket = storage.bucketOf("pkey7");
+        storage.dropBucket(bucket);
+        assertNull(storage.getKV("pkey7"));
+        assertFalse(storage.getKeys(bucket).iterator().hasNext());
+        for (String key : storage.getKeys()) {
+            assertTrue(storage.bucketOf(key) != bucket);
+        }
+        storage.close();
+    }
+
+    public void testStorageScan() throws Exception {
+        List<FileManager> buckets = new ArrayList<FileManager>();
+        for (int i = 0; i < 4; i++) {
+            buckets.add(new FileManager("scan_test_b" + i));
+        }
+        StorageEngine[] engines = {
+                new FileManager("scan_test"),
+                new LsmStorage("/tmp/ECEdataSS/lsm_scan_test/", DurabilityMode.NONE, 1024),
+                new PartitionedStorage(buckets, DurabilityMode.NONE)};
+        for (StorageEngine storage : engines) {
+            storage.clearStorage();
+            for (int i = 99; i >= 0; i--) {
+                storage.putKV(String.format("skey%03d", i), "value" + i);
+            }
+            storage.delete("skey011");
+            storage.putKV("skey012", "updated");
+
+            List<String> keys = new ArrayList<String>();
+            Iterator<Map.Entry<String, String>> pairs = storage.scan("skey010", "skey015", null);
+            while (pairs.hasNext()) {
+                Map.Entry<String, String> pair = pairs.next();
+                if (pair.getKey().equals("skey012")) assertEquals("updated", pair.getValue());
+                keys.add(pair.getKey());
+            }
+            assertEquals(Arrays.asList("skey010", "skey012", "skey013", "skey014"), keys);
+
+            int count = 0;
+            String previous = "";
+            pairs = storage.scan(null, null, null);
+            while (pairs.hasNext()) {
+                String key = pairs.next().getKey();
+                assertTrue(key.compareTo(previous) > 0);
+                previous = key;
+                count++;
+            }
+            assertEquals(99, count);
+
+            // The filter picks the keys before their values are read.
+            keys.clear();
+            pairs = storage.scan("skey020", "skey030", new StorageEngine.KeyFilter() {
+                public boolean accept(String key) {
+                    return key.endsWith("5");
+                }
+            });
+            while (pairs.hasNext()) {
+                keys.add(pairs.next().getKey());
+            }
+            assertEquals(Arrays.asList("skey025"), keys);
+            storage.close();
+        }
+    }
+
+    public void testScanMessages() {
+        List<Map.Entry<String, String>> page = new ArrayList<Map.Entry<String, String>>();
+        page.add(new AbstractMap.SimpleImmutableEntry<String, String>("a", "1:2,3"));
+        page.add(new AbstractMap.SimpleImmutableEntry<String, String>("b", ""));
+        assertEquals(page, ScanMessages.decodePage(ScanMessages.encodePage(page)));
+
+        String request = ScanMessages.encodeRequest("zz", 10);
+        assertEquals(10, ScanMessages.parseLimit(request));
+        assertEquals("zz", ScanMessages.parseEndKey(request));
+        assertNull(ScanMessages.parseEndKey(ScanMessages.encodeRequest(null, 0)));
+    }
+
+    public void testHashRingRangeOwner() {
+        ECSHashRing ring = new ECSHashRing();
+        ring.add("127.0.0.1:50000");
+        ring.add("127.0.0.1:50001");
+        BigInteger node = new BigInteger(ECSHashRing.getHash("127.0.0.1:50000"), 16);
+        // A range ending at a node position belongs to that node, one crossing it is split.
+        assertEquals("127.0.0.1:50000", ring.getRangeOwner(node.subtract(BigInteger.TEN), node));
+        assertNull(ring.getRangeOwner(node.subtract(BigInteger.TEN), node.add(BigInteger.ONE)));
+    }
+
+    public void testPackedKeyIndex() {
+        PackedKeyIndex index = new PackedKeyIndex();
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(PackedKeyIndex.NOT_FOUND, index.put("key" + i, i));
+        }
+        assertEquals(7L, index.put("key7", 70));
+        for (int i = 0; i < 5000; i += 2) {
+            index.remove("key" + i);
+        }
+        // Overwrite the tombstones until the table rehashes in place.
+        for (int i = 0; i < 5000; i += 2) {
+            index.put("new" + i, i);
+        }
+
+        assertEquals(5000, index.size());
+        assertEquals(PackedKeyIndex.NOT_FOUND, index.get("key4"));
+        assertEquals(70L, index.get("key7"));
+        assertEquals(4998L, index.get("new4998"));
+
+        int keys = 0;
+        for (String key : index.copy()) {
+            assertTrue(index.containsKey(key));
+            keys++;
+        }
+        assertEquals(5000, keys);
+    }
+
     // Test Cache Manager implementation.
     public void testServerCachePutAndGet() {
         try {
@@ -222,6 +804,483 @@ public class AdditionalTest extends TestCase {
         assertTrue(expected2.containsAll(keys2));
     }
 
+    public void testByteBudgetCache() throws Exception {
+        String small = new String(new char[100]).replace('\0', 's');
+        String large = new String(new char[5000]).replace('\0', 'l');
+        for (CacheStrategy strategy : new CacheStrategy[]{CacheStrategy.FIFO, CacheStrategy.LRU, CacheStrategy.LFU, CacheStrategy.TinyLFU,
+                CacheStrategy.ARC, CacheStrategy.ClockPro}) {
+            CacheManager cache = CacheFactory.GetCache(1000, strategy, 20000, 4096);
+            assertTrue(cache.isWeighted());
+            for (int i = 0; i < 500; i++) {
+                cache.putKV("bkey" + i, i % 10 == 0 ? small + small + small : small);
+                assertTrue(cache.getUsedBytes() <= 20000);
+            }
+            // About 20000 / (96 + 2 * 105) pairs fit, far fewer than 1000 entries.
+            int cached = 0;
+            for (int i = 0; i < 500; i++) {
+                if (cache.inCache("bkey" + i)) cached++;
+            }
+            assertTrue(cached > 40 && cached <= 66);
+
+            // A pair above the entry limit is not cached and drops the old value.
+            cache.putKV("bkey499", small);
+            cache.putKV("bkey499", large);
+            assertFalse(cache.inCache("bkey499"));
+            assertTrue(cache.getUsedBytes() <= 20000);
+            for (int i = 0; i < 500; i++) {
+                cache.delete("bkey" + i);
+            }
+            assertEquals(0, cache.getUsedBytes());
+        }
+
+        CacheManager striped = CacheFactory.GetCache(1000, CacheStrategy.LRU, 1 << 20, 1024);
+        assertTrue(striped instanceof StripedCache);
+        assertEquals(16, ((StripedCache) striped).getSegmentCount());
+        for (int i = 0; i < 10000; i++) {
+            striped.putKV("bkey" + i, small);
+        }
+        assertTrue(striped.getUsedBytes() <= 1 << 20);
+        assertTrue(striped.getUsedBytes() > (1 << 20) - 16 * 1024);
+        striped.clearCache();
+        assertEquals(0, striped.getUsedBytes());
+        assertEquals(64L << 20, KVServer.parseBytes("64m"));
+        assertEquals(1 << 30, KVServer.parseIntBytes("1g"));
+        try {
+            KVServer.parseIntBytes("2g");
+            fail("2g does not fit into an int");
+        } catch (NumberFormatException e) {
+        }
+    }
+
+    public void testLfuCacheAgingAndDelete() throws Exception {
+        LfuCache cache = new LfuCache(2, CacheStrategy.LFU);
+        cache.putKV("old", "value");
+        for (int i = 0; i < 15; i++) {
+            cache.getKV("old");
+        }
+        assertEquals(16, cache.mapValues.get("old").getCount());
+        // Keys used a few times each eventually replace a key that was hot
+        // long ago, its count halves while they come and go.
+        for (int i = 0; i < 100; i++) {
+            cache.putKV("new" + i, "value");
+            cache.getKV("new" + i);
+            cache.getKV("new" + i);
+        }
+        assertFalse(cache.inCache("old"));
+        assertTrue(cache.inCache("new99"));
+
+        // Evictions pick the least frequent key left after deletes.
+        cache = new LfuCache(3, CacheStrategy.LFU);
+        cache.putKV("a", "value");
+        cache.putKV("b", "value");
+        cache.putKV("c", "value");
+        cache.getKV("b");
+        cache.getKV("b");
+        cache.getKV("c");
+        cache.delete("a");
+        cache.delete("missing");
+        cache.putKV("d", "value");
+        cache.putKV("e", "value");
+        assertEquals(new HashSet<String>(Arrays.asList("b", "c", "e")), cache.mapValues.keySet());
+        assertEquals(3, cache.mapValues.get("b").getCount());
+        cache.clearCache();
+        cache.putKV("f", "value");
+        assertEquals("value", cache.getKV("f"));
+    }
+
+    public void testTinyLfuCache() throws Exception {
+        CacheManager cacheManager = CacheFactory.GetCache(20, CacheStrategy.TinyLFU);
+        TinyLfuCache cache = (TinyLfuCache) cacheManager;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 15; i++) {
+                if (cache.getKV("hot" + i) == null) cache.putKV("hot" + i, "value" + i);
+            }
+        }
+        // A scan of keys seen once does not push out the keys hit again and
+        // again. Only the last hot key, still in the window when the scan
+        // started, may have been dropped.
+        for (int i = 0; i < 1000; i++) {
+            if (cache.getKV("scan" + i) == null) cache.putKV("scan" + i, "value" + i);
+        }
+        for (int i = 0; i < 14; i++) {
+            assertEquals("value" + i, cache.getKV("hot" + i));
+        }
+        int[] sizes = cache.getSegmentSizes();
+        assertEquals(20, sizes[0] + sizes[1] + sizes[2]);
+        assertEquals(1, sizes[0]);
+        cache.putKV("hot0", "changed");
+        assertEquals("changed", cache.getKV("hot0"));
+        cache.delete("hot0");
+        assertFalse(cache.inCache("hot0"));
+        cache.clearCache();
+        assertFalse(cache.inCache("hot1"));
+
+        // A newcomer displacing two entries that loses against the second
+        // leaves the first in the cache as well.
+        TinyLfuCache weighted = new TinyLfuCache(100, CacheStrategy.TinyLFU, 10000, 0);
+        char[] chars = new char[450];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+        for (int i = 0; i < 5; i++) {
+            weighted.getKV("a1");
+        }
+        for (int i = 0; i < 9; i++) {
+            weighted.putKV("a" + i, value);
+        }
+        weighted.getKV("big");
+        weighted.getKV("big");
+        weighted.putKV("big", value + value);
+        assertFalse(weighted.inCache("big"));
+        assertTrue(weighted.inCache("a0"));
+        assertTrue(weighted.inCache("a1"));
+    }
+
+    public void testArcAndClockProCache() throws Exception {
+        for (CacheStrategy strategy : new CacheStrategy[]{CacheStrategy.LRU, CacheStrategy.ARC, CacheStrategy.ClockPro}) {
+            CacheManager cache = CacheFactory.GetCache(20, strategy);
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 10; i++) {
+                    if (cache.getKV("hot" + i) == null) cache.putKV("hot" + i, "value" + i);
+                }
+            }
+            // A scan of keys seen once passes while the hot keys are still
+            // hit, each after about 40 other keys, more than fit into LRU.
+            int hits = 0;
+            for (int i = 0; i < 3000; i++) {
+                if (cache.getKV("scan" + i) == null) cache.putKV("scan" + i, "value" + i);
+                if (i % 3 == 0) {
+                    String hot = "hot" + (i / 3 % 10);
+                    if (cache.getKV(hot) != null) {
+                        hits++;
+                    } else {
+                        cache.putKV(hot, "value");
+                    }
+                }
+            }
+            int cached = 0;
+            for (int i = 0; i < 3000; i++) {
+                if (cache.inCache("scan" + i)) cached++;
+            }
+            for (int i = 0; i < 10; i++) {
+                if (cache.inCache("hot" + i)) cached++;
+            }
+            assertTrue(cached <= 20);
+            if (strategy == CacheStrategy.LRU) {
+                assertTrue(hits < 100);
+                continue;
+            }
+            assertTrue(strategy + " hit " + hits + " of 1000", hits > 900);
+
+            cache.putKV("hot0", "changed");
+            assertEquals("changed", cache.getKV("hot0"));
+            cache.delete("hot0");
+            assertNull(cache.getKV("hot0"));
+            cache.clearCache();
+            assertFalse(cache.inCache("hot1"));
+            cache.putKV("after", "value");
+            assertEquals("value", cache.getKV("after"));
+        }
+
+        // Entries taking the whole capacity, or more than half of a budget,
+        // are admitted without the hands running in circles.
+        CacheManager single = new ClockProCache(1, CacheStrategy.ClockPro);
+        for (String key : new String[]{"a", "b", "a", "b", "a"}) {
+            single.putKV(key, "value");
+            assertEquals("value", single.getKV(key));
+        }
+        CacheManager budgeted = CacheFactory.GetCache(1000, CacheStrategy.ClockPro, 1 << 20, 0);
+        String large = new String(new char[300000]).replace('\0', 'l');
+        for (String key : new String[]{"a", "b", "a", "b", "c"}) {
+            budgeted.putKV(key, large);
+            assertEquals(large, budgeted.getKV(key));
+            assertTrue(budgeted.getUsedBytes() <= 1 << 20);
+        }
+    }
+
+    public void testSlabCache() throws Exception {
+        SlabCache cache = new SlabCache(10, CacheStrategy.Slab);
+        String large = new String(new char[120000]).replace('\0', 'l');
+        cache.putKV("skey", "v\u00e4lue \u20ac");
+        cache.putKV("large", large);
+        assertEquals("v\u00e4lue \u20ac", cache.getKV("skey"));
+        assertEquals(large, cache.getKV("large"));
+        for (int i = 0; i < 20; i++) {
+            cache.putKV("skey" + i, "value" + i);
+        }
+        // The small values evict each other, least recently used first.
+        assertTrue(cache.inCache("large"));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i >= 11, cache.inCache("skey" + i));
+        }
+
+        // With a budget the pages stay within it, large values take the
+        // pages first and give them up to small ones later.
+        SlabCache budgeted = new SlabCache(1000, CacheStrategy.Slab, 4 << 20, 0);
+        assertEquals(256 << 10, budgeted.getPageSize());
+        String medium = new String(new char[100000]).replace('\0', 'm');
+        for (int i = 0; i < 100; i++) {
+            budgeted.putKV("mkey" + i, medium);
+            assertTrue(budgeted.getOffHeapBytes() <= 4 << 20);
+        }
+        assertEquals(medium, budgeted.getKV("mkey99"));
+        assertFalse(budgeted.inCache("mkey0"));
+        for (int i = 0; i < 1000; i++) {
+            budgeted.putKV("skey" + i, "value" + i);
+        }
+        assertEquals("value999", budgeted.getKV("skey999"));
+        assertTrue(budgeted.getUsedBytes() <= 4 << 20);
+        assertEquals(4 << 20, budgeted.getOffHeapBytes());
+
+        // Values above the page size are not cached and drop the old value.
+        budgeted.putKV("skey999", new String(new char[300000]).replace('\0', 'x'));
+        assertFalse(budgeted.inCache("skey999"));
+        for (int i = 0; i < 1000; i++) {
+            budgeted.delete("skey" + i);
+            budgeted.delete("mkey" + (i % 100));
+        }
+        assertEquals(0, budgeted.getUsedBytes());
+        budgeted.clearCache();
+        assertEquals(0, budgeted.getOffHeapBytes());
+
+        CacheManager striped = CacheFactory.GetCache(1000, CacheStrategy.Slab, 64 << 20, 1 << 20);
+        assertTrue(striped instanceof StripedCache);
+        striped.putKV("skey", large);
+        assertEquals(large, striped.getKV("skey"));
+        assertTrue(striped.getUsedBytes() >= 120000);
+    }
+
+    public void testNegativeCache() throws Exception {
+        NegativeCache cache = new NegativeCache(100);
+        cache.add("absent", cache.stamp("absent"));
+        assertTrue(cache.contains("absent"));
+        assertEquals(1, cache.getHits());
+        cache.invalidate("absent");
+        assertFalse(cache.contains("absent"));
+
+        // A miss that raced with a write to the key is not remembered.
+        long stamp = cache.stamp("polled");
+        cache.invalidate("polled");
+        cache.add("polled", stamp);
+        assertFalse(cache.contains("polled"));
+
+        for (int i = 0; i < 150; i++) {
+            cache.add("nkey" + i, cache.stamp("nkey" + i));
+        }
+        assertEquals(100, cache.size());
+        assertFalse(cache.contains("nkey0"));
+        assertTrue(cache.contains("nkey149"));
+        stamp = cache.stamp("nkey0");
+        cache.clear();
+        assertEquals(0, cache.size());
+        cache.add("nkey0", stamp);
+        assertFalse(cache.contains("nkey0"));
+    }
+
+    public void testHotKeysAndCacheWarmer() throws Exception {
+        for (CacheStrategy strategy : new CacheStrategy[]{CacheStrategy.FIFO, CacheStrategy.LRU, CacheStrategy.LFU, CacheStrategy.TinyLFU,
+                CacheStrategy.ARC, CacheStrategy.ClockPro, CacheStrategy.Slab}) {
+            for (CacheManager cache : new CacheManager[]{CacheFactory.GetSegment(100, strategy), CacheFactory.GetCache(1000, strategy)}) {
+                for (int i = 0; i < 200; i++) {
+                    cache.putKV("hkey" + i, "value" + i);
+                }
+                List<String> hot = cache.getHotKeys(50);
+                assertEquals(50, hot.size());
+                assertEquals(50, new HashSet<String>(hot).size());
+                for (String key : hot) {
+                    assertTrue(cache.inCache(key));
+                }
+            }
+        }
+        CacheManager lru = CacheFactory.GetSegment(10, CacheStrategy.LRU);
+        CacheManager lfu = CacheFactory.GetSegment(10, CacheStrategy.LFU);
+        for (CacheManager cache : new CacheManager[]{lru, lfu}) {
+            cache.putKV("a", "1");
+            cache.putKV("b", "2");
+            cache.putKV("c", "3");
+            cache.getKV("a");
+            cache.getKV("a");
+            cache.getKV("b");
+        }
+        assertEquals(Arrays.asList("b", "a", "c"), lru.getHotKeys(10));
+        assertEquals(Arrays.asList("a", "b", "c"), lfu.getHotKeys(10));
+        assertEquals(Arrays.asList("a", "b"), lfu.getHotKeys(2));
+
+        // The manifest outlives the cache, a new one is warmed from it.
+        new File("/tmp/ECEdataSS").mkdirs();
+        File manifest = new File("/tmp/ECEdataSS/warm_test.hotkeys");
+        manifest.delete();
+        final Map<String, String> stored = new HashMap<String, String>();
+        CacheManager before = CacheFactory.GetCache(1000, CacheStrategy.LRU);
+        for (int i = 0; i < 100; i++) {
+            stored.put("wkey" + i, "value" + i);
+            before.putKV("wkey" + i, "value" + i);
+        }
+        assertEquals(100, new CacheWarmer(before, null, manifest, 1000).persist());
+        assertEquals(before.getHotKeys(1000), CacheWarmer.readManifest(manifest));
+        before.clearCache();
+        assertEquals(0, new CacheWarmer(before, null, manifest, 1000).persist());
+        assertEquals(100, CacheWarmer.readManifest(manifest).size());
+
+        final CacheManager after = CacheFactory.GetCache(1000, CacheStrategy.LRU);
+        CacheWarmer.KeyLoader loader = new CacheWarmer.KeyLoader() {
+            public boolean load(String key) throws Exception {
+                if (after.inCache(key) || !stored.containsKey(key)) return false;
+                after.putKV(key, stored.get(key));
+                return true;
+            }
+        };
+        after.putKV("wkey0", "value0");
+        long start = System.currentTimeMillis();
+        CacheWarmer warmer = new CacheWarmer(after, loader, manifest, 1000, 60000, 500);
+        assertEquals(99, warmer.prefetch());
+        // 100 keys at 500 a second.
+        assertTrue(System.currentTimeMillis() - start >= 190);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, after.getKV("wkey" + i));
+        }
+
+        after.clearCache();
+        warmer = new CacheWarmer(after, loader, manifest, 1000, 60000, 50);
+        warmer.start();
+        Thread.sleep(300);
+        warmer.cancelPrefetch();
+        Thread.sleep(100);
+        int prefetched = warmer.getPrefetched();
+        assertTrue(prefetched > 0 && prefetched < 30);
+        Thread.sleep(200);
+        assertEquals(prefetched, warmer.getPrefetched());
+        warmer.stop();
+        manifest.delete();
+    }
+
+    public void testShadowCacheSwitching() throws Exception {
+        // Hot keys come back after more than 500 other keys, too late for
+        // LRU, while scan keys are never seen again. TinyLFU and CLOCK-Pro
+        // keep the hot keys.
+        ShadowCacheMonitor monitor = new ShadowCacheMonitor(500, CacheStrategy.LRU, 1, 60000, 1000);
+        CacheManager live = CacheFactory.GetSegment(500, CacheStrategy.LRU);
+        final List<CacheStrategy> switches = new ArrayList<CacheStrategy>();
+        monitor.setSwitcher(new ShadowCacheMonitor.StrategySwitcher() {
+            public void switchTo(CacheStrategy strategy) {
+                switches.add(strategy);
+            }
+        });
+        int scan = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 300; i++) {
+                for (String key : new String[]{"hot" + i, "scan" + scan++, "scan" + scan++}) {
+                    boolean hit = live.getKV(key) != null;
+                    monitor.recordGet(key, hit);
+                    if (!hit) live.putKV(key, "value");
+                }
+            }
+        }
+        // A single thread replays the full buffer itself, no sample is lost.
+        assertEquals(18000, monitor.getSampledGets());
+        assertEquals(0, monitor.getDroppedSamples());
+        Map<CacheStrategy, Double> ratios = monitor.getHitRatios();
+        assertFalse(ratios.containsKey(CacheStrategy.Slab));
+        assertEquals(monitor.getLiveHitRatio(), ratios.get(CacheStrategy.LRU), 0.001);
+        assertTrue(ratios.get(CacheStrategy.TinyLFU) > ratios.get(CacheStrategy.LRU) + 0.1);
+        CacheStrategy best = monitor.report();
+        assertNotNull(best);
+        assertEquals(Arrays.asList(best), switches);
+        assertEquals(best, monitor.getLiveStrategy());
+        assertEquals(ratios.get(best), Collections.max(ratios.values()));
+        // The counts start over after a report.
+        assertEquals(0, monitor.getSampledGets());
+        assertNull(monitor.report());
+
+        // The ghosts of a tiny cache still hold MIN_GHOST_SIZE entries.
+        ShadowCacheMonitor tiny = new ShadowCacheMonitor(1, CacheStrategy.LRU);
+        for (int i = 0; i < 100; i++) {
+            tiny.recordPut("tkey" + i % 5);
+            tiny.recordGet("tkey" + i % 7, false);
+        }
+        tiny.drain();
+        assertEquals(CacheStrategy.values().length - 2, tiny.getHitRatios().size());
+
+        // The live cache is replaced with its contents.
+        DataManager dataManager = new DataManager(100, CacheStrategy.LRU, "switch_test", "localhost:50099",
+                DurabilityMode.NONE, StorageType.LOG, Arrays.asList("/tmp/ECEdataSS/"));
+        dataManager.clearStorage();
+        for (int i = 0; i < 50; i++) {
+            dataManager.putKV("skey" + i, "value" + i);
+        }
+        dataManager.switchCacheStrategy(CacheStrategy.ARC);
+        assertEquals(CacheStrategy.ARC, dataManager.getCacheStrategy());
+        for (int i = 0; i < 50; i++) {
+            assertTrue(dataManager.inCache("skey" + i));
+        }
+        dataManager.putKV("skey0", "updated");
+        assertEquals("updated", dataManager.getKV("skey0"));
+        // The shadow monitor only runs while reports or switches are wanted.
+        assertTrue(dataManager.getShadowHitRatios().isEmpty());
+        dataManager.setShadowReports(true);
+        assertEquals("updated", dataManager.getKV("skey0"));
+        assertFalse(dataManager.getShadowHitRatios().isEmpty());
+        dataManager.setShadowReports(false);
+        assertTrue(dataManager.getShadowHitRatios().isEmpty());
+        dataManager.clearStorage();
+        dataManager.close();
+    }
+
+    public void testStripedCache() throws Exception {
+        for (CacheStrategy strategy : new CacheStrategy[]{CacheStrategy.FIFO, CacheStrategy.LRU, CacheStrategy.LFU, CacheStrategy.TinyLFU,
+                CacheStrategy.ARC, CacheStrategy.ClockPro, CacheStrategy.Slab}) {
+            CacheManager cacheManager = CacheFactory.GetCache(1000, strategy);
+            assertTrue(cacheManager instanceof StripedCache);
+            final StripedCache cache = (StripedCache) cacheManager;
+            assertEquals(16, cache.getSegmentCount());
+            assertEquals(strategy, cache.getCacheStrategy());
+            for (int i = 0; i < 5000; i++) {
+                cache.putKV("ckey" + i, "value" + i);
+            }
+            int cached = 0;
+            for (int i = 0; i < 5000; i++) {
+                if (cache.inCache("ckey" + i)) cached++;
+            }
+            // Every segment is full, none holds more than its share.
+            assertEquals(1000, cached);
+            assertEquals("value4999", cache.getKV("ckey4999"));
+            cache.delete("ckey4999");
+            assertNull(cache.getKV("ckey4999"));
+
+            // Hits from many threads at once.
+            final List<String> cachedKeys = new ArrayList<String>();
+            for (int i = 0; i < 5000; i++) {
+                if (cache.inCache("ckey" + i)) cachedKeys.add("ckey" + i);
+            }
+            final int[] hits = new int[8];
+            Thread[] threads = new Thread[hits.length];
+            for (int t = 0; t < threads.length; t++) {
+                final int thread = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 10000; i++) {
+                                if (cache.getKV(cachedKeys.get(i % cachedKeys.size())) != null) hits[thread]++;
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (int hit : hits) {
+                assertEquals(10000, hit);
+            }
+            cache.clearCache();
+            assertFalse(cache.inCache(cachedKeys.get(0)));
+        }
+        // Small caches keep a single segment and the exact order.
+        assertTrue(CacheFactory.GetCache(40, CacheStrategy.LRU) instanceof LruCache);
+    }
+
     public void testECSGetNodeMetaData() {
         ECSNode ecsNode = new ECSNode("server1", "localhost", 50000);
         assertTrue(Arrays.equals(ecsNode.getNodeMetaData(), (new String("server1,localhost,50000")).getBytes()));
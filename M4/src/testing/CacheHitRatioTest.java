@@ -0,0 +1,112 @@
+package testing;
+
+import app_kvServer.CacheFactory;
+import app_kvServer.CacheManager;
+import app_kvServer.IKVServer.CacheStrategy;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Replays key access traces through each cache strategy and prints the hit
+// ratios. A miss puts the key, the way DataManager fills the cache from
+// storage. Besides the synthetic traces, a recorded trace with one key per
+// line (further columns are ignored) is replayed when its path is given in
+// the cache.trace system property. Not part of AllTests, run it on its own.
+public class CacheHitRatioTest extends TestCase {
+
+    private static final int CACHE_SIZE = 500;
+    private static final int KEYS = 10000;
+    private static final int ACCESSES = 200000;
+    private static final CacheStrategy[] STRATEGIES = {
+            CacheStrategy.FIFO, CacheStrategy.LRU, CacheStrategy.LFU, CacheStrategy.TinyLFU,
+            CacheStrategy.ARC, CacheStrategy.ClockPro, CacheStrategy.Slab};
+
+    public void testSkewedTrace() throws Exception {
+        report("Zipf 0.9", zipfTrace(new Random(1), 0, 0));
+    }
+
+    public void testSkewedTraceWithScans() throws Exception {
+        // Every 10000 accesses a bulk reader touches 2000 keys once each.
+        double[] ratios = report("Zipf 0.9 + scans", zipfTrace(new Random(2), 10000, 2000));
+        assertTrue(ratios[3] > ratios[1]);
+        assertTrue(ratios[3] > ratios[2]);
+    }
+
+    public void testShiftingTrace() throws Exception {
+        // The popular keys change half way through.
+        List<String> trace = zipfTrace(new Random(3), 0, 0);
+        List<String> shifted = zipfTrace(new Random(4), 0, 0);
+        for (int i = 0; i < shifted.size(); i++) {
+            shifted.set(i, "shifted_" + shifted.get(i));
+        }
+        trace.addAll(shifted);
+        report("Zipf 0.9, shifting", trace);
+    }
+
+    public void testRecordedTrace() throws Exception {
+        String path = System.getProperty("cache.trace");
+        if (path == null) return;
+        List<String> trace = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) trace.add(line.split("\\s+")[0]);
+            }
+        } finally {
+            reader.close();
+        }
+        report(path, trace);
+    }
+
+    // Prints and returns the hit ratio of each strategy, in STRATEGIES order.
+    private static double[] report(String name, List<String> trace) throws Exception {
+        double[] ratios = new double[STRATEGIES.length];
+        StringBuilder line = new StringBuilder(String.format("%-20s", name));
+        for (int i = 0; i < STRATEGIES.length; i++) {
+            ratios[i] = hitRatio(CacheFactory.GetSegment(CACHE_SIZE, STRATEGIES[i]), trace);
+            line.append(String.format(" %s %5.1f%%", STRATEGIES[i], ratios[i] * 100));
+        }
+        System.out.println(line);
+        return ratios;
+    }
+
+    private static double hitRatio(CacheManager cache, List<String> trace) throws Exception {
+        long hits = 0;
+        for (String key : trace) {
+            if (cache.getKV(key) != null) {
+                hits++;
+            } else {
+                cache.putKV(key, "value");
+            }
+        }
+        return (double) hits / trace.size();
+    }
+
+    private static List<String> zipfTrace(Random random, int scanEvery, int scanLength) {
+        double[] cdf = new double[KEYS];
+        double sum = 0;
+        for (int i = 0; i < KEYS; i++) {
+            sum += 1 / Math.pow(i + 1, 0.9);
+            cdf[i] = sum;
+        }
+        List<String> trace = new ArrayList<String>(ACCESSES);
+        int scanned = 0;
+        for (int i = 0; i < ACCESSES; i++) {
+            if (scanEvery > 0 && i % scanEvery == 0) {
+                for (int j = 0; j < scanLength; j++) {
+                    trace.add("scan_" + scanned++);
+                }
+            }
+            int index = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            trace.add("key" + (index < 0 ? -index - 1 : index));
+        }
+        return trace;
+    }
+}
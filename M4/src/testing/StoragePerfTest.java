@@ -0,0 +1,77 @@
+package testing;
+
+import app_kvServer.FileManager;
+import app_kvServer.IKVServer.DurabilityMode;
+import app_kvServer.StorageEngine;
+import storage_impl.LsmStorage;
+import junit.framework.TestCase;
+
+// Measures the put throughput of the storage layer under each durability mode
+// and of each storage engine.
+// Every writer waits for its put to be durable, the same way ClientConnection
+// holds the PUT reply. Not part of AllTests, run it on its own.
+public class StoragePerfTest extends TestCase {
+
+    private static final int WRITER_THREADS = 8;
+    private static final int PUTS_PER_THREAD = 500;
+    private static final String VALUE = new String(new char[1024]).replace('\0', 'v');
+
+    public void testDurabilityModeThroughput() throws Exception {
+        System.out.println("Durability mode put throughput, " + WRITER_THREADS + " writers, 1 KB values:");
+        for (DurabilityMode mode : DurabilityMode.values()) {
+            final FileManager fileManager = new FileManager("perf_" + mode.name().toLowerCase(), mode);
+            long start = System.nanoTime();
+            Thread[] writers = new Thread[WRITER_THREADS];
+            for (int t = 0; t < WRITER_THREADS; t++) {
+                final String prefix = "w" + t + "_";
+                writers[t] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < PUTS_PER_THREAD; i++) {
+                                fileManager.putKV(prefix + i, VALUE);
+                                fileManager.awaitDurable();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            fileManager.close();
+
+            int puts = WRITER_THREADS * PUTS_PER_THREAD;
+            System.out.println(String.format("  %-12s %8.0f puts/s", mode, puts / seconds));
+            assertEquals(VALUE, fileManager.getKV("w0_0"));
+        }
+    }
+
+    public void testStorageEngineThroughput() throws Exception {
+        System.out.println("Storage engine throughput, 1 KB values:");
+        StorageEngine[] engines = {
+                new FileManager("perf_engine", DurabilityMode.NONE),
+                new LsmStorage("/tmp/ECEdataSS/lsm_perf/", DurabilityMode.NONE)};
+        for (StorageEngine engine : engines) {
+            engine.clearStorage();
+            int puts = WRITER_THREADS * PUTS_PER_THREAD * 10;
+            long start = System.nanoTime();
+            for (int i = 0; i < puts; i++) {
+                engine.putKV("key" + (i % 10000), VALUE);
+            }
+            double putSeconds = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            for (int i = 0; i < puts; i++) {
+                engine.getKV("key" + (i % 20000));
+            }
+            double getSeconds = (System.nanoTime() - start) / 1e9;
+            engine.close();
+            System.out.println(String.format("  %-12s %8.0f puts/s %8.0f gets/s",
+                    engine.getClass().getSimpleName(), puts / putSeconds, puts / getSeconds));
+            assertEquals(VALUE, engine.getKV("key0"));
+        }
+    }
+}